@@ -2,7 +2,10 @@ package edu.cmu.inmind.multiuser.communication;
 
 import edu.cmu.inmind.multiuser.controller.communication.DestroyableCallback;
 import edu.cmu.inmind.multiuser.controller.common.CommonUtils;
+import edu.cmu.inmind.multiuser.controller.common.Constants;
+import edu.cmu.inmind.multiuser.controller.communication.CreditWindow;
 import edu.cmu.inmind.multiuser.controller.communication.MDP;
+import edu.cmu.inmind.multiuser.controller.communication.MessagePriority;
 import edu.cmu.inmind.multiuser.controller.exceptions.ExceptionHandler;
 import edu.cmu.inmind.multiuser.controller.resources.CommonsResourceLocator;
 import edu.cmu.inmind.multiuser.log.LogC;
@@ -24,16 +27,26 @@ public class ClientCommAPI implements DestroyableCallback {
     private ZMQ.Poller items; // Poll socket for a reply, with timeout
     private AtomicBoolean isDestroyed = new AtomicBoolean(false);
     private DestroyableCallback callback;
-    private AtomicBoolean canUseSocket = new AtomicBoolean( true );
+    /** the sender and the receiver threads share the socket, so they take turns **/
+    private final Object socketLock = new Object();
+    /** credits of the session for the requests, and the ones this client grants it for the responses **/
+    private final CreditWindow credits;
     // constants:
     private final long  timeout = 10000; // 2,5 seconds
     private final int   highWaterMark = 10 * 1000; //amount of enqueued messages
-    private final int   maxNumTries = 200;
-    private final long  delayCheckAndSleep = 5; //milliseconds
 
 
     public ClientCommAPI(String broker) throws Throwable{
+        this(broker, Constants.DEFAULT_FLOW_CONTROL_CREDITS);
+    }
+
+    /**
+     * @param credits responses a session can send to this client before it grants more, 0 means that sessions are
+     *                not limited. Requests are only limited once the session grants credits, older servers never do
+     */
+    public ClientCommAPI(String broker, int credits) throws Throwable{
         this.broker = broker;
+        this.credits = new CreditWindow(credits, true);
         ctx = CommonsResourceLocator.getContext(this);
         reconnectToBroker();
     }
@@ -42,17 +55,18 @@ public class ClientCommAPI implements DestroyableCallback {
      * Connect or reconnect to broker
      */
     void reconnectToBroker() throws Throwable{
-        checkAndSleep();
-        if (clientSocket != null) {
-            ctx.destroySocket(clientSocket);
+        synchronized (socketLock) {
+            if (clientSocket != null) {
+                ctx.destroySocket(clientSocket);
+            }
+            clientSocket = CommonsResourceLocator.createSocket(ctx, ZMQ.DEALER);
+            clientSocket.setSendTimeOut(0); //  Send messages immediately or return EAGAIN  ojrl
+            clientSocket.setHWM(highWaterMark); //  Set a high-water mark that allows for reasonable activity
+            clientSocket.setRcvHWM(highWaterMark);
+            clientSocket.connect(broker);
+            initialize();
+            credits.reset();
         }
-        clientSocket = CommonsResourceLocator.createSocket(ctx, ZMQ.DEALER);
-        clientSocket.setSendTimeOut(0); //  Send messages immediately or return EAGAIN  ojrl
-        clientSocket.setHWM(highWaterMark); //  Set a high-water mark that allows for reasonable activity
-        clientSocket.setRcvHWM(highWaterMark);
-        clientSocket.connect(broker);
-        initialize();
-        canUseSocket.getAndSet(true);
     }
 
     public void initialize() throws Throwable{
@@ -74,9 +88,13 @@ public class ClientCommAPI implements DestroyableCallback {
                     return null; // Interrupted or Context has been shut down
                 }
                 if (items.pollin(0)) {
-                    checkAndSleep();
-                    ZMsg msg = ZMsg.recvMsg(clientSocket, ZMQ.DONTWAIT);
-                    canUseSocket.getAndSet(true);
+                    ZMsg msg;
+                    synchronized (socketLock) {
+                        msg = ZMsg.recvMsg(clientSocket, ZMQ.DONTWAIT);
+                    }
+                    if (msg == null) {
+                        return null;
+                    }
                     LogC.debug(this, msg.toString());
 
                     // Don't try to handle errors, just assert noisily
@@ -102,6 +120,12 @@ public class ClientCommAPI implements DestroyableCallback {
                     ZFrame replyService = msg.pop();
                     replyService.destroy();
 
+                    if (msg.size() == 2 && MDP.S_CREDIT.frameEquals(msg.peekFirst())) {
+                        msg.pop().destroy();
+                        credits.grant( CreditWindow.parse(msg.peekFirst()) );
+                        msg.destroy();
+                        return null;
+                    }
                     reply = msg;
                 }
                 return reply;
@@ -126,18 +150,31 @@ public class ClientCommAPI implements DestroyableCallback {
      * request message and destroys it when sent.
      */
     public boolean send(String service, ZMsg request) throws Throwable{
+        return send(service, request, null);
+    }
+
+    /**
+     * @param priority class of the request in the broker queues. The frames are left out for null and
+     *                 MessagePriority.DEFAULT, so those requests are the same as the ones of older clients
+     */
+    public boolean send(String service, ZMsg request, MessagePriority priority) throws Throwable{
         try {
             assert (request != null);
             // Prefix request with protocol frames
             // Frame 0: empty (REQ emulation)
             // Frame 1: "MDPCxy" (six bytes, MDP/Client x.y)
             // Frame 2: Service name (printable string)
+            // Frames 3-4 (optional): C_PRIORITY and the priority class
+            if( priority != null && priority != MessagePriority.DEFAULT ){
+                priority.addTo(request);
+            }
             request.addFirst(service);
             request.addFirst(MDP.C_CLIENT.newFrame());
             request.addFirst("");
-            checkAndSleep();
-            boolean wentWell = request.send(clientSocket);
-            canUseSocket.getAndSet(true);
+            boolean wentWell;
+            synchronized (socketLock) {
+                wentWell = request.send(clientSocket);
+            }
             if (!wentWell) {
                 return false;
             }
@@ -155,6 +192,27 @@ public class ClientCommAPI implements DestroyableCallback {
         }
     }
 
+    /**
+     * Takes a credit to send a request to the session, waiting up to timeout (msecs) for the session to grant one
+     * @return false if there were no credits before timeout
+     */
+    public boolean acquireCredit(long timeout) throws InterruptedException{
+        return credits.acquire(timeout);
+    }
+
+    /**
+     * Counts a response received from service, and grants it more credits when it is time
+     */
+    public void consumed(String service) throws Throwable{
+        int granted = credits.consumed();
+        if( granted != 0 ){
+            ZMsg msg = new ZMsg();
+            msg.add(MDP.S_CREDIT.newFrame());
+            msg.add(CreditWindow.newFrame(granted));
+            send(service, msg);
+        }
+    }
+
     public void close(DestroyableCallback callback) throws Throwable{
         this.callback = callback;
         items.close();
@@ -164,25 +222,13 @@ public class ClientCommAPI implements DestroyableCallback {
     @Override
     public void destroyInCascade(DestroyableCallback destroyedObj) throws Throwable{
         if( !isDestroyed.getAndSet(true) ) {
-            checkAndSleep();
-            ctx = null;
+            synchronized (socketLock) {
+                ctx = null;
+            }
             LogC.info(this,"Gracefully destroying...");
         }
         CommonsResourceLocator.setIamDone(this);
         if(callback != null) callback.destroyInCascade( this );
-        canUseSocket.getAndSet(true);
-    }
-
-    private void checkAndSleep(){
-        try {
-            int times = 0;
-            while (!canUseSocket.get() && times++ < maxNumTries) { // 200 * 5 = 1000 milliseconds
-                CommonUtils.sleep(delayCheckAndSleep);
-            }
-            canUseSocket.getAndSet(false);
-        }catch (Exception e){
-            e.printStackTrace();
-        }
     }
 
     public String getBroker() {
@@ -2,8 +2,9 @@
 package edu.cmu.inmind.multiuser.communication;
 
 import edu.cmu.inmind.multiuser.controller.common.*;
-import edu.cmu.inmind.multiuser.controller.communication.ClientController;
 import edu.cmu.inmind.multiuser.controller.communication.DestroyableCallback;
+import edu.cmu.inmind.multiuser.controller.communication.MessagePriority;
+import edu.cmu.inmind.multiuser.controller.communication.PrioritizedClientController;
 import edu.cmu.inmind.multiuser.controller.communication.ResponseListener;
 import edu.cmu.inmind.multiuser.controller.communication.SessionMessage;
 import edu.cmu.inmind.multiuser.controller.exceptions.ErrorMessages;
@@ -17,17 +18,15 @@ import org.zeromq.ZMQ;
 import org.zeromq.ZMsg;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by oscarr on 3/29/17.
  */
 
-public class ClientCommController implements ClientController, DestroyableCallback {
+public class ClientCommController implements PrioritizedClientController, DestroyableCallback {
     //it only communicates with SessionManager for connecting, disconnecting, etc.
     private ClientCommAPI sessionMngrCommAPI;
     //it only communicates with Session for sending domain messages
@@ -44,6 +43,7 @@ public class ClientCommController implements ClientController, DestroyableCallba
     private CopyOnWriteArrayList<Object> closeableObjects;
     private ZContext ctx;
     private boolean sendAck;
+    private int credits;
     private ILog4J log4J;
 
     private AtomicBoolean isDestroyed = new AtomicBoolean(false);
@@ -51,8 +51,8 @@ public class ClientCommController implements ClientController, DestroyableCallba
 
 
     // constants:
-    private static final int    difference = 100; //if sentMessages > receivedMessages + difference => stop
     private static final long   timeout = 20000; //we should receive a response from server within 10 seconds
+    private static final long   pollTimeout = 1000; //how often the sender thread checks whether it has to stop
     private static final String TOKEN = "TOKEN";
     private static final String STOP_FLAG = "STOP_FLAG";
 
@@ -64,14 +64,14 @@ public class ClientCommController implements ClientController, DestroyableCallba
     private AtomicInteger receiveState;
     private AtomicBoolean isSendThreadAlive;
     private AtomicBoolean isReceiveThreadAlive;
-    private AtomicLong lastMessage;
     private AtomicInteger release = new AtomicInteger(Constants.CONNECTION_FINISHED);
-    private ConcurrentLinkedQueue<Pair<String, Object>> sendMsgQueue = new ConcurrentLinkedQueue<>();
+    // synchronized on itself. It is FIFO: all its messages belong to the same session, so priorities must not
+    // reorder them (they only let them overtake other sessions in the broker)
+    private final ArrayDeque<OutgoingMessage> sendMsgQueue = new ArrayDeque<>();
     private ResponseListener responseListener;
     private boolean shouldProcessReply;
     private boolean isTCPon;
     private List<DestroyableCallback> callbacks;
-    private long elapsedTime = 15; //milliseconds to wait between sending messages
 
 
     public ClientCommController( Builder builder){
@@ -87,6 +87,7 @@ public class ClientCommController implements ClientController, DestroyableCallba
         this.responseListener = builder.responseListener;
         this.sessionManagerService = builder.sessionManagerService;
         this.sendAck = builder.sendAck;
+        this.credits = builder.credits;
         this.ctx = CommonsResourceLocator.getContext( this );
         this.callbacks = new ArrayList<>();
         this.timer = new ResponseTimer();
@@ -126,6 +127,7 @@ public class ClientCommController implements ClientController, DestroyableCallba
         private ResponseListener responseListener;
         private String sessionManagerService = Constants.SESSION_MANAGER_SERVICE;
         private boolean sendAck = false;
+        private int credits = Constants.DEFAULT_FLOW_CONTROL_CREDITS;
         private ILog4J log4J;
 
         public Builder(ILog4J log4J) {
@@ -186,6 +188,21 @@ public class ClientCommController implements ClientController, DestroyableCallba
             this.sendAck = sendAck;
             return this;
         }
+
+        /**
+         * @param credits responses the session can send before this client grants it more credits (see
+         *                CreditWindow). It is also the maximum of unanswered messages before the client
+         *                considers the connection lost
+         */
+        public Builder setCredits(int credits) {
+            if( credits < 1 ){
+                ExceptionHandler.handle( new MultiuserException(ErrorMessages.INCORRECT_CONFIG_VALUE,
+                        "credits", credits, "positive") );
+                return this;
+            }
+            this.credits = credits;
+            return this;
+        }
     }
 
 
@@ -223,7 +240,6 @@ public class ClientCommController implements ClientController, DestroyableCallba
         isSendThreadAlive = new AtomicBoolean(false);
         isReceiveThreadAlive = new AtomicBoolean(false);
         isConnected = new AtomicBoolean(false);
-        lastMessage = new AtomicLong( System.currentTimeMillis() );
         release.getAndSet( checkFSM( release, Constants.CONNECTION_NEW) );
     }
 
@@ -231,14 +247,15 @@ public class ClientCommController implements ClientController, DestroyableCallba
         try {
             if( isTCPon ) {
                 LogC.info(this, "Connecting to: " + serverAddress);
-                this.sessionMngrCommAPI = new ClientCommAPI(serverAddress);
+                this.sessionMngrCommAPI = new ClientCommAPI(serverAddress, credits);
                 closeableObjects.add( sessionMngrCommAPI );
                 SessionMessage sessionMessage = new SessionMessage();
                 sessionMessage.setSessionId(sessionId);
                 sessionMessage.setRequestType(requestType);
                 //sessionMessage.setUrl(clientAddress);
                 sessionMessage.setPayload(Arrays.toString(subscriptionMessages));
-                CommonUtils.setAtom( stop, !sendToBroker( sessionManagerService, CommonUtils.toJson(sessionMessage)) );
+                CommonUtils.setAtom( stop, !sendToBroker( sessionManagerService, CommonUtils.toJson(sessionMessage),
+                        MessagePriority.CONTROL) );
                 if (!stop.get()) {
                     timer.schedule(new ResponseCheck(), timeout);
                     String replyString = receive(sessionMngrCommAPI);
@@ -258,9 +275,9 @@ public class ClientCommController implements ClientController, DestroyableCallba
                                     if(reply.getPayload() != null && Constants.NO_SESSION.equals(reply.getPayload()) ){
                                         this.sessionCommAPI = sessionMngrCommAPI;
                                     }else if( reply.getPayload() != null && CommonUtils.isURLvalid( reply.getPayload() )) {
-                                        this.sessionCommAPI = new ClientCommAPI(reply.getPayload());
+                                        this.sessionCommAPI = new ClientCommAPI(reply.getPayload(), credits);
                                     }else{
-                                        this.sessionCommAPI = new ClientCommAPI( sessionMngrCommAPI.getBroker() );
+                                        this.sessionCommAPI = new ClientCommAPI( sessionMngrCommAPI.getBroker(), credits );
                                     }
                                     closeableObjects.add( sessionCommAPI );
                                 }
@@ -353,11 +370,35 @@ public class ClientCommController implements ClientController, DestroyableCallba
     /********************************* SEND THREAD **************************************/
     /************************************************************************************/
 
+    private static class OutgoingMessage{
+        final String serviceId;
+        final Object message;
+        final MessagePriority priority;
+
+        OutgoingMessage(String serviceId, Object message, MessagePriority priority) {
+            this.serviceId = serviceId;
+            this.message = message;
+            this.priority = priority;
+        }
+    }
+
     @Override
     public void send(String serviceId, Object message){
+        send(serviceId, message, MessagePriority.of(message));
+    }
+
+    /**
+     * @param priority messages of higher classes overtake the queued lower ones of other sessions in the broker.
+     *                 They are still sent in order, after the messages this client sent before them
+     */
+    @Override
+    public void send(String serviceId, Object message, MessagePriority priority){
         try {
             if (!isDestroyed.get()) {
-                sendMsgQueue.offer( new Pair(serviceId, message) );
+                synchronized (sendMsgQueue) {
+                    sendMsgQueue.offerLast(new OutgoingMessage(serviceId, message, priority));
+                    sendMsgQueue.notifyAll();
+                }
             } else {
                 reconnect();
             }
@@ -366,18 +407,36 @@ public class ClientCommController implements ClientController, DestroyableCallba
         }
     }
 
-    private void checkFrequency() {
-        long delay = elapsedTime - (System.currentTimeMillis() - lastMessage.get() );
-        if(delay > 0) CommonUtils.sleep( delay );
+    private OutgoingMessage nextMessage() throws InterruptedException{
+        synchronized (sendMsgQueue) {
+            if( sendMsgQueue.isEmpty() ){
+                sendMsgQueue.wait(pollTimeout);
+            }
+            return sendMsgQueue.pollFirst();
+        }
     }
 
-    private boolean sendToBroker(String id, String message) throws Throwable{
+    private boolean sendToBroker(String id, String message, MessagePriority priority) throws Throwable{
         ZMsg request = new ZMsg();
         request.addString( message );
         if( id.equals(sessionManagerService) ) {
-            return sessionMngrCommAPI.send(id, request);
+            return sessionMngrCommAPI.send(id, request, priority);
         }else{
-            return sessionCommAPI.send(id, request);
+            // wait until the session grants credits. A session that never grants them (e.g., an older server) is
+            // not waited for (see ClientCommAPI), one that stops granting them gets the message anyway after timeout
+            long waited = 0;
+            while( !sessionCommAPI.acquireCredit(pollTimeout) ){
+                if( stop.get() ){
+                    request.destroy();
+                    return false;
+                }
+                waited += pollTimeout;
+                if( waited >= timeout ){
+                    LogC.warn(this, "The session has not granted credits to " + serviceName + ", sending anyway");
+                    break;
+                }
+            }
+            return sessionCommAPI.send(id, request, priority);
         }
     }
 
@@ -405,18 +464,16 @@ public class ClientCommController implements ClientController, DestroyableCallba
                 while( !stop.get() && !Thread.currentThread().isInterrupted() ) {
                     try{
                         isConnected.set(true);
-                        Pair pair = sendMsgQueue.poll();
-                        if( pair != null ) {
-                            lastMessage.set(System.currentTimeMillis());
-                            CommonUtils.setAtom( stop, !sendToBroker((String) pair.fst, (String) pair.snd)
-                                    && (sentMessages.get() > receivedMessages.get() + difference));
+                        OutgoingMessage outgoing = nextMessage();
+                        if( outgoing != null ) {
+                            String message = outgoing.message instanceof String? (String) outgoing.message
+                                    : CommonUtils.toJson(outgoing.message);
+                            CommonUtils.setAtom( stop, !sendToBroker(outgoing.serviceId, message, outgoing.priority)
+                                    && (sentMessages.get() > receivedMessages.get() + credits));
                             if (stop.get()) {
                                 continue;
                             }
                             sentMessages.incrementAndGet();
-                            checkFrequency();
-                        }else{
-                            CommonUtils.sleep(10);
                         }
                     } catch (Throwable e) {
                         if( !CommonUtils.isZMQException(e) ) {
@@ -510,7 +567,10 @@ public class ClientCommController implements ClientController, DestroyableCallba
                         if( "".equals(response) )
                             continue;
                         receivedMessages.incrementAndGet();
-                        if (response == null && (sentMessages.get() > receivedMessages.get() + difference)) {
+                        if (response != null && !response.equals(STOP_FLAG)) {
+                            sessionCommAPI.consumed(sessionId);
+                        }
+                        if (response == null && (sentMessages.get() > receivedMessages.get() + credits)) {
                             stop.getAndSet(true);
                         } else if( response != null && response.equals(STOP_FLAG) ) {
                             stop.getAndSet(true);
@@ -50,6 +50,28 @@ public class Constants {
     public static final String REMOVE_ALL = "REMOVE_ALL";
     public static final String ELEMENT_ADDED = "ELEMENT_ADDED";
     public static final String ELEMENT_REMOVED = "ELEMENT_REMOVED";
+    /** status of the coalesced event of Blackboard.postAll: its element is a map key -> element and its id is the
+     * list of keys separated by KEY_SEPARATOR. Remote services (ConnectRemoteService) get one ELEMENT_ADDED message
+     * per key instead **/
+    public static final String ELEMENTS_ADDED = "ELEMENTS_ADDED";
+    public static final String KEY_SEPARATOR = ",";
+    /** blackboard events are delivered on a thread pool shared by all sessions **/
+    public static final String DISPATCH_SHARED_POOL = "DISPATCH_SHARED_POOL";
+    /** blackboard events of the same session are delivered one at a time, in the order they were posted **/
+    public static final String DISPATCH_SESSION_SERIAL = "DISPATCH_SESSION_SERIAL";
+    /** blackboard events are delivered by the thread that posts them **/
+    public static final String DISPATCH_CALLER_RUNS = "DISPATCH_CALLER_RUNS";
+    /** each subscriber has its own mailbox: its events are delivered in order and its onEvent is never called
+     * concurrently, but different subscribers run in parallel **/
+    public static final String DISPATCH_MAILBOX = "DISPATCH_MAILBOX";
+    /** what a bounded mailbox (DISPATCH_MAILBOX) does with a new event when it is full: the poster waits for room,
+     * the oldest pending event is discarded, the new event is discarded, or the new event is rejected with an error **/
+    public static final String OVERFLOW_BLOCK = "OVERFLOW_BLOCK";
+    public static final String OVERFLOW_DROP_OLDEST = "OVERFLOW_DROP_OLDEST";
+    public static final String OVERFLOW_DROP_NEWEST = "OVERFLOW_DROP_NEWEST";
+    public static final String OVERFLOW_FAIL = "OVERFLOW_FAIL";
+    /** keys with this prefix live in the process-wide blackboard (GlobalBlackboard) that all sessions share **/
+    public static final String GLOBAL_NAMESPACE = "global/";
 
     //orchestrator
     public static final String ORCHESTRATOR_STARTED = "ORCHESTRATOR_STARTED";
@@ -79,4 +101,9 @@ public class Constants {
     public static final String NO_SESSION = "NO_SESSION";
     public static final String SERVICE_NAME = "service-name:";
     public static final String CROSS_SESSION_MESSAGE = "CROSS_SESSION_MESSAGE";
+
+    //flow control
+    /** Credits a client and its session start with, i.e., messages each of them can send before the other one
+     * grants more (see CreditWindow) **/
+    public static final int DEFAULT_FLOW_CONTROL_CREDITS = 100;
 }
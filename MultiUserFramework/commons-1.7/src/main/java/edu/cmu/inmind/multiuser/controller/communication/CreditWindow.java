@@ -0,0 +1,151 @@
+package edu.cmu.inmind.multiuser.controller.communication;
+
+import edu.cmu.inmind.multiuser.controller.common.Constants;
+import org.zeromq.ZFrame;
+import org.zeromq.ZMQ;
+
+/**
+ * Credit-based flow control on top of MDP, between a client and its session. The receiver of a stream of messages
+ * grants credits to the sender (S_CREDIT messages) and the sender spends one credit per message and waits when it
+ * runs out (or queues the messages until the peer grants more), instead of sleeping a fixed time between messages.
+ *
+ * Both sides start with Constants.DEFAULT_FLOW_CONTROL_CREDITS credits, so nothing has to be exchanged before the
+ * first message. Each side keeps one window: acquire/grant for the messages it sends, and consumed for the messages
+ * it receives, which tells when to grant credits back to the peer (every half window). The first grant also adjusts
+ * the peer's credits to the size of this window, so it can be negative if the window is smaller than the default.
+ * A window can also wait for the peer's first grant before it limits anything, for peers that may not use flow
+ * control at all (e.g., a session serving an older client, which never grants credits).
+ */
+public class CreditWindow {
+    private final int size;
+    private int credits;
+    private int consumed;
+    private boolean isAdjusted;
+    private final boolean isPeerOptional;
+    private boolean isGranted;
+
+    /**
+     * @param size credits granted to the peer. 0 means that this side does not use flow control: it is not limited
+     *             and it does not grant credits (e.g., the session manager, which serves all the clients)
+     */
+    public CreditWindow(int size) {
+        this(size, false);
+    }
+
+    /**
+     * @param isPeerOptional this side is not limited until the peer grants credits for the first time (credits are
+     *                       still counted, so the peer's grants keep adding up)
+     */
+    public CreditWindow(int size, boolean isPeerOptional) {
+        this.size = size;
+        this.isPeerOptional = isPeerOptional;
+        reset();
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public synchronized int getCredits() {
+        return credits;
+    }
+
+    /**
+     * Takes a credit to send a message, if there is any
+     * @return false if there are no credits
+     */
+    public synchronized boolean tryAcquire() {
+        if( size <= 0 ){
+            return true;
+        }
+        if( credits <= 0 && isLimited() ){
+            return false;
+        }
+        credits--;
+        return true;
+    }
+
+    /**
+     * Takes a credit to send a message, waiting up to timeout (msecs) for the peer to grant one
+     * @return false if there were no credits before timeout
+     */
+    public synchronized boolean acquire(long timeout) throws InterruptedException {
+        if( size <= 0 ){
+            return true;
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        while( credits <= 0 && isLimited() ){
+            long remaining = deadline - System.currentTimeMillis();
+            if( remaining <= 0 ){
+                return false;
+            }
+            wait(remaining);
+        }
+        credits--;
+        return true;
+    }
+
+    /**
+     * The peer granted credits
+     */
+    public synchronized void grant(int credits) {
+        this.credits += credits;
+        isGranted = true;
+        if( this.credits > 0 ){
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return false if the window waits for the peer's first grant and it has not arrived yet
+     */
+    public synchronized boolean isLimited() {
+        return !isPeerOptional || isGranted;
+    }
+
+    /**
+     * Counts a message received from the peer
+     * @return credits to grant to the peer, 0 if it is not time yet
+     */
+    public synchronized int consumed() {
+        if( size <= 0 ){
+            return 0;
+        }
+        consumed++;
+        if( !isAdjusted ){
+            isAdjusted = true;
+            int granted = consumed + size - Constants.DEFAULT_FLOW_CONTROL_CREDITS;
+            consumed = 0;
+            return granted;
+        }
+        if( consumed < Math.max(1, size / 2) ){
+            return 0;
+        }
+        int granted = consumed;
+        consumed = 0;
+        return granted;
+    }
+
+    /**
+     * Goes back to the initial credits (e.g., after reconnecting). A peer that has granted credits is still
+     * expected to grant them
+     */
+    public synchronized void reset() {
+        credits = Constants.DEFAULT_FLOW_CONTROL_CREDITS;
+        consumed = 0;
+        isAdjusted = false;
+        notifyAll();
+    }
+
+    public static ZFrame newFrame(int credits){
+        return new ZFrame(String.valueOf(credits));
+    }
+
+    public static int parse(ZFrame frame){
+        try {
+            return frame == null? 0 : Integer.parseInt(frame.getString(ZMQ.CHARSET));
+        }catch (NumberFormatException e){
+            return 0;
+        }
+    }
+}
@@ -30,16 +30,27 @@ public enum MDP {
     S_REPLY(3),
     S_HEARTBEAT(4),
     S_DISCONNECT(5),
-    S_SHUTDOWN(6);
+    S_SHUTDOWN(6),
+    S_CREDIT(7),
+    // the worker has processed a request, followed by its journal id. The broker also puts it (and the id) in
+    // front of the requests it journals, right after their return address (see RequestJournal)
+    S_DONE(9),
+
+    // MDP/Client optional frame, followed by the priority class of the request (see MessagePriority)
+    C_PRIORITY(8);
 
     private final byte[] data;
+    /** name() as a JSON string, i.e., what frameEquals(frame, "\"") compares to **/
+    private final byte[] quotedName;
 
     MDP(String value) {
         this.data = value.getBytes(ZMQ.CHARSET);
+        this.quotedName = ("\"" + name() + "\"").getBytes(ZMQ.CHARSET);
     }
     MDP(int value) { //watch for ints>255, will be truncated
         byte b = (byte) (value & 0xFF);
         this.data = new byte[] { b };
+        this.quotedName = ("\"" + name() + "\"").getBytes(ZMQ.CHARSET);
     }
 
     @Override public String toString() {
@@ -54,7 +65,13 @@ public enum MDP {
         return Arrays.equals(data, frame.getData());
     }
 
+    /**
+     * Same as frame.toString().equals(prefix + name() + prefix), but compares the bytes so the frame (which may be a
+     * large payload) is not decoded
+     */
     public boolean frameEquals (ZFrame frame, String prefix) {
-        return frame.toString().equals(prefix + name() + prefix);
+        byte[] data = frame == null? null : frame.getData();
+        byte[] expected = "\"".equals(prefix)? quotedName : (prefix + name() + prefix).getBytes(ZMQ.CHARSET);
+        return data != null && Arrays.equals(expected, data);
     }
 }
\ No newline at end of file
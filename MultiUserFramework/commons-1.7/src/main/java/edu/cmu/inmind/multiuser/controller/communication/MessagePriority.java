@@ -0,0 +1,90 @@
+package edu.cmu.inmind.multiuser.controller.communication;
+
+import edu.cmu.inmind.multiuser.controller.common.Constants;
+import org.zeromq.ZFrame;
+import org.zeromq.ZMsg;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Priority class of a client request, so the broker lets control and interactive traffic overtake bulk traffic (see
+ * PriorityLanes). It travels in the client envelope, right after the service name: an MDP.C_PRIORITY frame followed
+ * by a one-byte frame with the class. Requests without it (e.g., from older clients) are INTERACTIVE. The broker
+ * forwards it to the workers, which pop it.
+ */
+public enum MessagePriority {
+    /** lifecycle requests: connect, disconnect, pause, resume, register or unregister a remote service, etc. **/
+    CONTROL,
+    /** dialogue messages **/
+    INTERACTIVE,
+    /** messages that can wait (e.g., logs, uploads, batches) **/
+    BULK;
+
+    public static final MessagePriority DEFAULT = INTERACTIVE;
+    private static final MessagePriority[] VALUES = values();
+    private static final Set<String> CONTROL_REQUESTS = new HashSet<>(Arrays.asList(Constants.REQUEST_CONNECT,
+            Constants.REQUEST_DISCONNECT, Constants.REQUEST_PAUSE, Constants.REQUEST_RESUME,
+            Constants.REQUEST_SHUTDOWN_SYSTEM, Constants.REGISTER_REMOTE_SERVICE,
+            Constants.UNREGISTER_REMOTE_SERVICE));
+
+    public ZFrame newFrame(){
+        return new ZFrame(new byte[]{ (byte) ordinal() });
+    }
+
+    /**
+     * Adds the priority frames in front of the body of a request (before adding the service name)
+     */
+    public void addTo(ZMsg msg){
+        msg.addFirst(newFrame());
+        msg.addFirst(MDP.C_PRIORITY.newFrame());
+    }
+
+    public static MessagePriority parse(ZFrame frame){
+        byte[] data = frame == null? null : frame.getData();
+        if( data == null || data.length != 1 || data[0] < 0 || data[0] >= VALUES.length ){
+            return DEFAULT;
+        }
+        return VALUES[data[0]];
+    }
+
+    /**
+     * @param msg the request, right after its service name (or its return address, in the workers)
+     * @return the priority of the request, DEFAULT if it has none
+     */
+    public static MessagePriority peek(ZMsg msg){
+        if( msg.size() >= 3 && MDP.C_PRIORITY.frameEquals(msg.peekFirst()) ){
+            Iterator<ZFrame> frames = msg.iterator();
+            frames.next();
+            return parse(frames.next());
+        }
+        return DEFAULT;
+    }
+
+    /**
+     * Same as peek, but it also removes the priority frames
+     */
+    public static MessagePriority pop(ZMsg msg){
+        if( msg.size() >= 3 && MDP.C_PRIORITY.frameEquals(msg.peekFirst()) ){
+            msg.pop().destroy();
+            ZFrame frame = msg.pop();
+            MessagePriority priority = parse(frame);
+            frame.destroy();
+            return priority;
+        }
+        return DEFAULT;
+    }
+
+    /**
+     * @return CONTROL for lifecycle session messages, DEFAULT otherwise
+     */
+    public static MessagePriority of(Object message){
+        if( message instanceof SessionMessage
+                && CONTROL_REQUESTS.contains(((SessionMessage) message).getRequestType()) ){
+            return CONTROL;
+        }
+        return DEFAULT;
+    }
+}
@@ -0,0 +1,14 @@
+package edu.cmu.inmind.multiuser.controller.communication;
+
+/**
+ * A ClientController that can tag its messages with a priority class (see MessagePriority). It is not part of
+ * ClientController because this module targets Java 7 (no default methods), so existing implementers of
+ * ClientController do not have to implement it.
+ */
+public interface PrioritizedClientController extends ClientController {
+    /**
+     * @param priority lets the message overtake the queued messages of lower classes of other sessions in the
+     *                 broker. The messages of the same session are never reordered
+     */
+    void send(String serviceId, Object message, MessagePriority priority);
+}
@@ -0,0 +1,115 @@
+package edu.cmu.inmind.multiuser.controller.communication;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per priority class counters of one or more PriorityLanes. Queue depth is the number of messages queued and not
+ * polled or discarded yet, wait is the time a message spends queued, and promoted counts the messages that were
+ * polled ahead of a higher class by the starvation protection.
+ */
+public class PriorityLaneStats {
+    private static final int LANES = MessagePriority.values().length;
+    private final AtomicLongArray queued = new AtomicLongArray(LANES);
+    private final AtomicLongArray polled = new AtomicLongArray(LANES);
+    private final AtomicLongArray promoted = new AtomicLongArray(LANES);
+    private final AtomicLongArray queueDepth = new AtomicLongArray(LANES);
+    private final AtomicLongArray maxQueueDepth = new AtomicLongArray(LANES);
+    private final AtomicLongArray totalWait = new AtomicLongArray(LANES);
+    private final AtomicLongArray maxWait = new AtomicLongArray(LANES);
+
+    void onQueued(MessagePriority priority){
+        int lane = priority.ordinal();
+        queued.incrementAndGet(lane);
+        updateMax( maxQueueDepth, lane, queueDepth.incrementAndGet(lane) );
+    }
+
+    /**
+     * @param wait nanoseconds the message was queued
+     */
+    void onPolled(MessagePriority priority, long wait, boolean wasPromoted){
+        int lane = priority.ordinal();
+        queueDepth.decrementAndGet(lane);
+        polled.incrementAndGet(lane);
+        if( wasPromoted ){
+            promoted.incrementAndGet(lane);
+        }
+        totalWait.addAndGet(lane, wait);
+        updateMax( maxWait, lane, wait );
+    }
+
+    /**
+     * A queued message has been moved to a higher lane (see PriorityLanes.offer)
+     */
+    void onMoved(MessagePriority from, MessagePriority to){
+        queueDepth.decrementAndGet(from.ordinal());
+        updateMax( maxQueueDepth, to.ordinal(), queueDepth.incrementAndGet(to.ordinal()) );
+    }
+
+    /**
+     * Queued messages have been discarded without being polled (see PriorityLanes.clear)
+     */
+    void onDiscarded(MessagePriority priority, int count){
+        queueDepth.addAndGet(priority.ordinal(), -count);
+    }
+
+    private static void updateMax(AtomicLongArray max, int lane, long value){
+        long current;
+        while( value > (current = max.get(lane)) && !max.compareAndSet(lane, current, value) );
+    }
+
+    public long getQueued(MessagePriority priority) {
+        return queued.get(priority.ordinal());
+    }
+
+    public long getPolled(MessagePriority priority) {
+        return polled.get(priority.ordinal());
+    }
+
+    public long getPromoted(MessagePriority priority) {
+        return promoted.get(priority.ordinal());
+    }
+
+    public long getQueueDepth(MessagePriority priority) {
+        return queueDepth.get(priority.ordinal());
+    }
+
+    public long getMaxQueueDepth(MessagePriority priority) {
+        return maxQueueDepth.get(priority.ordinal());
+    }
+
+    public double getAverageWaitMicros(MessagePriority priority) {
+        long count = polled.get(priority.ordinal());
+        return count == 0? 0 : totalWait.get(priority.ordinal()) / (count * 1000d);
+    }
+
+    public double getMaxWaitMicros(MessagePriority priority) {
+        return maxWait.get(priority.ordinal()) / 1000d;
+    }
+
+    /**
+     * Resets the max values and the accumulated ones, but not the current queue depths
+     */
+    public void reset(){
+        for( int lane = 0; lane < LANES; lane++ ){
+            queued.set(lane, 0);
+            polled.set(lane, 0);
+            promoted.set(lane, 0);
+            totalWait.set(lane, 0);
+            maxWait.set(lane, 0);
+            maxQueueDepth.set(lane, queueDepth.get(lane));
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("[");
+        for( MessagePriority priority : MessagePriority.values() ){
+            if( builder.length() > 1 ) builder.append(", ");
+            builder.append(String.format("%s: [queued: %s, polled: %s, promoted: %s, queueDepth: %s, " +
+                    "maxQueueDepth: %s, avgWait: %.2fus, maxWait: %.2fus]", priority, getQueued(priority),
+                    getPolled(priority), getPromoted(priority), getQueueDepth(priority), getMaxQueueDepth(priority),
+                    getAverageWaitMicros(priority), getMaxWaitMicros(priority)));
+        }
+        return builder.append("]").toString();
+    }
+}
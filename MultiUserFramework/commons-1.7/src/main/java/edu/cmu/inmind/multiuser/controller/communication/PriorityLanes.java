@@ -0,0 +1,225 @@
+package edu.cmu.inmind.multiuser.controller.communication;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * One FIFO queue (lane) per MessagePriority, polled in priority order, so control and interactive messages overtake
+ * the bulk ones queued before them. To keep a lower class from starving, once it has been passed over starvationLimit
+ * times in a row its oldest message is polled next, ahead of the higher classes.
+ *
+ * Priorities never reorder the messages of the same sender (e.g., a client session): a message that is offered with
+ * a sender moves the older messages of that sender that wait in lower lanes up to its own lane, ahead of it, so a
+ * disconnection is still polled after the dialogue messages sent before it. They only overtake other senders.
+ *
+ * It is not thread safe: the broker uses it from its own thread, other users have to synchronize on it.
+ */
+public class PriorityLanes<T> {
+    public static final int DEFAULT_STARVATION_LIMIT = 8;
+    private static final MessagePriority[] PRIORITIES = MessagePriority.values();
+
+    private final ArrayDeque<Entry<T>>[] lanes;
+    /** polls that went to a higher lane while this one had messages **/
+    private final int[] passedOver;
+    private final int starvationLimit;
+    private final PriorityLaneStats stats;
+    /** messages of each sender per lane, for the senders that have messages queued **/
+    private final HashMap<Object, int[]> senders = new HashMap<>();
+    private int size;
+
+    private static class Entry<T>{
+        final T item;
+        final Object sender;
+        final long queuedAt;
+
+        Entry(T item, Object sender, long queuedAt) {
+            this.item = item;
+            this.sender = sender;
+            this.queuedAt = queuedAt;
+        }
+    }
+
+    public PriorityLanes() {
+        this(DEFAULT_STARVATION_LIMIT, null);
+    }
+
+    /**
+     * @param starvationLimit how many times in a row a lane can be passed over by higher ones
+     * @param stats counters to update (they can be shared by several instances), null if they are not needed
+     */
+    @SuppressWarnings("unchecked")
+    public PriorityLanes(int starvationLimit, PriorityLaneStats stats) {
+        this.starvationLimit = Math.max(1, starvationLimit);
+        this.stats = stats;
+        this.lanes = (ArrayDeque<Entry<T>>[]) new ArrayDeque<?>[PRIORITIES.length];
+        for( int lane = 0; lane < lanes.length; lane++ ){
+            lanes[lane] = new ArrayDeque<>();
+        }
+        this.passedOver = new int[PRIORITIES.length];
+    }
+
+    /**
+     * Same as offer(item, priority, sender), for messages that can overtake any other
+     */
+    public void offer(T item, MessagePriority priority){
+        offer(item, priority, null);
+    }
+
+    /**
+     * @param sender messages of the same sender (equals/hashCode) are polled in the order they were offered, no
+     *               matter their priority. Null means that the message does not depend on the others
+     */
+    public void offer(T item, MessagePriority priority, Object sender){
+        if( priority == null ){
+            priority = MessagePriority.DEFAULT;
+        }
+        int lane = priority.ordinal();
+        if( sender != null ){
+            int[] pending = senders.get(sender);
+            if( pending == null ){
+                pending = new int[lanes.length];
+                senders.put(sender, pending);
+            }
+            // the older messages of a sender are never in lower lanes than its newer ones, so moving them in lane
+            // order keeps them in the order they were offered
+            for( int lower = lane + 1; lower < lanes.length; lower++ ){
+                if( pending[lower] > 0 ) move(sender, pending, lower, lane);
+            }
+            pending[lane]++;
+        }
+        lanes[lane].offerLast( new Entry<>(item, sender, stats == null? 0 : System.nanoTime()) );
+        size++;
+        if( stats != null ){
+            stats.onQueued(priority);
+        }
+    }
+
+    /**
+     * Moves the messages of sender from lane from to the end of lane to
+     */
+    private void move(Object sender, int[] pending, int from, int to){
+        Iterator<Entry<T>> entries = lanes[from].iterator();
+        while( entries.hasNext() && pending[from] > 0 ){
+            Entry<T> entry = entries.next();
+            if( sender.equals(entry.sender) ){
+                entries.remove();
+                lanes[to].offerLast(entry);
+                pending[from]--;
+                pending[to]++;
+                if( stats != null ){
+                    stats.onMoved(PRIORITIES[from], PRIORITIES[to]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the next item, or null if all the lanes are empty
+     */
+    public T poll(){
+        if( size == 0 ){
+            return null;
+        }
+        int lane = -1;
+        boolean promoted = false;
+        for( int i = 1; i < lanes.length && lane == -1; i++ ){
+            if( passedOver[i] >= starvationLimit && !lanes[i].isEmpty() ){
+                lane = i;
+            }
+        }
+        if( lane != -1 ){
+            // it is only promoted if a higher lane had to wait
+            for( int i = 0; i < lane && !promoted; i++ ){
+                promoted = !lanes[i].isEmpty();
+            }
+        }else{
+            for( int i = 0; i < lanes.length && lane == -1; i++ ){
+                if( !lanes[i].isEmpty() ) lane = i;
+            }
+        }
+        Entry<T> entry = lanes[lane].peekFirst();
+        int[] pending = entry.sender == null? null : senders.get(entry.sender);
+        if( promoted && pending != null ){
+            // the sender of the starving message has older ones in higher lanes, they go first
+            for( int i = 0; i < lane; i++ ){
+                if( pending[i] > 0 ){
+                    lane = i;
+                    promoted = false;
+                    break;
+                }
+            }
+        }
+        entry = pending == null? lanes[lane].pollFirst() : pollFirst(lane, entry.sender);
+        if( pending != null ){
+            pending[lane]--;
+            if( isEmpty(pending) ) senders.remove(entry.sender);
+        }
+        size--;
+        passedOver[lane] = 0;
+        for( int i = lane + 1; i < lanes.length; i++ ){
+            if( !lanes[i].isEmpty() ) passedOver[i]++;
+        }
+        if( stats != null ){
+            stats.onPolled(PRIORITIES[lane], System.nanoTime() - entry.queuedAt, promoted);
+        }
+        return entry.item;
+    }
+
+    /**
+     * @return the oldest message of sender in lane
+     */
+    private Entry<T> pollFirst(int lane, Object sender){
+        Iterator<Entry<T>> entries = lanes[lane].iterator();
+        while( entries.hasNext() ){
+            Entry<T> entry = entries.next();
+            if( sender.equals(entry.sender) ){
+                entries.remove();
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isEmpty(int[] pending){
+        for( int count : pending ){
+            if( count > 0 ) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Discards all the queued items
+     * @return the discarded items, higher lanes first
+     */
+    public List<T> clear(){
+        List<T> items = new ArrayList<>(size);
+        for( int lane = 0; lane < lanes.length; lane++ ){
+            if( stats != null && !lanes[lane].isEmpty() ){
+                stats.onDiscarded(PRIORITIES[lane], lanes[lane].size());
+            }
+            for( Entry<T> entry : lanes[lane] ){
+                items.add(entry.item);
+            }
+            lanes[lane].clear();
+            passedOver[lane] = 0;
+        }
+        senders.clear();
+        size = 0;
+        return items;
+    }
+
+    public boolean isEmpty(){
+        return size == 0;
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public int size(MessagePriority priority){
+        return lanes[priority.ordinal()].size();
+    }
+}
@@ -68,4 +68,16 @@ public class ErrorMessages {
 //            "ResponseListener.process().";
     public static final String SESSION_NOT_EXIST = "The provided session id (%s) does not correspond to any existing session.";
     public static final String COMPONENT_NOT_IN_SESSION = "There is no component of type: %s on session with id: %s.";
+    public static final String UNKNOWN_DISPATCH_MODE = "Unknown blackboard dispatch mode: %s. It should be one of the " +
+            "Constants.DISPATCH_* values. The shared pool dispatcher will be used instead.";
+    public static final String IMMUTABLE_VALUE_MODIFIED = "The value of the blackboard key %s is registered as " +
+            "immutable but it has been modified after it was posted. Either stop modifying it or don't register it " +
+            "as immutable.";
+    public static final String SUBSCRIBER_QUEUE_FULL = "The event %s could not be delivered to %s because its queue " +
+            "is full (capacity: %s). Either the subscriber is too slow or the capacity is too small.";
+    public static final String JOURNAL_CORRUPTED = "The blackboard journal %s is corrupted at position %s. The " +
+            "records before that position are still replayed.";
+    public static final String INCORRECT_CONFIG_VALUE = "Incorrect value for %s: %s. It should be %s, so the " +
+            "default value is used instead.";
+    public static final String AWAIT_TIMEOUT = "Nothing satisfied the await on %s within %s ms.";
 }
@@ -0,0 +1,107 @@
+package edu.cmu.inmind.multiuser.controller.communication;
+
+import edu.cmu.inmind.multiuser.controller.common.Constants;
+import org.junit.Assert;
+import org.junit.Test;
+import org.zeromq.ZFrame;
+
+public class CreditWindowTest {
+
+    @Test
+    public void testNoWindowIsNeverLimited() throws Exception {
+        CreditWindow window = new CreditWindow(0);
+        for( int i = 0; i < Constants.DEFAULT_FLOW_CONTROL_CREDITS * 2; i++ ){
+            Assert.assertTrue(window.tryAcquire());
+        }
+        Assert.assertTrue(window.acquire(0));
+        Assert.assertEquals(0, window.consumed());
+    }
+
+    @Test
+    public void testAcquireSpendsTheDefaultCredits() throws Exception {
+        CreditWindow window = new CreditWindow(10);
+        for( int i = 0; i < Constants.DEFAULT_FLOW_CONTROL_CREDITS; i++ ){
+            Assert.assertTrue(window.tryAcquire());
+        }
+        Assert.assertFalse(window.tryAcquire());
+        Assert.assertFalse(window.acquire(10));
+        window.grant(2);
+        Assert.assertTrue(window.tryAcquire());
+        Assert.assertTrue(window.acquire(0));
+        Assert.assertFalse(window.tryAcquire());
+    }
+
+    @Test
+    public void testGrantWakesUpAcquire() throws Exception {
+        final CreditWindow window = new CreditWindow(10);
+        while( window.tryAcquire() );
+        Thread granter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                }catch (InterruptedException e){
+                    return;
+                }
+                window.grant(1);
+            }
+        });
+        granter.start();
+        Assert.assertTrue(window.acquire(5000));
+        granter.join();
+    }
+
+    @Test
+    public void testFirstGrantAdjustsThePeer() {
+        // the peer starts with the default credits, the first grant leaves it with size credits
+        int size = 10;
+        CreditWindow window = new CreditWindow(size);
+        int granted = window.consumed();
+        Assert.assertEquals(1 + size - Constants.DEFAULT_FLOW_CONTROL_CREDITS, granted);
+        int peerCredits = Constants.DEFAULT_FLOW_CONTROL_CREDITS - 1 + granted;
+        Assert.assertEquals(size, peerCredits);
+        // then it grants every half window
+        for( int i = 1; i < size / 2; i++ ){
+            Assert.assertEquals(0, window.consumed());
+        }
+        Assert.assertEquals(size / 2, window.consumed());
+    }
+
+    @Test
+    public void testResetGoesBackToTheDefaultCredits() {
+        CreditWindow window = new CreditWindow(10);
+        while( window.tryAcquire() );
+        window.consumed();
+        window.reset();
+        Assert.assertEquals(Constants.DEFAULT_FLOW_CONTROL_CREDITS, window.getCredits());
+        // the next grant adjusts the peer again
+        Assert.assertEquals(1 + 10 - Constants.DEFAULT_FLOW_CONTROL_CREDITS, window.consumed());
+    }
+
+    @Test
+    public void testOptionalPeerIsOnlyLimitedOnceItGrants() throws Exception {
+        CreditWindow window = new CreditWindow(10, true);
+        Assert.assertFalse(window.isLimited());
+        int sent = Constants.DEFAULT_FLOW_CONTROL_CREDITS + 5;
+        for( int i = 0; i < sent; i++ ){
+            Assert.assertTrue(window.tryAcquire());
+        }
+        // credits are still counted, so a grant that covers what was sent lets one more through
+        window.grant(6);
+        Assert.assertTrue(window.isLimited());
+        Assert.assertTrue(window.tryAcquire());
+        Assert.assertFalse(window.tryAcquire());
+        Assert.assertFalse(window.acquire(10));
+        // a reset does not lift the limit of a peer that uses flow control
+        window.reset();
+        Assert.assertTrue(window.isLimited());
+    }
+
+    @Test
+    public void testFrames() {
+        Assert.assertEquals(42, CreditWindow.parse(CreditWindow.newFrame(42)));
+        Assert.assertEquals(-3, CreditWindow.parse(CreditWindow.newFrame(-3)));
+        Assert.assertEquals(0, CreditWindow.parse(null));
+        Assert.assertEquals(0, CreditWindow.parse(new ZFrame("abc")));
+    }
+}
@@ -0,0 +1,163 @@
+package edu.cmu.inmind.multiuser.controller.communication;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class PriorityLanesTest {
+
+    private static final int STARVATION_LIMIT = 3;
+
+    private PriorityLaneStats stats;
+    private PriorityLanes<String> lanes;
+
+    @Before
+    public void setUp() {
+        stats = new PriorityLaneStats();
+        lanes = new PriorityLanes<>(STARVATION_LIMIT, stats);
+    }
+
+    @Test
+    public void testHigherLanesGoFirst() {
+        lanes.offer("bulk", MessagePriority.BULK);
+        lanes.offer("interactive", MessagePriority.INTERACTIVE);
+        lanes.offer("control", MessagePriority.CONTROL);
+        Assert.assertEquals(3, lanes.size());
+        Assert.assertEquals("control", lanes.poll());
+        Assert.assertEquals("interactive", lanes.poll());
+        Assert.assertEquals("bulk", lanes.poll());
+        Assert.assertNull(lanes.poll());
+        Assert.assertTrue(lanes.isEmpty());
+    }
+
+    @Test
+    public void testEachLaneIsFifo() {
+        lanes.offer("a", MessagePriority.INTERACTIVE);
+        lanes.offer("b", null); // the default priority
+        lanes.offer("c", MessagePriority.INTERACTIVE);
+        Assert.assertEquals(3, lanes.size(MessagePriority.DEFAULT));
+        Assert.assertEquals("a", lanes.poll());
+        Assert.assertEquals("b", lanes.poll());
+        Assert.assertEquals("c", lanes.poll());
+    }
+
+    @Test
+    public void testLowerLaneIsNotStarved() {
+        lanes.offer("bulk", MessagePriority.BULK);
+        for( int i = 0; i < 10; i++ ){
+            lanes.offer("control" + i, MessagePriority.CONTROL);
+        }
+        // the bulk message is passed over STARVATION_LIMIT times, then it overtakes the control ones
+        for( int i = 0; i < STARVATION_LIMIT; i++ ){
+            Assert.assertEquals("control" + i, lanes.poll());
+        }
+        Assert.assertEquals("bulk", lanes.poll());
+        Assert.assertEquals(1, stats.getPromoted(MessagePriority.BULK));
+        Assert.assertEquals("control" + STARVATION_LIMIT, lanes.poll());
+    }
+
+    @Test
+    public void testStarvationCountsRestartOnceServed() {
+        for( int i = 0; i < 2; i++ ){
+            lanes.offer("bulk" + i, MessagePriority.BULK);
+        }
+        for( int i = 0; i < 20; i++ ){
+            lanes.offer("interactive" + i, MessagePriority.INTERACTIVE);
+        }
+        int interactive = 0;
+        for( int bulk = 0; bulk < 2; bulk++ ){
+            for( int i = 0; i < STARVATION_LIMIT; i++ ){
+                Assert.assertEquals("interactive" + interactive++, lanes.poll());
+            }
+            Assert.assertEquals("bulk" + bulk, lanes.poll());
+        }
+        // once the bulk lane is empty it is not passed over any more
+        while( !lanes.isEmpty() ){
+            Assert.assertEquals("interactive" + interactive++, lanes.poll());
+        }
+        Assert.assertEquals(2, stats.getPromoted(MessagePriority.BULK));
+    }
+
+    @Test
+    public void testLaneThatWaitsForNothingIsNotPromoted() {
+        for( int i = 0; i < STARVATION_LIMIT; i++ ){
+            lanes.offer("control" + i, MessagePriority.CONTROL);
+        }
+        lanes.offer("bulk", MessagePriority.BULK);
+        for( int i = 0; i < STARVATION_LIMIT; i++ ){
+            lanes.poll();
+        }
+        // the bulk message is next anyway, so it does not count as promoted
+        Assert.assertEquals("bulk", lanes.poll());
+        Assert.assertEquals(0, stats.getPromoted(MessagePriority.BULK));
+        Assert.assertEquals(STARVATION_LIMIT, stats.getPolled(MessagePriority.CONTROL));
+        Assert.assertEquals(1, stats.getQueued(MessagePriority.BULK));
+    }
+
+    @Test
+    public void testMessagesOfASenderKeepTheirOrder() {
+        lanes.offer("a", MessagePriority.BULK, "session");
+        lanes.offer("b", MessagePriority.DEFAULT, "session");
+        lanes.offer("other", MessagePriority.BULK, "other");
+        lanes.offer("disconnect", MessagePriority.CONTROL, "session");
+        // the disconnection takes the messages sent before it along, but not the ones of other senders
+        Assert.assertEquals(3, lanes.size(MessagePriority.CONTROL));
+        Assert.assertEquals("a", lanes.poll());
+        Assert.assertEquals("b", lanes.poll());
+        Assert.assertEquals("disconnect", lanes.poll());
+        Assert.assertEquals("other", lanes.poll());
+        Assert.assertTrue(lanes.isEmpty());
+        for( MessagePriority priority : MessagePriority.values() ){
+            Assert.assertEquals(0, stats.getQueueDepth(priority));
+        }
+    }
+
+    @Test
+    public void testOtherSendersAreStillOvertaken() {
+        lanes.offer("bulk", MessagePriority.BULK, "other");
+        lanes.offer("a", MessagePriority.DEFAULT, "session");
+        lanes.offer("control", MessagePriority.CONTROL, "session");
+        Assert.assertEquals("a", lanes.poll());
+        Assert.assertEquals("control", lanes.poll());
+        Assert.assertEquals("bulk", lanes.poll());
+    }
+
+    @Test
+    public void testStarvingMessageWaitsForTheOlderOnesOfItsSender() {
+        lanes.offer("interactive", MessagePriority.INTERACTIVE, "other");
+        lanes.offer("a", MessagePriority.INTERACTIVE, "session");
+        lanes.offer("bulk", MessagePriority.BULK, "session");
+        for( int i = 0; i < 10; i++ ){
+            lanes.offer("control" + i, MessagePriority.CONTROL, "control" + i);
+        }
+        for( int i = 0; i < STARVATION_LIMIT; i++ ){
+            Assert.assertEquals("control" + i, lanes.poll());
+        }
+        Assert.assertEquals("interactive", lanes.poll());
+        // the bulk lane is starving, but the message of its sender in the interactive lane is older
+        Assert.assertEquals("a", lanes.poll());
+        Assert.assertEquals("bulk", lanes.poll());
+        Assert.assertEquals(1, stats.getPromoted(MessagePriority.BULK));
+        Assert.assertEquals("control" + STARVATION_LIMIT, lanes.poll());
+    }
+
+    @Test
+    public void testClearDiscardsEverything() {
+        lanes.offer("bulk", MessagePriority.BULK, "session");
+        lanes.offer("control", MessagePriority.CONTROL, "other");
+        lanes.offer("interactive", MessagePriority.INTERACTIVE);
+        Assert.assertEquals(Arrays.asList("control", "interactive", "bulk"), lanes.clear());
+        Assert.assertTrue(lanes.isEmpty());
+        Assert.assertNull(lanes.poll());
+        for( MessagePriority priority : MessagePriority.values() ){
+            Assert.assertEquals(0, stats.getQueueDepth(priority));
+            Assert.assertEquals(0, stats.getPolled(priority));
+        }
+        // the senders of the discarded messages do not hold the new ones back
+        lanes.offer("bulk2", MessagePriority.BULK, "session");
+        lanes.offer("control2", MessagePriority.CONTROL, "other");
+        Assert.assertEquals("control2", lanes.poll());
+    }
+}
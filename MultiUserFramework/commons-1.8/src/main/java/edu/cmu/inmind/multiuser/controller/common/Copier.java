@@ -0,0 +1,8 @@
+package edu.cmu.inmind.multiuser.controller.common;
+
+/**
+ * Copies the instances of one class. Copiers are created once per class and cached by Utils.
+ */
+public interface Copier<T> {
+    T copy(T object);
+}
@@ -0,0 +1,173 @@
+package edu.cmu.inmind.multiuser.controller.common;
+
+import com.rits.cloning.Cloner;
+import org.objenesis.Objenesis;
+import org.objenesis.ObjenesisStd;
+import org.objenesis.instantiator.ObjectInstantiator;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Builds the copier of each class. Shallow copiers of application classes (e.g., the DTOs that components post to
+ * the blackboard) are composed of MethodHandles once, when the class is copied for the first time, so copying an
+ * object is an instantiation plus one direct field transfer per field: no reflection, no boxing of primitive
+ * fields, and no lookups in the Cloner's caches. Copies are instantiated through objenesis, as the Cloner does, so
+ * no constructor of the class runs. JDK classes and abstract classes keep using the Cloner.
+ */
+class Copiers {
+    private static final MethodType FIELD_TRANSFER = MethodType.methodType(void.class, Object.class, Object.class);
+    private static final Objenesis OBJENESIS = new ObjenesisStd(true);
+    private static final Set<Class<?>> IMMUTABLE_TYPES = new HashSet<Class<?>>(Arrays.<Class<?>>asList(String.class,
+            Boolean.class, Character.class, Byte.class, Short.class, Integer.class, Long.class, Float.class,
+            Double.class, BigInteger.class, BigDecimal.class, UUID.class, Class.class));
+
+    private static final Copier<Object> IMMUTABLE = new Copier<Object>() {
+        @Override
+        public Object copy(Object object) {
+            return object;
+        }
+    };
+
+    static boolean isImmutable(Class<?> clazz){
+        return IMMUTABLE_TYPES.contains(clazz) || clazz.isEnum() || clazz.isAnnotationPresent(Immutable.class)
+                || (clazz.getSuperclass() != null && clazz.getSuperclass().isEnum())
+                || clazz.getName().startsWith("java.time.") || isClonerImmutable(clazz);
+    }
+
+    /**
+     * @return true if the Cloner does not copy the class either, i.e., it (or a superclass, with subClass = true)
+     * is annotated with com.rits.cloning.Immutable
+     */
+    private static boolean isClonerImmutable(Class<?> clazz){
+        if( clazz.isAnnotationPresent(com.rits.cloning.Immutable.class) ){
+            return true;
+        }
+        for( Class<?> current = clazz.getSuperclass(); current != null; current = current.getSuperclass() ){
+            com.rits.cloning.Immutable immutable = current.getAnnotation(com.rits.cloning.Immutable.class);
+            if( immutable != null && immutable.subClass() ){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static <T> Copier<T> create(Class<T> clazz, CopyStrategy strategy, final Cloner cloner){
+        switch (strategy){
+            case IMMUTABLE:
+                return immutable();
+            case DEEP:
+                return new Copier<T>() {
+                    @Override
+                    public T copy(T object) {
+                        return cloner.deepClone(object);
+                    }
+                };
+            default:
+                return shallow(clazz, cloner);
+        }
+    }
+
+    /**
+     * @return the copier that is used when no strategy has been registered for clazz
+     */
+    static <T> Copier<T> createDefault(Class<T> clazz, Cloner cloner){
+        return isImmutable(clazz)? Copiers.<T>immutable() : shallow(clazz, cloner);
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> Copier<T> immutable(){
+        return (Copier<T>) IMMUTABLE;
+    }
+
+    static <T> Copier<T> shallow(Class<T> clazz, final Cloner cloner){
+        if( clazz.isArray() ){
+            return arrayCopier();
+        }
+        Copier<T> copier = null;
+        if( !clazz.getName().startsWith("java.") && !clazz.getName().startsWith("javax.")
+                && !clazz.isInterface() && !Modifier.isAbstract(clazz.getModifiers()) ) {
+            copier = generate(clazz);
+        }
+        if( copier == null ){
+            copier = new Copier<T>() {
+                @Override
+                public T copy(T object) {
+                    return cloner.shallowClone(object);
+                }
+            };
+        }
+        return copier;
+    }
+
+    private static <T> Copier<T> arrayCopier(){
+        return new Copier<T>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public T copy(T object) {
+                int length = Array.getLength(object);
+                Object copy = Array.newInstance(object.getClass().getComponentType(), length);
+                System.arraycopy(object, 0, copy, 0, length);
+                return (T) copy;
+            }
+        };
+    }
+
+    /**
+     * @return a MethodHandle-based shallow copier, or null if the class cannot be instantiated or its fields are
+     * not accessible
+     */
+    private static <T> Copier<T> generate(Class<T> clazz){
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            final ObjectInstantiator<T> instantiator = OBJENESIS.getInstantiatorOf(clazz);
+            List<MethodHandle> transfers = new ArrayList<>();
+            for( Class<?> current = clazz; current != null && current != Object.class;
+                 current = current.getSuperclass() ){
+                for( Field field : current.getDeclaredFields() ){
+                    if( Modifier.isStatic(field.getModifiers()) ){
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    // (copy, original) -> copy.field = original.field, without boxing primitives
+                    MethodHandle transfer = MethodHandles.filterArguments( lookup.unreflectSetter(field), 1,
+                            lookup.unreflectGetter(field) );
+                    transfers.add( transfer.asType(FIELD_TRANSFER) );
+                }
+            }
+            final MethodHandle[] fieldTransfers = transfers.toArray( new MethodHandle[ transfers.size() ] );
+            return new Copier<T>() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public T copy(T object) {
+                    try {
+                        Object copy = instantiator.newInstance();
+                        for( MethodHandle transfer : fieldTransfers ){
+                            transfer.invokeExact(copy, (Object) object);
+                        }
+                        return (T) copy;
+                    } catch (RuntimeException | Error e) {
+                        throw e;
+                    } catch (Throwable e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+        }catch (IllegalAccessException | RuntimeException e){
+            // e.g., fields that the module system does not let us access
+            return null;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package edu.cmu.inmind.multiuser.controller.common;
+
+/**
+ * How Utils.clone copies the instances of a class before they are posted to (or read from) the blackboard.
+ */
+public enum CopyStrategy {
+    /** instances are never modified after they are created, so they are shared without copying them **/
+    IMMUTABLE,
+    /** a new instance whose fields point to the same values as the original ones **/
+    SHALLOW,
+    /** the whole graph of objects is copied **/
+    DEEP
+}
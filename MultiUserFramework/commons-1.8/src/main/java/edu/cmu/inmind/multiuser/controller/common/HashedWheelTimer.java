@@ -0,0 +1,269 @@
+package edu.cmu.inmind.multiuser.controller.common;
+
+import edu.cmu.inmind.multiuser.controller.exceptions.ExceptionHandler;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Timer for large numbers of approximate timeouts (e.g., expiration of blackboard keys). Timeouts are hashed into a
+ * circular wheel of buckets, and one worker thread advances the wheel every tick, expiring the timeouts of the
+ * current bucket. Scheduling and cancelling are O(1) and don't lock, and there is one thread for the whole process no
+ * matter how many timeouts are pending. Timeouts fire with a precision of one tick, and their tasks run on the
+ * worker thread, so they have to be short.
+ *
+ * A timer can also be created without a worker thread (ownThread = false): then its owner advances it by calling
+ * advance() from its own loop (e.g., the broker's poll loop), and the tasks run on the owner's thread, so they can use
+ * resources that are confined to it (e.g., a ZMQ socket).
+ * Reference: {@Link http://www.cs.columbia.edu/~nahum/w6998/papers/sosp87-timing-wheels.pdf}
+ */
+public class HashedWheelTimer {
+    public static final long DEFAULT_TICK_DURATION = 100; // ms
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+    private static final AtomicInteger count = new AtomicInteger();
+    private static HashedWheelTimer shared;
+
+    private final long tickDuration;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> newTimeouts = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<>();
+    private final Thread worker;
+    private final long startTime;
+    private volatile boolean stopped;
+    private long tick;
+
+    /**
+     * @param tickDuration in milliseconds
+     * @param wheelSize number of buckets (rounded up to a power of 2)
+     */
+    public HashedWheelTimer(long tickDuration, int wheelSize) {
+        this(tickDuration, wheelSize, true);
+    }
+
+    /**
+     * @param ownThread if false, the timer only advances when advance() is called
+     */
+    public HashedWheelTimer(long tickDuration, int wheelSize, boolean ownThread) {
+        if( tickDuration <= 0 || wheelSize <= 0 ){
+            throw new IllegalArgumentException("tickDuration: " + tickDuration + ", wheelSize: " + wheelSize);
+        }
+        int size = Integer.highestOneBit(wheelSize);
+        size = size < wheelSize? size << 1 : size;
+        this.tickDuration = tickDuration;
+        this.wheel = new Bucket[size];
+        for( int i = 0; i < size; i++ ){
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.startTime = System.currentTimeMillis();
+        if( ownThread ) {
+            this.worker = new Thread(new Worker(), "hashed-wheel-timer-" + count.incrementAndGet());
+            this.worker.setDaemon(true);
+            this.worker.start();
+        }else{
+            this.worker = null;
+        }
+    }
+
+    /**
+     * @return the timer shared by the whole process (created the first time it is requested)
+     */
+    public static synchronized HashedWheelTimer getShared(){
+        if( shared == null || shared.stopped ){
+            shared = new HashedWheelTimer(DEFAULT_TICK_DURATION, DEFAULT_WHEEL_SIZE);
+        }
+        return shared;
+    }
+
+    public static synchronized void stopShared(){
+        if( shared != null ){
+            shared.stop();
+            shared = null;
+        }
+    }
+
+    /**
+     * Schedules task to run once after delay
+     */
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit){
+        if( task == null ){
+            throw new NullPointerException("task");
+        }
+        Timeout timeout = new Timeout(this, task, System.currentTimeMillis() + unit.toMillis(delay));
+        if( !stopped ) {
+            newTimeouts.offer(timeout);
+        }
+        return timeout;
+    }
+
+    public void stop(){
+        stopped = true;
+        if( worker != null ) worker.interrupt();
+    }
+
+    /**
+     * Expires the timeouts of all the ticks that have elapsed since the last call. Only for timers without their own
+     * thread, and it must always be called by the same thread
+     */
+    public void advance(){
+        long now = System.currentTimeMillis();
+        while( !stopped && startTime + (tick + 1) * tickDuration <= now ){
+            advanceTick();
+        }
+    }
+
+    /**
+     * @return milliseconds until the next tick is due (0 if it is already due)
+     */
+    public long getTimeToNextTick(){
+        return Math.max(0, startTime + (tick + 1) * tickDuration - System.currentTimeMillis());
+    }
+
+    private void advanceTick(){
+        long deadline = startTime + (tick + 1) * tickDuration;
+        removeCancelledTimeouts();
+        transferNewTimeouts();
+        wheel[(int) (tick & mask)].expire(deadline);
+        tick++;
+    }
+
+    /**
+     * Unlinks the cancelled timeouts right away, so they are not held until their bucket is reached
+     */
+    private void removeCancelledTimeouts(){
+        Timeout timeout;
+        while( (timeout = cancelledTimeouts.poll()) != null ){
+            if( timeout.bucket != null ){
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    private void transferNewTimeouts(){
+        // limit the number of transfers per tick so a flood of new timeouts does not stall the wheel
+        for( int i = 0; i < 100 * 1000; i++ ){
+            Timeout timeout = newTimeouts.poll();
+            if( timeout == null ) break;
+            if( timeout.isCancelled() ) continue;
+            long ticks = Math.max( (timeout.deadline - startTime) / tickDuration, tick );
+            timeout.remainingRounds = (ticks - tick) / wheel.length;
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    private class Worker implements Runnable {
+        @Override
+        public void run() {
+            while( !stopped ){
+                long deadline = startTime + (tick + 1) * tickDuration;
+                long sleep = deadline - System.currentTimeMillis();
+                if( sleep > 0 ){
+                    try {
+                        Thread.sleep(sleep);
+                    } catch (InterruptedException e) {
+                        if( stopped ) break;
+                    }
+                    continue;
+                }
+                advanceTick();
+            }
+        }
+    }
+
+    /**
+     * Doubly-linked list of timeouts. It is only touched by the worker thread.
+     */
+    private static class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout){
+            timeout.bucket = this;
+            if( head == null ){
+                head = tail = timeout;
+            }else{
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void expire(long deadline){
+            Timeout timeout = head;
+            while( timeout != null ){
+                Timeout next = timeout.next;
+                if( timeout.isCancelled() ){
+                    remove(timeout);
+                }else if( timeout.remainingRounds <= 0 && timeout.deadline <= deadline ){
+                    remove(timeout);
+                    timeout.expire();
+                }else if( timeout.remainingRounds > 0 ){
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        void remove(Timeout timeout){
+            if( timeout.prev != null ) timeout.prev.next = timeout.next;
+            if( timeout.next != null ) timeout.next.prev = timeout.prev;
+            if( timeout == head ) head = timeout.next;
+            if( timeout == tail ) tail = timeout.prev;
+            timeout.prev = timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+
+    public static class Timeout {
+        private static final int ST_INIT = 0, ST_CANCELLED = 1, ST_EXPIRED = 2;
+        private final HashedWheelTimer timer;
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(ST_INIT);
+        private long remainingRounds;
+        private Timeout prev, next;
+        private Bucket bucket;
+
+        Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return false if the timeout already expired (or was cancelled)
+         */
+        public boolean cancel(){
+            if( state.compareAndSet(ST_INIT, ST_CANCELLED) ){
+                // only the worker thread touches the buckets, so it is the one that unlinks it
+                timer.cancelledTimeouts.offer(this);
+                return true;
+            }
+            return false;
+        }
+
+        public boolean isCancelled(){
+            return state.get() == ST_CANCELLED;
+        }
+
+        public boolean isExpired(){
+            return state.get() == ST_EXPIRED;
+        }
+
+        private void expire(){
+            if( state.compareAndSet(ST_INIT, ST_EXPIRED) ){
+                try {
+                    task.run();
+                }catch (Throwable e){
+                    ExceptionHandler.handle(e);
+                }
+            }
+        }
+    }
+}
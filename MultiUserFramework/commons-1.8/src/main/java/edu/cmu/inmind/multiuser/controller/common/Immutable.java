@@ -0,0 +1,15 @@
+package edu.cmu.inmind.multiuser.controller.common;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Add this annotation to the classes whose instances are never modified after they are created (e.g., DTOs with
+ * final fields). Utils.clone (and therefore the blackboard) passes their references through instead of copying them.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Immutable {
+}
@@ -5,6 +5,7 @@ import com.rits.cloning.Cloner;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created by oscarr on 4/20/16.
@@ -16,9 +17,53 @@ public class Utils {
     /**********************************************************************************************/
 
     private static Cloner cloner = new Cloner();
+    private static ConcurrentHashMap<Class<?>, Copier<?>> copiers = new ConcurrentHashMap<>();
 
+    /**
+     * Copies the object according to the copy strategy of its class (see setCopyStrategy). By default, JDK immutable
+     * types (String, boxed primitives, enums, etc.) are not copied, and any other object is shallow-copied.
+     */
+    @SuppressWarnings("unchecked")
     public static <T> T clone( T object ){
-        return cloner.shallowClone(object);
+        if( object == null ){
+            return null;
+        }
+        return ((Copier<T>) getCopier(object.getClass())).copy(object);
+    }
+
+    /**
+     * @return the copier of clazz. It is created (and cached) the first time an instance of clazz is copied
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Copier<T> getCopier( Class<T> clazz ){
+        Copier<T> copier = (Copier<T>) copiers.get(clazz);
+        if( copier == null ){
+            copiers.putIfAbsent(clazz, Copiers.createDefault(clazz, cloner));
+            copier = (Copier<T>) copiers.get(clazz);
+        }
+        return copier;
+    }
+
+    /**
+     * @return true if clone passes the instances of clazz through without copying them (JDK immutable types,
+     * classes annotated with @Immutable and classes registered with CopyStrategy.IMMUTABLE)
+     */
+    public static boolean isImmutable( Class<?> clazz ){
+        return getCopier(clazz) == Copiers.immutable();
+    }
+
+    /**
+     * Sets how the instances of clazz (but not its subclasses) are copied by clone.
+     */
+    public static <T> void setCopyStrategy( Class<T> clazz, CopyStrategy strategy ){
+        copiers.put(clazz, Copiers.create(clazz, strategy, cloner));
+    }
+
+    /**
+     * Registers a hand-written copier for clazz (e.g., one that copies only the mutable fields).
+     */
+    public static <T> void setCopier( Class<T> clazz, Copier<T> copier ){
+        copiers.put(clazz, copier);
     }
 
     public static <T> T deepClone( T object ){
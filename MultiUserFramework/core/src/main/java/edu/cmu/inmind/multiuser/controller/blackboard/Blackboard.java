@@ -5,15 +5,56 @@ import edu.cmu.inmind.multiuser.controller.plugin.Pluggable;
 import edu.cmu.inmind.multiuser.controller.sync.SynchronizableEvent;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
 
 /**
  * Created by oscarr on 11/6/17.
  */
 public interface Blackboard {
     SynchronizableEvent getSyncEvent(Pluggable component);
+
+    /**
+     * Keys that start with Constants.GLOBAL_NAMESPACE (e.g., "global/FLAGS.x") are not stored in this session's
+     * model but in the process-wide blackboard shared by all sessions; get, remove and subscriptions to those keys
+     * go there as well. They are journaled by the session that posts them, and await on them completes no matter
+     * which session posts them (ttl only applies to session keys)
+     */
     void post(BlackboardListener sender, String key, Object element);
+
+    /**
+     * Same as post, but the element is removed from the model after ttl milliseconds (unless the key is posted
+     * again meanwhile). Expiration is approximate (100 ms of precision)
+     */
+    void post(BlackboardListener sender, String key, Object element, long ttl);
+
+    /**
+     * Same as post, but the returned future is completed once every subscriber's onEvent has returned for this event
+     * (or the event was discarded for it, e.g. dropped by a full mailbox), with the timing of each subscriber
+     */
+    CompletableFuture<DeliveryReport> postAndTrack(BlackboardListener sender, String key, Object element);
+
+    /**
+     * Elements of this key expire ttl milliseconds after being posted, unless a ttl is given to post (0 removes
+     * the default)
+     */
+    void setDefaultTTL(String key, long ttl);
+
+    /**
+     * Whether subscribers receive an ELEMENT_REMOVED event when an element expires (false by default)
+     */
+    void setNotifyOnExpiration(boolean notifyOnExpiration);
+
+    /**
+     * Posts several related elements at once. They are written to the model together and each subscriber receives
+     * only one event, whose status is Constants.ELEMENTS_ADDED and whose element is a map with the keys it is
+     * subscribed to (or a regular ELEMENT_ADDED event if it is subscribed to only one of them). Keys of the global
+     * namespace are posted to the process-wide blackboard, each with its own event
+     */
+    void postAll(BlackboardListener sender, Map<String, Object> elements) throws Throwable;
     void setShouldThrowException(boolean shouldThrowException);
     void setComponents(Set<Pluggable> components, String sessionId) throws Throwable;
     void setKeepModel(boolean keepModel);
@@ -25,8 +66,54 @@ public interface Blackboard {
     void setModel(ConcurrentHashMap<String, Object> model);
     void remove(BlackboardListener sender, String key) throws Throwable;
     Object get(String key) throws Throwable;
+
+    /**
+     * @return a future that is completed with the element of key as soon as it is posted (or right away if the model
+     * is kept and already has it), or with a TimeoutException after timeout milliseconds (0 means no timeout). The
+     * future is completed by the posting thread, so long callbacks should use the *Async methods
+     */
+    CompletableFuture<Object> await(String key, long timeout);
+
+    /**
+     * Same as await(key, timeout), but only an element for which condition holds completes the future
+     */
+    CompletableFuture<Object> await(String key, Predicate<Object> condition, long timeout);
+
+    /**
+     * @return a future that is completed when condition holds for this blackboard. It is evaluated now and after
+     * every post and remove
+     */
+    CompletableFuture<Void> await(Predicate<Blackboard> condition, long timeout);
     ConcurrentHashMap<String, Object> getModel();
+
+    /**
+     * @return a consistent, read-only view of the model at its current version (only when the model is kept).
+     * Posts that happen afterwards are not visible through it. It has to be closed once it is not needed anymore
+     */
+    BlackboardSnapshot snapshot();
+
+    /**
+     * Max number of bytes (serialized size) of this blackboard's values that can be on the heap. When it is exceeded
+     * (or the global budget, see SpillStore.setGlobalBudget), the least recently used Serializable values are spilled
+     * to a memory-mapped file and loaded back when they are read. 0 means no budget for this session
+     */
+    void setMemoryBudget(long sessionBudget);
+
+    /**
+     * Records every post and remove of this blackboard (key, sender, version, serialized value and timestamp) in
+     * journal, so the session can be replayed later with a JournalReader. null stops recording
+     */
+    void setJournal(BlackboardJournal journal);
+    BlackboardJournal getJournal();
     void subscribe(BlackboardListener subscriber) throws Throwable;
+
+    /**
+     * Subscribes subscriber to topic (a key or a pattern, see BlackboardSubscription), but it only receives the posted
+     * elements for which filter holds. The filter runs on the posting thread before the element is copied or
+     * dispatched, so it has to be cheap and must not modify the element. It also applies to the keys of topic that
+     * subscriber is subscribed to through its annotation
+     */
+    void subscribe(BlackboardListener subscriber, String topic, Predicate<Object> filter) throws Throwable;
     boolean unsubscribe(BlackboardListener subscriber);
     BlackboardListener[] getSubscribers();
     void reset() throws Throwable;
@@ -34,4 +121,28 @@ public interface Blackboard {
     boolean areSubscribersNotified();
     ConcurrentHashMap<String, List<BlackboardListener>> getSubscriptions();
     List<BlackboardListener> getSubscription(String key) throws Throwable;
+    void setDispatcher(EventDispatcher dispatcher);
+    EventDispatcher getDispatcher();
+
+    /**
+     * Instances of this type (in any blackboard) are posted and read without copying them
+     */
+    void registerImmutable(Class<?> type);
+
+    /**
+     * Values of this key are posted and read without copying them, whatever their type is
+     */
+    void registerImmutableKey(String key);
+
+    /**
+     * Latest-value-wins delivery for this key (or pattern, e.g. "AFFECT.*"): while a subscriber still has an
+     * undelivered event of this key, newer posts replace that event instead of being queued
+     */
+    void registerConflatedKey(String key);
+
+    /**
+     * Debug mode: values that are passed through without copying are fingerprinted when posted and checked when
+     * read or removed, so modifying them afterwards is reported
+     */
+    void setVerifyImmutability(boolean verifyImmutability);
 }
@@ -0,0 +1,197 @@
+package edu.cmu.inmind.multiuser.controller.blackboard;
+
+import edu.cmu.inmind.multiuser.controller.common.CommonUtils;
+import edu.cmu.inmind.multiuser.controller.exceptions.ExceptionHandler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the mutations of one session's blackboard (posts, removes and clears), so a session can be
+ * replayed later (see JournalReader). Records are binary and are written to memory-mapped segment files
+ * (directory/sessionId-N.journal), so appending a record is a copy into the mapped buffer: there is no system call
+ * and no flush on the hot path (the OS writes the pages back, and close forces them).
+ *
+ * Record layout: int length (of the body), int crc (CRC32 of the body), and the body: byte type, long version, long
+ * timestamp, key, sender, byte encoding, [class name], value. Key and sender are an int length followed by UTF-8 bytes
+ * (the class name, whose length cannot exceed 64K, has a short length), and the value is an int length followed by
+ * its bytes. A length of 0 marks the end of the written part of a segment. The length is written last, so a record
+ * that was being written when the process died reads as the end of the segment, and the crc catches pages that were
+ * only partly written back.
+ */
+public class BlackboardJournal implements AutoCloseable {
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    static final int MAGIC = 0x4D554632; // "MUF2", records with a crc
+    static final String EXTENSION = ".journal";
+
+    public static final byte POST = 1;
+    public static final byte REMOVE = 2;
+    public static final byte CLEAR = 3;
+    public static final byte EXPIRE = 4;
+
+    static final byte ENCODING_NONE = 0;
+    static final byte ENCODING_JAVA = 1;
+    static final byte ENCODING_JSON = 2;
+    private static final byte[] NO_VALUE = new byte[]{ ENCODING_NONE };
+
+    private final String directory;
+    private final String sessionId;
+    private final int segmentSize;
+    private int segment;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private long records;
+    private boolean closed;
+    private final CRC32 crc = new CRC32();
+
+    public BlackboardJournal(String directory, String sessionId) throws IOException{
+        this(directory, sessionId, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public BlackboardJournal(String directory, String sessionId, int segmentSize) throws IOException{
+        this.directory = directory;
+        this.sessionId = sessionId;
+        this.segmentSize = segmentSize;
+        new File(directory).mkdirs();
+        // a session that is created again with the same id keeps appending after its previous segments
+        while( new File(directory, segmentName(sessionId, segment)).exists() ) segment++;
+        openSegment(segmentSize);
+    }
+
+    static String segmentName(String sessionId, int segment){
+        return String.format("%s-%06d%s", sessionId, segment, EXTENSION);
+    }
+
+    /**
+     * Serializes a value so it can be appended. It is the expensive part of journaling, so it is meant to be called
+     * before taking any lock. Serializable values are serialized with Java serialization, others (and Serializable
+     * values that have non-serializable fields) as JSON.
+     */
+    public static byte[] encode(Object value){
+        if( value == null ){
+            return NO_VALUE;
+        }
+        try {
+            if( value instanceof Serializable ){
+                try {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    bytes.write(ENCODING_JAVA);
+                    try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+                        output.writeObject(value);
+                    }
+                    return bytes.toByteArray();
+                }catch (NotSerializableException e){
+                    // it is written as JSON
+                }
+            }
+            String json = CommonUtils.toJson(value);
+            if( json == null ) return NO_VALUE;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            bytes.write(ENCODING_JSON);
+            byte[] className = value.getClass().getName().getBytes(StandardCharsets.UTF_8);
+            bytes.write(className.length >> 8);
+            bytes.write(className.length);
+            bytes.write(className);
+            bytes.write(json.getBytes(StandardCharsets.UTF_8));
+            return bytes.toByteArray();
+        }catch (IOException e){
+            ExceptionHandler.handle(e);
+            return NO_VALUE;
+        }
+    }
+
+    /**
+     * @param value encoded value (see encode)
+     */
+    public synchronized void append(byte type, long version, String sender, String key, byte[] value){
+        if( closed ){
+            return;
+        }
+        byte[] keyBytes = key == null? new byte[0] : key.getBytes(StandardCharsets.UTF_8);
+        byte[] senderBytes = sender == null? new byte[0] : sender.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 8 + 8 + 4 + keyBytes.length + 4 + senderBytes.length + 4 + value.length;
+        try {
+            // 8 bytes for this record's length and crc, and 4 for the end marker
+            if( buffer.remaining() < length + 12 ){
+                closeSegment();
+                segment++;
+                openSegment( Math.max(segmentSize, length + 16) );
+            }
+            int position = buffer.position();
+            buffer.position(position + 8);
+            buffer.put(type);
+            buffer.putLong(version);
+            buffer.putLong(System.currentTimeMillis());
+            buffer.putInt(keyBytes.length);
+            buffer.put(keyBytes);
+            buffer.putInt(senderBytes.length);
+            buffer.put(senderBytes);
+            buffer.putInt(value.length);
+            buffer.put(value);
+            ByteBuffer body = buffer.duplicate();
+            body.position(position + 8).limit(position + 8 + length);
+            crc.reset();
+            crc.update(body);
+            buffer.putInt(position + 4, (int) crc.getValue());
+            buffer.putInt(position, length);
+            records++;
+        }catch (IOException e){
+            ExceptionHandler.handle(e);
+        }
+    }
+
+    /**
+     * Forces the written records to disk
+     */
+    public synchronized void flush(){
+        if( !closed ) buffer.force();
+    }
+
+    public synchronized long getNumOfRecords() {
+        return records;
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    @Override
+    public synchronized void close(){
+        if( !closed ){
+            closed = true;
+            try {
+                closeSegment();
+            }catch (IOException e){
+                ExceptionHandler.handle(e);
+            }
+        }
+    }
+
+    private void openSegment(int size) throws IOException{
+        file = new RandomAccessFile(new File(directory, segmentName(sessionId, segment)), "rw");
+        channel = file.getChannel();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.putInt(MAGIC);
+    }
+
+    private void closeSegment() throws IOException{
+        buffer.force();
+        channel.close();
+        file.close();
+    }
+}
@@ -0,0 +1,161 @@
+package edu.cmu.inmind.multiuser.controller.blackboard;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-key and per-subscriber metrics of all the blackboards of the process (i.e., aggregated across sessions), so a
+ * metrics exporter can poll which keys are hot and which subscribers are slow. They are off by default (see
+ * Config.Builder.setBlackboardMetrics); when they are off, the post path only reads a volatile flag.
+ *
+ * To bound the memory, only the first MAX_KEYS keys (and subscriber classes) get their own metrics, the rest are
+ * aggregated under OTHER.
+ */
+public class BlackboardMetrics {
+    public static final int MAX_KEYS = 4096;
+    public static final String OTHER = "other";
+    private static volatile boolean enabled = false;
+    private static final ConcurrentHashMap<String, KeyMetrics> keys = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, SubscriberMetrics> subscribers = new ConcurrentHashMap<>();
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        BlackboardMetrics.enabled = enabled;
+    }
+
+    public static KeyMetrics getKeyMetrics(String key){
+        KeyMetrics metrics = keys.get(key);
+        if( metrics == null ){
+            if( keys.size() >= MAX_KEYS ){
+                // OTHER exists already, so it is found without allocating
+                key = OTHER;
+                metrics = keys.get(key);
+            }
+            if( metrics == null ){
+                KeyMetrics created = new KeyMetrics();
+                metrics = keys.putIfAbsent(key, created);
+                if( metrics == null ) metrics = created;
+            }
+        }
+        return metrics;
+    }
+
+    public static SubscriberMetrics getSubscriberMetrics(Class<?> subscriberClass){
+        String name = subscriberClass.getName();
+        SubscriberMetrics metrics = subscribers.get(name);
+        if( metrics == null ){
+            if( subscribers.size() >= MAX_KEYS ){
+                name = OTHER;
+                metrics = subscribers.get(name);
+            }
+            if( metrics == null ){
+                SubscriberMetrics created = new SubscriberMetrics();
+                metrics = subscribers.putIfAbsent(name, created);
+                if( metrics == null ) metrics = created;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * @return key -> metrics (a read-only view)
+     */
+    public static Map<String, KeyMetrics> getKeys(){
+        return Collections.unmodifiableMap(keys);
+    }
+
+    /**
+     * @return subscriber class name -> metrics (a read-only view)
+     */
+    public static Map<String, SubscriberMetrics> getSubscribers(){
+        return Collections.unmodifiableMap(subscribers);
+    }
+
+    public static void reset(){
+        keys.clear();
+        subscribers.clear();
+    }
+
+    public static class KeyMetrics {
+        private final LongAdder posts = new LongAdder();
+        private final LongAdder deliveries = new LongAdder();
+        private final LatencyHistogram cloneTime = new LatencyHistogram();
+        private final LatencyHistogram queueWait = new LatencyHistogram();
+
+        public void onPost(){
+            posts.increment();
+        }
+
+        /**
+         * @param fanOut number of subscribers the posted element was dispatched to
+         */
+        public void onDelivered(int fanOut){
+            deliveries.add(fanOut);
+        }
+
+        public long getPosts() {
+            return posts.sum();
+        }
+
+        /**
+         * @return number of events dispatched to subscribers
+         */
+        public long getDeliveries() {
+            return deliveries.sum();
+        }
+
+        public double getAverageFanOut(){
+            long n = posts.sum();
+            return n == 0? 0 : (double) deliveries.sum() / n;
+        }
+
+        /**
+         * @return time spent copying the posted elements
+         */
+        public LatencyHistogram getCloneTime() {
+            return cloneTime;
+        }
+
+        /**
+         * @return time since the element was posted until a subscriber's onEvent started
+         */
+        public LatencyHistogram getQueueWait() {
+            return queueWait;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[posts: %s, avgFanOut: %.2f, cloneTime: %s, queueWait: %s]", getPosts(),
+                    getAverageFanOut(), cloneTime, queueWait);
+        }
+    }
+
+    public static class SubscriberMetrics {
+        private final LatencyHistogram queueWait = new LatencyHistogram();
+        private final LatencyHistogram onEvent = new LatencyHistogram();
+
+        /**
+         * @return time since the element was posted until onEvent started
+         */
+        public LatencyHistogram getQueueWait() {
+            return queueWait;
+        }
+
+        /**
+         * @return time spent in onEvent
+         */
+        public LatencyHistogram getOnEvent() {
+            return onEvent;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[queueWait: %s, onEvent: %s]", queueWait, onEvent);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package edu.cmu.inmind.multiuser.controller.blackboard;
+
+import java.util.Set;
+
+/**
+ * Consistent, read-only view of the blackboard model at one version: posts that happen after the snapshot was taken
+ * are not visible through it, so a component can read several keys without seeing a mix of old and new values.
+ * Elements are not copied, so they must not be modified. Close the snapshot as soon as you are done with it, so the
+ * old versions it holds can be reclaimed.
+ */
+public interface BlackboardSnapshot extends AutoCloseable {
+
+    /**
+     * @return the version of the model this snapshot reads
+     */
+    long getVersion();
+
+    /**
+     * @return the element of key at this snapshot's version, or null if there was none
+     */
+    Object get(String key);
+
+    boolean contains(String key);
+
+    /**
+     * @return the keys that had an element at this snapshot's version
+     */
+    Set<String> keySet();
+
+    @Override
+    void close();
+}
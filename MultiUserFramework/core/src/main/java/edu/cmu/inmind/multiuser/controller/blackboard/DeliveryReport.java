@@ -0,0 +1,121 @@
+package edu.cmu.inmind.multiuser.controller.blackboard;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Result of Blackboard.postAndTrack: how the event was delivered to each of the subscribers of the key. All times are
+ * in nanoseconds.
+ */
+public class DeliveryReport {
+    private final String key;
+    private final long postedAt = System.nanoTime();
+    private final ConcurrentLinkedQueue<SubscriberDelivery> deliveries = new ConcurrentLinkedQueue<>();
+    private volatile long completedAt;
+
+    public DeliveryReport(String key) {
+        this.key = key;
+    }
+
+    void add(SubscriberDelivery delivery){
+        deliveries.add(delivery);
+    }
+
+    void complete(){
+        completedAt = System.nanoTime();
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    long getPostedAt() {
+        return postedAt;
+    }
+
+    /**
+     * @return time from the post until the last subscriber returned from onEvent
+     */
+    public long getElapsed() {
+        return completedAt - postedAt;
+    }
+
+    /**
+     * @return one entry per subscriber, in the order they finished
+     */
+    public List<SubscriberDelivery> getDeliveries() {
+        return new ArrayList<>(deliveries);
+    }
+
+    /**
+     * @return true if every subscriber received the event and none of them threw an exception
+     */
+    public boolean isSuccessful(){
+        for( SubscriberDelivery delivery : deliveries ){
+            if( delivery.isDiscarded() || delivery.getError() != null ) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[key: %s, elapsed: %s, deliveries: %s]", key, getElapsed(), deliveries);
+    }
+
+    public static class SubscriberDelivery {
+        private final BlackboardListener subscriber;
+        private final long queued;
+        private final long duration;
+        private final Throwable error;
+        private final boolean discarded;
+
+        SubscriberDelivery(BlackboardListener subscriber, long queued, long duration, Throwable error,
+                           boolean discarded) {
+            this.subscriber = subscriber;
+            this.queued = queued;
+            this.duration = duration;
+            this.error = error;
+            this.discarded = discarded;
+        }
+
+        public BlackboardListener getSubscriber() {
+            return subscriber;
+        }
+
+        /**
+         * @return time from the post until onEvent was called
+         */
+        public long getQueued() {
+            return queued;
+        }
+
+        /**
+         * @return time spent in onEvent
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        /**
+         * @return what onEvent threw, if anything
+         */
+        public Throwable getError() {
+            return error;
+        }
+
+        /**
+         * @return true if the event never reached the subscriber (e.g., it was dropped because its mailbox was full,
+         * or replaced by a newer event of a conflated key)
+         */
+        public boolean isDiscarded() {
+            return discarded;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[subscriber: %s, queued: %s, duration: %s, error: %s, discarded: %s]",
+                    subscriber.getClass().getSimpleName(), queued, duration, error, discarded);
+        }
+    }
+}
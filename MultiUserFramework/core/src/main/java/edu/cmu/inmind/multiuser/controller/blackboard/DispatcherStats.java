@@ -0,0 +1,128 @@
+package edu.cmu.inmind.multiuser.controller.blackboard;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters used to size the blackboard event dispatchers. Queue depth is the number of events that have been
+ * dispatched but whose delivery has not started yet, and delivery latency is the time an event waits since it is
+ * dispatched until its subscriber's onEvent starts running.
+ */
+public class DispatcherStats {
+    private final LongAdder dispatched = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder callerRuns = new LongAdder();
+    private final LongAdder conflated = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder totalLatency = new LongAdder();
+    private final AtomicLong queueDepth = new AtomicLong();
+    private final AtomicLong maxQueueDepth = new AtomicLong();
+    private final AtomicLong maxLatency = new AtomicLong();
+
+    /**
+     * It has to be called right before the event is queued (or executed)
+     * @return the timestamp (in nanoseconds) that has to be passed to onDeliveryStarted
+     */
+    public long onDispatched(){
+        dispatched.increment();
+        updateMax( maxQueueDepth, queueDepth.incrementAndGet() );
+        return System.nanoTime();
+    }
+
+    public void onDeliveryStarted(long dispatchedAt){
+        queueDepth.decrementAndGet();
+        delivered.increment();
+        long latency = System.nanoTime() - dispatchedAt;
+        totalLatency.add( latency );
+        updateMax( maxLatency, latency );
+    }
+
+    /**
+     * The executor was saturated, so the posting thread delivered the event by itself
+     */
+    public void onCallerRuns(){
+        callerRuns.increment();
+    }
+
+    /**
+     * A pending event was replaced by a newer one of the same key (latest-value-wins), so it won't be delivered
+     */
+    public void onConflated(){
+        conflated.increment();
+    }
+
+    /**
+     * An event was discarded because the subscriber's queue was full
+     * @param wasQueued true if the discarded event was already queued (e.g., drop oldest), false if it was the new one
+     */
+    public void onDropped(boolean wasQueued){
+        dropped.increment();
+        if( wasQueued ){
+            queueDepth.decrementAndGet();
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value){
+        long current;
+        while( value > (current = max.get()) && !max.compareAndSet(current, value) );
+    }
+
+    public long getDispatched() {
+        return dispatched.sum();
+    }
+
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    public long getCallerRuns() {
+        return callerRuns.sum();
+    }
+
+    public long getConflated() {
+        return conflated.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    public long getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    public double getAverageLatencyMicros() {
+        long count = delivered.sum();
+        return count == 0? 0 : totalLatency.sum() / (count * 1000d);
+    }
+
+    public double getMaxLatencyMicros() {
+        return maxLatency.get() / 1000d;
+    }
+
+    /**
+     * Resets the max values and the accumulated ones, but not the current queue depth
+     */
+    public void reset(){
+        dispatched.reset();
+        delivered.reset();
+        callerRuns.reset();
+        conflated.reset();
+        dropped.reset();
+        totalLatency.reset();
+        maxQueueDepth.set( queueDepth.get() );
+        maxLatency.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[dispatched: %s, delivered: %s, callerRuns: %s, conflated: %s, dropped: %s, " +
+                "queueDepth: %s, maxQueueDepth: %s, avgLatency: %.2fus, maxLatency: %.2fus]", getDispatched(), getDelivered(),
+                getCallerRuns(), getConflated(), getDropped(), getQueueDepth(), getMaxQueueDepth(), getAverageLatencyMicros(),
+                getMaxLatencyMicros());
+    }
+}
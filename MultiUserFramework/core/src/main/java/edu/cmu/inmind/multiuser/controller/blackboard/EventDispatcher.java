@@ -0,0 +1,29 @@
+package edu.cmu.inmind.multiuser.controller.blackboard;
+
+/**
+ * An EventDispatcher decides on which thread (and in which order) the blackboard delivers an event to each one of
+ * its subscribers. Each blackboard owns one dispatcher, which can be set through Blackboard.setDispatcher or
+ * through the blackboard dispatch mode of Config.
+ */
+public interface EventDispatcher {
+
+    /**
+     * Schedules the delivery of one event to one subscriber.
+     * @param sessionId session of the blackboard that is posting the event
+     * @param subscriber the listener whose onEvent will be called by delivery
+     * @param delivery the actual call to subscriber.onEvent
+     * @return false if the event was rejected because the subscriber's queue is full (only with
+     * Constants.OVERFLOW_FAIL), true otherwise
+     */
+    boolean dispatch(String sessionId, BlackboardListener subscriber, Runnable delivery);
+
+    /**
+     * @return the counters (queue depth, delivery latency, etc.) of this dispatcher
+     */
+    DispatcherStats getStats();
+
+    /**
+     * Releases the resources that belong only to this dispatcher (shared resources are not released)
+     */
+    void close();
+}
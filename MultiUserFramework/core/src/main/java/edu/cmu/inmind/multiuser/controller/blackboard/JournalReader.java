@@ -0,0 +1,311 @@
+package edu.cmu.inmind.multiuser.controller.blackboard;
+
+import edu.cmu.inmind.multiuser.controller.common.CommonUtils;
+import edu.cmu.inmind.multiuser.controller.common.Constants;
+import edu.cmu.inmind.multiuser.controller.exceptions.ErrorMessages;
+import edu.cmu.inmind.multiuser.controller.exceptions.ExceptionHandler;
+import edu.cmu.inmind.multiuser.controller.exceptions.MultiuserException;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+
+/**
+ * Reads the journal that a BlackboardJournal wrote for one session, in the order the mutations happened, and replays
+ * it into another blackboard (e.g., a fresh one, to reproduce an issue or to benchmark the blackboard with a real
+ * workload). Replay does not wait between records, so it runs as fast as the target blackboard takes the posts.
+ *
+ * Records are streamed (see iterator): only one segment is mapped at a time and each record is decoded when it is
+ * reached, so a long session does not have to fit in the heap. A record whose crc does not match ends its segment.
+ */
+public class JournalReader implements Iterable<JournalReader.JournalRecord> {
+    private final String directory;
+    private final String sessionId;
+
+    public JournalReader(String directory, String sessionId) {
+        this.directory = directory;
+        this.sessionId = sessionId;
+    }
+
+    /**
+     * @return the records of the session, oldest first, read as the iteration goes
+     */
+    @Override
+    public Iterator<JournalRecord> iterator() {
+        return new RecordIterator();
+    }
+
+    /**
+     * @return all the records of the session, oldest first. They are all loaded, iterate to stream them instead
+     */
+    public List<JournalRecord> read() throws IOException{
+        List<JournalRecord> records = new ArrayList<>();
+        for( JournalRecord record : this ){
+            records.add(record);
+        }
+        return records;
+    }
+
+    /**
+     * Applies the records of the session to target: posts are posted and removes, expirations and clears are
+     * removed, all of them on behalf of a sender that belongs to this session. Records whose value cannot be
+     * decoded (e.g., its class is not in the classpath) are skipped.
+     * @return the number of records that were applied
+     */
+    public int replay(Blackboard target) throws Throwable{
+        BlackboardListener sender = new ReplaySender(sessionId);
+        int applied = 0;
+        for( JournalRecord record : this ){
+            switch (record.getType()){
+                case BlackboardJournal.POST:
+                    Object value = record.getValue();
+                    if( value == null ) continue;
+                    target.post(sender, record.getKey(), value);
+                    break;
+                case BlackboardJournal.REMOVE:
+                case BlackboardJournal.EXPIRE:
+                    target.remove(sender, record.getKey());
+                    break;
+                case BlackboardJournal.CLEAR:
+                    target.remove(sender, Constants.REMOVE_ALL);
+                    break;
+                default:
+                    continue;
+            }
+            applied++;
+        }
+        return applied;
+    }
+
+    /**
+     * Walks the segments in order, mapping the next one when the current one ends
+     */
+    private class RecordIterator implements Iterator<JournalRecord> {
+        private final CRC32 crc = new CRC32();
+        private int next; // the segment that is mapped next
+        private File segment;
+        private MappedByteBuffer buffer;
+        private JournalRecord record;
+
+        @Override
+        public boolean hasNext() {
+            while( record == null ){
+                if( buffer == null && !nextSegment() ){
+                    return false;
+                }
+                record = readRecord();
+                if( record == null ){
+                    buffer = null; // the end of this segment
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public JournalRecord next() {
+            if( !hasNext() ){
+                throw new NoSuchElementException();
+            }
+            JournalRecord next = record;
+            record = null;
+            return next;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * @return false if there are no more segments
+         */
+        private boolean nextSegment(){
+            while( (segment = new File(directory, BlackboardJournal.segmentName(sessionId, next))).exists() ){
+                next++;
+                try (RandomAccessFile file = new RandomAccessFile(segment, "r"); FileChannel channel = file.getChannel()) {
+                    // the mapping stays valid after the channel is closed
+                    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }catch (IOException e){
+                    ExceptionHandler.handle(e);
+                    continue;
+                }
+                if( buffer.remaining() >= 4 && buffer.getInt() == BlackboardJournal.MAGIC ){
+                    return true;
+                }
+                ExceptionHandler.handle( new MultiuserException(ErrorMessages.JOURNAL_CORRUPTED, segment, 0) );
+            }
+            buffer = null;
+            return false;
+        }
+
+        /**
+         * @return the next record of the segment, or null at its end (or at a record that is not valid)
+         */
+        private JournalRecord readRecord(){
+            if( buffer.remaining() < 8 ){
+                return null;
+            }
+            int position = buffer.position();
+            int length = buffer.getInt();
+            if( length == 0 ){
+                return null; // end of the written part
+            }
+            try {
+                int checksum = buffer.getInt();
+                if( length < 0 || length > buffer.remaining() ){
+                    throw new BufferUnderflowException();
+                }
+                ByteBuffer body = buffer.duplicate();
+                body.limit(body.position() + length);
+                crc.reset();
+                crc.update(body);
+                if( (int) crc.getValue() != checksum ){
+                    throw new BufferUnderflowException();
+                }
+                byte type = buffer.get();
+                long version = buffer.getLong();
+                long timestamp = buffer.getLong();
+                String key = readString(buffer);
+                String sender = readString(buffer);
+                byte[] value = new byte[ buffer.getInt() ];
+                buffer.get(value);
+                return new JournalRecord(type, version, timestamp, key, sender, value);
+            }catch (BufferUnderflowException | NegativeArraySizeException e){
+                ExceptionHandler.handle( new MultiuserException(ErrorMessages.JOURNAL_CORRUPTED, segment, position) );
+                return null;
+            }
+        }
+    }
+
+    private static String readString(ByteBuffer buffer){
+        byte[] bytes = new byte[ buffer.getInt() ];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * One mutation of the blackboard. The value is decoded every time getValue is called, so each call returns a
+     * new instance
+     */
+    public static class JournalRecord {
+        private final byte type;
+        private final long version;
+        private final long timestamp;
+        private final String key;
+        private final String sender;
+        private final byte[] value;
+
+        JournalRecord(byte type, long version, long timestamp, String key, String sender, byte[] value) {
+            this.type = type;
+            this.version = version;
+            this.timestamp = timestamp;
+            this.key = key;
+            this.sender = sender;
+            this.value = value;
+        }
+
+        /**
+         * @return one of BlackboardJournal.POST, REMOVE, CLEAR or EXPIRE
+         */
+        public byte getType() {
+            return type;
+        }
+
+        /**
+         * @return the version of the model after this mutation (or the current one, if the model is not kept)
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return the class name of the component that made the mutation
+         */
+        public String getSender() {
+            return sender;
+        }
+
+        /**
+         * @return the serialized size of the value
+         */
+        public int getValueSize() {
+            return value.length;
+        }
+
+        public Object getValue(){
+            try {
+                switch (value[0]){
+                    case BlackboardJournal.ENCODING_JAVA:
+                        try (ObjectInputStream input = new ObjectInputStream(
+                                new ByteArrayInputStream(value, 1, value.length - 1))) {
+                            return input.readObject();
+                        }
+                    case BlackboardJournal.ENCODING_JSON:
+                        int classLength = ((value[1] & 0xFF) << 8) | (value[2] & 0xFF);
+                        String className = new String(value, 3, classLength, StandardCharsets.UTF_8);
+                        String json = new String(value, 3 + classLength, value.length - 3 - classLength,
+                                StandardCharsets.UTF_8);
+                        return CommonUtils.fromJson(json, Class.forName(className));
+                    default:
+                        return null;
+                }
+            }catch (Throwable e){
+                ExceptionHandler.handle(e);
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[type: %s, version: %s, timestamp: %s, key: %s, sender: %s, valueSize: %s]", type,
+                    version, timestamp, key, sender, value.length);
+        }
+    }
+
+    /**
+     * Sender of the replayed mutations
+     */
+    private static class ReplaySender implements BlackboardListener {
+        private final String sessionId;
+
+        ReplaySender(String sessionId) {
+            this.sessionId = sessionId;
+        }
+
+        @Override
+        public void onEvent(Blackboard blackboard, BlackboardEvent event) {}
+
+        @Override
+        public String getSessionId() {
+            return sessionId;
+        }
+
+        @Override
+        public boolean isClosing() {
+            return false;
+        }
+
+        @Override
+        public void addBlackboard(String sessionId, Blackboard blackboard) {}
+    }
+}
@@ -0,0 +1,101 @@
+package edu.cmu.inmind.multiuser.controller.blackboard;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations (in nanoseconds) with log-linear buckets, like HdrHistogram: each power of 2 is
+ * split into SUB_BUCKETS linear buckets, so any value is recorded with a relative error below 1/SUB_BUCKETS (~6%)
+ * using a fixed, small array, whatever the range of the values is. Recording a value is one increment on its bucket
+ * plus two striped counters.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos){
+        if( nanos < 0 ) nanos = 0;
+        buckets.incrementAndGet( index(nanos) );
+        count.increment();
+        total.add(nanos);
+        long current;
+        while( nanos > (current = max.get()) && !max.compareAndSet(current, nanos) );
+    }
+
+    static int index(long value){
+        if( value < SUB_BUCKETS ){
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the highest value that falls in bucket index
+     */
+    static long highestValue(int index){
+        if( index < SUB_BUCKETS ){
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = index % SUB_BUCKETS;
+        long lowest = (1L << exponent) | (subBucket << (exponent - SUB_BUCKET_BITS));
+        return lowest + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    public long getCount(){
+        return count.sum();
+    }
+
+    public long getMax(){
+        return max.get();
+    }
+
+    public double getMean(){
+        long n = count.sum();
+        return n == 0? 0 : (double) total.sum() / n;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the value below which percentile % of the recorded values fall (within the bucket precision)
+     */
+    public long getPercentile(double percentile){
+        long n = count.sum();
+        if( n == 0 ){
+            return 0;
+        }
+        long rank = (long) Math.ceil( n * Math.min(100, Math.max(0, percentile)) / 100d );
+        long seen = 0;
+        for( int i = 0; i < NUM_BUCKETS; i++ ){
+            seen += buckets.get(i);
+            if( seen >= rank && seen > 0 ){
+                return Math.min( highestValue(i), max.get() );
+            }
+        }
+        return max.get();
+    }
+
+    public void reset(){
+        for( int i = 0; i < NUM_BUCKETS; i++ ){
+            buckets.set(i, 0);
+        }
+        count.reset();
+        total.reset();
+        max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[count: %s, mean: %.2fus, p50: %.2fus, p99: %.2fus, max: %.2fus]", getCount(),
+                getMean() / 1000, getPercentile(50) / 1000d, getPercentile(99) / 1000d, getMax() / 1000d);
+    }
+}
@@ -9,6 +9,8 @@ import org.zeromq.ZMsg;
 public class ZMsgWrapper {
     private ZMsg msg;
     private ZFrame replyTo;
+    /** journal id the broker gave to the request, null if it is not journaled **/
+    private ZFrame requestId;
 
     public ZMsgWrapper() {
     }
@@ -18,6 +20,11 @@ public class ZMsgWrapper {
         this.replyTo = replyTo;
     }
 
+    public ZMsgWrapper(ZMsg msg, ZFrame replyTo, ZFrame requestId) {
+        this(msg, replyTo);
+        this.requestId = requestId;
+    }
+
     public ZMsg getMsg() {
         return msg;
     }
@@ -26,16 +33,22 @@ public class ZMsgWrapper {
         return replyTo;
     }
 
+    public ZFrame getRequestId() {
+        return requestId;
+    }
+
     public ZMsgWrapper duplicate(){
         if( msg == null || replyTo == null ){
             return this;
         }
-        return new ZMsgWrapper( this.getMsg().duplicate(), this.getReplyTo().duplicate() );
+        return new ZMsgWrapper( this.getMsg().duplicate(), this.getReplyTo().duplicate(),
+                requestId == null? null : requestId.duplicate() );
     }
 
     public void destroy() throws Throwable{
         if(msg != null) msg.destroy();
         if(replyTo != null) replyTo.destroy();
+        if(requestId != null) requestId.destroy();
     }
 
     @Override
@@ -28,7 +28,20 @@ public class Config {
     private int numOfSockets;
     private int corePoolSize;
     private boolean isDebugMode;
-
+    private String blackboardDispatchMode;
+    private int blackboardPoolSize;
+    private int blackboardQueueCapacity;
+    private int blackboardMailboxCapacity;
+    private String blackboardOverflowPolicy;
+    private long blackboardSessionBudget;
+    private long blackboardGlobalBudget;
+    private String pathBlackboardJournal;
+    private boolean isBlackboardMetricsOn;
+    private int numOfBrokerShards;
+    private long heartbeatInterval;
+    private int heartbeatLiveness;
+    private int flowControlCredits;
+    private String requestJournalPath;
 
     private Config( Builder builder) {
         this.sessionManagerPort = builder.sessionManagerPort;
@@ -46,6 +59,20 @@ public class Config {
         this.numOfSockets = builder.numOfSockets;
         this.corePoolSize = builder.corePoolSize;
         this.isDebugMode = builder.isDebugMode;
+        this.blackboardDispatchMode = builder.blackboardDispatchMode;
+        this.blackboardPoolSize = builder.blackboardPoolSize;
+        this.blackboardQueueCapacity = builder.blackboardQueueCapacity;
+        this.blackboardMailboxCapacity = builder.blackboardMailboxCapacity;
+        this.blackboardOverflowPolicy = builder.blackboardOverflowPolicy;
+        this.blackboardSessionBudget = builder.blackboardSessionBudget;
+        this.blackboardGlobalBudget = builder.blackboardGlobalBudget;
+        this.pathBlackboardJournal = builder.pathBlackboardJournal;
+        this.isBlackboardMetricsOn = builder.isBlackboardMetricsOn;
+        this.numOfBrokerShards = builder.numOfBrokerShards;
+        this.heartbeatInterval = builder.heartbeatInterval;
+        this.heartbeatLiveness = builder.heartbeatLiveness;
+        this.flowControlCredits = builder.flowControlCredits;
+        this.requestJournalPath = builder.requestJournalPath;
         ExceptionHandler.setExceptionTraceLevel(this.exceptionTraceLevel);
     }
 
@@ -183,6 +210,67 @@ public class Config {
         return isDebugMode;
     }
 
+    public String getBlackboardDispatchMode() {
+        return blackboardDispatchMode;
+    }
+
+    public Config setBlackboardDispatchMode(String blackboardDispatchMode) {
+        this.blackboardDispatchMode = blackboardDispatchMode;
+        return this;
+    }
+
+    public int getBlackboardPoolSize() {
+        return blackboardPoolSize;
+    }
+
+    public int getBlackboardQueueCapacity() {
+        return blackboardQueueCapacity;
+    }
+
+    public int getBlackboardMailboxCapacity() {
+        return blackboardMailboxCapacity;
+    }
+
+    public String getBlackboardOverflowPolicy() {
+        return blackboardOverflowPolicy;
+    }
+
+    public long getBlackboardSessionBudget() {
+        return blackboardSessionBudget;
+    }
+
+    public long getBlackboardGlobalBudget() {
+        return blackboardGlobalBudget;
+    }
+
+    public String getPathBlackboardJournal() {
+        return pathBlackboardJournal;
+    }
+
+    public boolean isBlackboardMetricsOn() {
+        return isBlackboardMetricsOn;
+    }
+
+    public int getNumOfBrokerShards() {
+        return numOfBrokerShards;
+    }
+
+    public long getHeartbeatInterval() {
+        return heartbeatInterval;
+    }
+
+    public int getHeartbeatLiveness() {
+        return heartbeatLiveness;
+    }
+
+    public int getFlowControlCredits() {
+        return flowControlCredits;
+    }
+
+    public String getRequestJournalPath() {
+        return requestJournalPath;
+    }
+
     /** ========================================================== **/
 
     public static class Builder{
@@ -201,6 +289,20 @@ public class Config {
         public int numOfSockets = 1;
         private int corePoolSize = 0;
         private boolean isDebugMode;
+        private String blackboardDispatchMode = Constants.DISPATCH_SHARED_POOL;
+        private int blackboardPoolSize = 0; // 0 means 2 threads per core
+        private int blackboardQueueCapacity = 0; // 0 means 10K events
+        private int blackboardMailboxCapacity = 0; // 0 means unbounded
+        private String blackboardOverflowPolicy = Constants.OVERFLOW_BLOCK;
+        private long blackboardSessionBudget = 0; // 0 means unlimited
+        private long blackboardGlobalBudget = 0; // 0 means unlimited
+        private String pathBlackboardJournal; // null means no journal
+        private boolean isBlackboardMetricsOn;
+        private int numOfBrokerShards = 1; // 1 means a single broker thread
+        private long heartbeatInterval = 2500; // ms
+        private int heartbeatLiveness = 5;
+        private int flowControlCredits = Constants.DEFAULT_FLOW_CONTROL_CREDITS;
+        private String requestJournalPath; // null means the requests are only kept in memory
 
         public Builder setSessionManagerPort(int sessionManagerPort) {
             if( sessionManagerPort <= 0 ){
@@ -323,6 +425,150 @@ public class Config {
             this.isDebugMode = isDebugMode;
             return this;
         }
+
+        /**
+         * How the blackboard delivers events to subscribers.
+         * @param blackboardDispatchMode one of Constants.DISPATCH_SHARED_POOL (default),
+         *                               Constants.DISPATCH_SESSION_SERIAL, Constants.DISPATCH_CALLER_RUNS or
+         *                               Constants.DISPATCH_MAILBOX
+         * @return this builder
+         */
+        public Builder setBlackboardDispatchMode(String blackboardDispatchMode){
+            if( blackboardDispatchMode == null || blackboardDispatchMode.isEmpty() ){
+                ExceptionHandler.handle( new MultiuserException(ErrorMessages.ANY_ELEMENT_IS_NULL,
+                        "blackboardDispatchMode: " + blackboardDispatchMode) );
+                return this;
+            }
+            this.blackboardDispatchMode = blackboardDispatchMode;
+            return this;
+        }
+
+        /**
+         * Size of the thread pool shared by all the blackboards, and max number of events waiting for a thread
+         * (0 means the default for both)
+         */
+        public Builder setBlackboardPool(int poolSize, int queueCapacity){
+            if( poolSize < 0 || queueCapacity < 0 ){
+                ExceptionHandler.handle( new MultiuserException(ErrorMessages.INCORRECT_CONFIG_VALUE,
+                        "blackboardPool", "poolSize: " + poolSize + ", queueCapacity: " + queueCapacity,
+                        "zero or positive") );
+                return this;
+            }
+            this.blackboardPoolSize = poolSize;
+            this.blackboardQueueCapacity = queueCapacity;
+            return this;
+        }
+
+        /**
+         * Only for Constants.DISPATCH_MAILBOX: max number of pending events per subscriber (0 means unbounded) and
+         * what to do when a mailbox is full (one of Constants.OVERFLOW_*, by default OVERFLOW_BLOCK)
+         */
+        public Builder setBlackboardMailbox(int capacity, String overflowPolicy){
+            if( overflowPolicy == null || overflowPolicy.isEmpty() ){
+                ExceptionHandler.handle( new MultiuserException(ErrorMessages.ANY_ELEMENT_IS_NULL,
+                        "overflowPolicy: " + overflowPolicy) );
+                return this;
+            }
+            if( capacity < 0 ){
+                ExceptionHandler.handle( new MultiuserException(ErrorMessages.INCORRECT_CONFIG_VALUE,
+                        "blackboardMailboxCapacity", capacity, "zero (unbounded) or positive") );
+                return this;
+            }
+            this.blackboardMailboxCapacity = capacity;
+            this.blackboardOverflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        /**
+         * Max number of bytes of blackboard values that can be on the heap, per session and for all the sessions
+         * together (0 means unlimited). Least recently used values over the budget are spilled to disk
+         */
+        public Builder setBlackboardMemoryBudget(long sessionBudget, long globalBudget){
+            if( sessionBudget < 0 || globalBudget < 0 ){
+                ExceptionHandler.handle( new MultiuserException(ErrorMessages.INCORRECT_CONFIG_VALUE,
+                        "blackboardMemoryBudget", "sessionBudget: " + sessionBudget + ", globalBudget: "
+                        + globalBudget, "zero (unlimited) or positive") );
+                return this;
+            }
+            this.blackboardSessionBudget = sessionBudget;
+            this.blackboardGlobalBudget = globalBudget;
+            return this;
+        }
+
+        /**
+         * Directory where each session's blackboard journal is written (see BlackboardJournal and JournalReader)
+         */
+        public Builder setPathBlackboardJournal(String pathBlackboardJournal) {
+            ExceptionHandler.checkPath(pathBlackboardJournal);
+            this.pathBlackboardJournal = pathBlackboardJournal;
+            return this;
+        }
+
+        /**
+         * Per-key and per-subscriber metrics of the blackboards (see BlackboardMetrics). Off by default
+         */
+        public Builder setBlackboardMetrics(boolean isBlackboardMetricsOn) {
+            this.isBlackboardMetricsOn = isBlackboardMetricsOn;
+            return this;
+        }
+
+        /**
+         * Number of broker threads that share the session manager port (see ShardedBroker). Sessions are assigned
+         * to a shard by hashing their service name. When it is greater than 1, setNumOfSockets is ignored
+         */
+        public Builder setNumOfBrokerShards(int numOfBrokerShards) {
+            if( numOfBrokerShards < 1 || numOfBrokerShards > 200 ){
+                ExceptionHandler.handle( new MultiuserException(ErrorMessages.INCORRECT_CONFIG_VALUE,
+                        "numOfBrokerShards", numOfBrokerShards, "between 1 and 200") );
+                return this;
+            }
+            this.numOfBrokerShards = numOfBrokerShards;
+            return this;
+        }
+
+        /**
+         * @param interval how often the broker and the sessions exchange heartbeats, in milliseconds
+         * @param liveness how many heartbeats a session can miss before the broker considers it dead
+         */
+        public Builder setHeartbeat(long interval, int liveness) {
+            if( interval <= 0 || liveness <= 0 ){
+                ExceptionHandler.handle( new MultiuserException(ErrorMessages.INCORRECT_CONFIG_VALUE,
+                        "heartbeat", "interval: " + interval + ", liveness: " + liveness, "positive") );
+                return this;
+            }
+            this.heartbeatInterval = interval;
+            this.heartbeatLiveness = liveness;
+            return this;
+        }
+
+        /**
+         * @param flowControlCredits requests a client can send to its session before the session grants it more
+         *                           credits (see CreditWindow)
+         */
+        public Builder setFlowControlCredits(int flowControlCredits) {
+            if( flowControlCredits < 1 ){
+                ExceptionHandler.handle( new MultiuserException(ErrorMessages.INCORRECT_CONFIG_VALUE,
+                        "flowControlCredits", flowControlCredits, "positive") );
+                return this;
+            }
+            this.flowControlCredits = flowControlCredits;
+            return this;
+        }
+
+        /**
+         * Makes the brokers keep a journal of the requests they accept (one subdirectory per broker) so the ones
+         * that were not processed are delivered again after a restart, once their client comes back (see
+         * RequestJournal and Broker.setJournal)
+         */
+        public Builder setRequestJournalPath(String requestJournalPath) {
+            if( requestJournalPath == null || requestJournalPath.isEmpty() ){
+                ExceptionHandler.handle( new MultiuserException(ErrorMessages.ANY_ELEMENT_IS_NULL,
+                        "requestJournalPath: " + requestJournalPath) );
+                return this;
+            }
+            this.requestJournalPath = requestJournalPath;
+            return this;
+        }
     }
 
 }
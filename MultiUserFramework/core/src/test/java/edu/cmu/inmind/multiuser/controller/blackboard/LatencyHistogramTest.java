@@ -0,0 +1,80 @@
+package edu.cmu.inmind.multiuser.controller.blackboard;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    private LatencyHistogram histogram;
+
+    @Before
+    public void setUp() {
+        histogram = new LatencyHistogram();
+    }
+
+    @Test
+    public void testSmallValuesAreExact() {
+        for( long value = 0; value < 32; value++ ){
+            Assert.assertEquals(value, LatencyHistogram.highestValue(LatencyHistogram.index(value)));
+        }
+    }
+
+    @Test
+    public void testBucketBounds() {
+        long[] values = {33, 100, 1000, 12345, 1000000, 123456789, Long.MAX_VALUE / 3, Long.MAX_VALUE};
+        for( long value : values ){
+            int index = LatencyHistogram.index(value);
+            long highest = LatencyHistogram.highestValue(index);
+            // the value falls in its bucket, the previous bucket ends right before it and the error is below 1/16
+            Assert.assertTrue(value <= highest);
+            Assert.assertTrue(LatencyHistogram.highestValue(index - 1) < value);
+            Assert.assertTrue((double) (highest - value) / value < 1d / 16);
+        }
+    }
+
+    @Test
+    public void testIndexesAreMonotonic() {
+        int previous = -1;
+        for( long value = 1; value > 0 && value < Long.MAX_VALUE / 2; value = value * 3 / 2 + 1 ){
+            int index = LatencyHistogram.index(value);
+            Assert.assertTrue(index >= previous);
+            previous = index;
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        for( long value = 1; value <= 1000; value++ ){
+            histogram.record(value * 1000);
+        }
+        Assert.assertEquals(1000, histogram.getCount());
+        Assert.assertEquals(1000000, histogram.getMax());
+        Assert.assertEquals(500500, histogram.getMean(), 0.001);
+        assertClose(500000, histogram.getPercentile(50));
+        assertClose(990000, histogram.getPercentile(99));
+        // the percentiles are capped by the highest recorded value
+        Assert.assertEquals(1000000, histogram.getPercentile(100));
+        Assert.assertEquals(1000000, histogram.getPercentile(150));
+        assertClose(1000, histogram.getPercentile(0));
+    }
+
+    @Test
+    public void testEmptyAndReset() {
+        Assert.assertEquals(0, histogram.getPercentile(99));
+        Assert.assertEquals(0, histogram.getMean(), 0);
+        histogram.record(-5);
+        histogram.record(42);
+        Assert.assertEquals(2, histogram.getCount());
+        Assert.assertEquals(0, histogram.getPercentile(50));
+        histogram.reset();
+        Assert.assertEquals(0, histogram.getCount());
+        Assert.assertEquals(0, histogram.getMax());
+        Assert.assertEquals(0, histogram.getPercentile(50));
+    }
+
+    private static void assertClose(long expected, long actual){
+        Assert.assertTrue(actual + " is not within the bucket precision of " + expected,
+                actual >= expected && actual - expected <= expected / 16);
+    }
+}
@@ -0,0 +1,224 @@
+package edu.cmu.inmind.multiuser.controller.blackboard;
+
+import edu.cmu.inmind.multiuser.controller.common.HashedWheelTimer;
+import edu.cmu.inmind.multiuser.controller.exceptions.ErrorMessages;
+import edu.cmu.inmind.multiuser.controller.exceptions.ExceptionHandler;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Pending Blackboard.await calls. Waiters are completed by the thread that posts (or removes), right after the model
+ * is updated, so nobody has to poll the blackboard. When nobody is waiting, the post path only reads a counter.
+ * Timeouts are scheduled on the shared HashedWheelTimer, and the waiters that time out are completed on the shared
+ * dispatcher pool (see EventDispatchers).
+ */
+public class Awaiters {
+    private final ConcurrentHashMap<String, Set<KeyWaiter>> keyWaiters = new ConcurrentHashMap<>();
+    private final Set<ConditionWaiter> conditionWaiters = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger size = new AtomicInteger();
+
+    public boolean isEmpty(){
+        return size.get() == 0;
+    }
+
+    public int size(){
+        return size.get();
+    }
+
+    /**
+     * @param condition null means any element
+     * @param timeout in milliseconds (0 means no timeout)
+     */
+    public CompletableFuture<Object> await(final String key, Predicate<Object> condition, long timeout,
+                                          final Blackboard blackboard){
+        return await(key, condition, timeout, new Function<String, Object>() {
+            @Override
+            public Object apply(String key) {
+                try {
+                    return blackboard.isModelKept()? blackboard.get(key) : null;
+                }catch (Throwable e){
+                    ExceptionHandler.handle(e);
+                    return null;
+                }
+            }
+        });
+    }
+
+    /**
+     * @param lookup reads the current value of key (e.g., from the GlobalBlackboard)
+     */
+    CompletableFuture<Object> await(final String key, Predicate<Object> condition, long timeout,
+                                    Function<String, Object> lookup){
+        final KeyWaiter waiter = new KeyWaiter(condition);
+        size.incrementAndGet();
+        keyWaiters.compute(key, new BiFunction<String, Set<KeyWaiter>, Set<KeyWaiter>>() {
+            @Override
+            public Set<KeyWaiter> apply(String key, Set<KeyWaiter> waiters) {
+                if( waiters == null ) waiters = ConcurrentHashMap.newKeySet();
+                waiters.add(waiter);
+                return waiters;
+            }
+        });
+        register(waiter, timeout, key, new Runnable() {
+            @Override
+            public void run() {
+                keyWaiters.computeIfPresent(key, new BiFunction<String, Set<KeyWaiter>, Set<KeyWaiter>>() {
+                    @Override
+                    public Set<KeyWaiter> apply(String key, Set<KeyWaiter> waiters) {
+                        waiters.remove(waiter);
+                        return waiters.isEmpty()? null : waiters;
+                    }
+                });
+            }
+        });
+        // the element may have been posted before the waiter was registered
+        Object value = lookup.apply(key);
+        if( value != null ) waiter.offer(value);
+        return waiter.future;
+    }
+
+    /**
+     * @param timeout in milliseconds (0 means no timeout)
+     */
+    public CompletableFuture<Void> await(Predicate<Blackboard> condition, long timeout, Blackboard blackboard){
+        final ConditionWaiter waiter = new ConditionWaiter(condition);
+        size.incrementAndGet();
+        conditionWaiters.add(waiter);
+        register(waiter, timeout, condition, new Runnable() {
+            @Override
+            public void run() {
+                conditionWaiters.remove(waiter);
+            }
+        });
+        waiter.offer(blackboard);
+        return waiter.future;
+    }
+
+    private void register(final Waiter<?> waiter, final long timeout, final Object awaited, final Runnable unlink){
+        if( timeout > 0 ){
+            final Runnable expire = new Runnable() {
+                @Override
+                public void run() {
+                    waiter.future.completeExceptionally( new TimeoutException(
+                            String.format(ErrorMessages.AWAIT_TIMEOUT, awaited, timeout)) );
+                }
+            };
+            waiter.timeout = HashedWheelTimer.getShared().newTimeout(new Runnable() {
+                @Override
+                public void run() {
+                    // the callers' callbacks run where the future is completed, they must not hold the timer thread
+                    EventDispatchers.getSharedPool().execute(expire);
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
+        // whatever completes the future (an element, a timeout or a cancellation), the waiter is forgotten
+        waiter.future.whenComplete(new BiConsumer<Object, Throwable>() {
+            @Override
+            public void accept(Object result, Throwable error) {
+                unlink.run();
+                size.decrementAndGet();
+                if( waiter.timeout != null ) waiter.timeout.cancel();
+            }
+        });
+    }
+
+    /**
+     * Completes the waiters of key whose condition holds for element, and the condition waiters
+     */
+    public void onPost(String key, Object element, Blackboard blackboard){
+        Set<KeyWaiter> waiters = keyWaiters.get(key);
+        if( waiters != null ){
+            for( KeyWaiter waiter : waiters ){
+                waiter.offer(element);
+            }
+        }
+        onChange(blackboard);
+    }
+
+    public void onPostAll(Map<String, Object> elements, Blackboard blackboard){
+        if( !keyWaiters.isEmpty() ) {
+            for (Map.Entry<String, Object> entry : elements.entrySet()) {
+                Set<KeyWaiter> waiters = keyWaiters.get(entry.getKey());
+                if (waiters != null) {
+                    for (KeyWaiter waiter : waiters) {
+                        waiter.offer(entry.getValue());
+                    }
+                }
+            }
+        }
+        onChange(blackboard);
+    }
+
+    /**
+     * Re-evaluates the condition waiters
+     */
+    public void onChange(Blackboard blackboard){
+        for( ConditionWaiter waiter : conditionWaiters ){
+            waiter.offer(blackboard);
+        }
+    }
+
+    public void cancelAll(){
+        for( Set<KeyWaiter> waiters : keyWaiters.values() ){
+            for( KeyWaiter waiter : waiters ){
+                waiter.future.cancel(false);
+            }
+        }
+        for( ConditionWaiter waiter : conditionWaiters ){
+            waiter.future.cancel(false);
+        }
+    }
+
+    private static abstract class Waiter<T> {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        volatile HashedWheelTimer.Timeout timeout;
+    }
+
+    private static class KeyWaiter extends Waiter<Object> {
+        private final Predicate<Object> condition;
+
+        KeyWaiter(Predicate<Object> condition) {
+            this.condition = condition;
+        }
+
+        void offer(Object element){
+            if( future.isDone() ) return;
+            try {
+                if( condition == null || condition.test(element) ){
+                    future.complete(element);
+                }
+            }catch (Throwable e){
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static class ConditionWaiter extends Waiter<Void> {
+        private final Predicate<Blackboard> condition;
+
+        ConditionWaiter(Predicate<Blackboard> condition) {
+            this.condition = condition;
+        }
+
+        void offer(Blackboard blackboard){
+            if( future.isDone() ) return;
+            try {
+                if( condition.test(blackboard) ){
+                    future.complete(null);
+                }
+            }catch (Throwable e){
+                future.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -2,6 +2,8 @@ package edu.cmu.inmind.multiuser.controller.blackboard;
 
 import edu.cmu.inmind.multiuser.controller.common.CommonUtils;
 import edu.cmu.inmind.multiuser.controller.common.Constants;
+import edu.cmu.inmind.multiuser.controller.common.CopyStrategy;
+import edu.cmu.inmind.multiuser.controller.common.HashedWheelTimer;
 import edu.cmu.inmind.multiuser.controller.common.Utils;
 import edu.cmu.inmind.multiuser.controller.exceptions.ErrorMessages;
 import edu.cmu.inmind.multiuser.controller.communication.ConnectRemoteService;
@@ -18,27 +20,59 @@ import edu.cmu.inmind.multiuser.controller.sync.ForceSync;
 import edu.cmu.inmind.multiuser.controller.sync.SynchronizableEvent;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
 
 /**
  * Created by oscarr on 4/29/16.
  */
 public class BlackboardImpl implements Blackboard {
     private ConcurrentHashMap<String, Object> model;
-    private ConcurrentHashMap<String, List<BlackboardListener>> subscriptions;
+    private VersionedModel versionedModel;
+    private TopicIndex subscriptions;
     private List<BlackboardListener> subscribers;
     private MessageLog logger;
     private boolean loggerOn = true;
     private boolean keepModel = false;
     private boolean notifySubscribers = true;
     private boolean shouldThrowException = true;
+    private EventDispatcher dispatcher;
+    private Set<String> immutableKeys = ConcurrentHashMap.newKeySet();
+    private boolean verifyImmutability = false;
+    private ConcurrentHashMap<String, String> fingerprints = new ConcurrentHashMap<>();
+    private final Object writeLock = new Object();
+    private final Conflater conflater = new Conflater();
+    private ConcurrentHashMap<String, Long> defaultTTLs = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<String, HashedWheelTimer.Timeout> expirations = new ConcurrentHashMap<>();
+    private boolean notifyOnExpiration = false;
+    private volatile SpillStore spillStore;
+    private volatile BlackboardJournal journal;
+    // versions of the journal records when the model is not kept
+    private final AtomicLong journalVersion = new AtomicLong();
+    private final Awaiters awaiters = new Awaiters();
+    /** pending awaits of global keys, which are cancelled by reset like the local ones **/
+    private final Set<CompletableFuture<Object>> globalAwaits = ConcurrentHashMap.newKeySet();
+    private final SubscriptionFilters filters = new SubscriptionFilters();
 
     private BlackboardImpl(){
-        this.subscribers = new ArrayList<>();
+        this.subscribers = new CopyOnWriteArrayList<>();
         this.model = new ConcurrentHashMap<>();
-        this.subscriptions = new ConcurrentHashMap<>();
+        this.versionedModel = new VersionedModel();
+        this.subscriptions = new TopicIndex();
+        this.dispatcher = EventDispatchers.create( Constants.DISPATCH_SHARED_POOL );
     }
 
     public BlackboardImpl(MessageLog logger ){
@@ -94,19 +128,185 @@ public class BlackboardImpl implements Blackboard {
     }
 
     public void setModel(ConcurrentHashMap<String, Object> model) {
-        this.model = model;
+        synchronized (writeLock) {
+            this.model = model;
+            versionedModel.reset(model);
+        }
+    }
+
+    @Override
+    public void setDispatcher(EventDispatcher dispatcher) {
+        if( dispatcher == null ){
+            ExceptionHandler.handle( new MultiuserException(ErrorMessages.ANY_ELEMENT_IS_NULL, "dispatcher: " + dispatcher) );
+            return;
+        }
+        if( this.dispatcher != null && this.dispatcher != dispatcher ){
+            this.dispatcher.close();
+        }
+        this.dispatcher = dispatcher;
+    }
+
+    @Override
+    public EventDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    @Override
+    public void registerImmutable(Class<?> type) {
+        Utils.setCopyStrategy(type, CopyStrategy.IMMUTABLE);
+    }
+
+    @Override
+    public void registerImmutableKey(String key) {
+        immutableKeys.add(key);
+    }
+
+    @Override
+    public void registerConflatedKey(String key) {
+        conflater.addConflatedTopic(key);
+    }
+
+    @Override
+    public void setVerifyImmutability(boolean verifyImmutability) {
+        this.verifyImmutability = verifyImmutability;
+        if( !verifyImmutability ) fingerprints.clear();
+    }
+
+    /**
+     * Copies the value unless its key or its type is immutable, in which case the same reference is returned
+     */
+    private Object copy(String key, Object value){
+        if( value == null ){
+            return null;
+        }
+        if( immutableKeys.contains(key) ){
+            return value;
+        }
+        return Utils.clone(value);
+    }
+
+    /**
+     * Only application values (not JDK immutable types) that are passed through without copying are fingerprinted
+     */
+    private boolean shouldVerify(String key, Object value){
+        return verifyImmutability && value != null && (immutableKeys.contains(key)
+                || (Utils.isImmutable(value.getClass()) && !value.getClass().getName().startsWith("java.")));
+    }
+
+    private void verifyImmutability(String key, Object value){
+        String fingerprint = fingerprints.get(key);
+        if( fingerprint != null && value != null && !fingerprint.equals(CommonUtils.toJson(value)) ){
+            ExceptionHandler.handle( new MultiuserException(ErrorMessages.IMMUTABLE_VALUE_MODIFIED, key) );
+        }
     }
 
     @Override
     public void post(BlackboardListener sender, String key, Object element){
+        post(sender, key, element, 0);
+    }
+
+    @Override
+    public void post(BlackboardListener sender, String key, Object element, long ttl){
         try {
-            post(sender, key, element, true);
+            post(sender, key, element, ttl, true, null);
         }catch (Throwable e){
             e.printStackTrace();
         }
     }
 
-    private void post(BlackboardListener sender, String key, Object element, boolean shouldClone) throws Throwable{
+    @Override
+    public CompletableFuture<DeliveryReport> postAndTrack(BlackboardListener sender, String key, Object element){
+        DeliveryTracker tracker = new DeliveryTracker(key);
+        try {
+            post(sender, key, element, 0, true, tracker);
+        }catch (Throwable e){
+            tracker.fail(e);
+        }
+        tracker.seal();
+        return tracker.getFuture();
+    }
+
+    @Override
+    public void setDefaultTTL(String key, long ttl) {
+        if( ttl > 0 ){
+            defaultTTLs.put(key, ttl);
+        }else{
+            defaultTTLs.remove(key);
+        }
+    }
+
+    @Override
+    public void setNotifyOnExpiration(boolean notifyOnExpiration) {
+        this.notifyOnExpiration = notifyOnExpiration;
+    }
+
+    /**
+     * Schedules the expiration of key on the process-wide timer. A newer post of the same key reschedules it. The
+     * timer thread only hands the expiration over to the shared pool, so subscribers that are notified of it (and
+     * dispatchers that block) never hold up the timers of the other sessions.
+     */
+    private void scheduleExpiration(final BlackboardListener sender, final String key, final Object value, long ttl){
+        if( ttl <= 0 ){
+            Long defaultTTL = defaultTTLs.get(key);
+            ttl = defaultTTL == null? 0 : defaultTTL;
+        }
+        HashedWheelTimer.Timeout previous;
+        if( ttl > 0 ) {
+            final AtomicReference<HashedWheelTimer.Timeout> timeout = new AtomicReference<>();
+            timeout.set( HashedWheelTimer.getShared().newTimeout(new Runnable() {
+                @Override
+                public void run() {
+                    EventDispatchers.getSharedPool().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            expire(sender, key, value, timeout.get());
+                        }
+                    });
+                }
+            }, ttl, TimeUnit.MILLISECONDS) );
+            previous = expirations.put(key, timeout.get());
+        }else{
+            previous = expirations.remove(key);
+        }
+        if( previous != null ){
+            previous.cancel();
+        }
+    }
+
+    private void cancelExpirations(){
+        for( HashedWheelTimer.Timeout timeout : expirations.values() ){
+            timeout.cancel();
+        }
+        expirations.clear();
+    }
+
+    /**
+     * Removes the key unless it has been posted again meanwhile (i.e., timeout is not its expiration anymore)
+     */
+    private void expire(BlackboardListener sender, String key, Object value, HashedWheelTimer.Timeout timeout){
+        boolean removed;
+        synchronized (writeLock){
+            removed = timeout != null && expirations.remove(key, timeout);
+            if( removed ){
+                model.remove(key);
+                versionedModel.remove(key);
+                fingerprints.remove(key);
+                if( spillStore != null ) spillStore.remove(key);
+                journal(BlackboardJournal.EXPIRE, sender, key, BlackboardJournal.encode(null));
+            }
+        }
+        if( removed && !awaiters.isEmpty() ) awaiters.onChange(this);
+        if( removed && notifyOnExpiration ){
+            try {
+                notifySubscribers(sender, Constants.ELEMENT_REMOVED, key, value, null, null);
+            }catch (Throwable e){
+                ExceptionHandler.handle(e);
+            }
+        }
+    }
+
+    private void post(BlackboardListener sender, String key, Object element, long ttl, boolean shouldClone,
+                      DeliveryTracker tracker) throws Throwable{
         try {
             if( key == null ){
                 checkException( new MultiuserException(ErrorMessages.BLACKBOARD_KEY_NULL, "") );
@@ -117,21 +317,192 @@ public class BlackboardImpl implements Blackboard {
             if( !key.equals(Constants.REMOVE_ALL) && element == null ){
                 checkException( new MultiuserException(ErrorMessages.BLACKBOARD_ELEMENT_NULL, "") );
             }
-            Object clone = shouldClone ? Utils.clone(element) : element;
-            if (keepModel && clone != null && key != null)
-                model.put(key, clone);
+            if( GlobalBlackboard.isGlobal(key) ){
+                List<BlackboardListener> rejected = new ArrayList<>();
+                postGlobal(sender, key, element, shouldClone, tracker, rejected);
+                checkRejected(key, rejected);
+                return;
+            }
+            // content filters see the posted element, so the events they reject are neither copied nor dispatched
+            BlackboardListener[] filtered = null;
+            if( !filters.isEmpty() && notifySubscribers && element != null ){
+                filtered = filters.filter(subscriptions.lookup(key), key, element);
+            }
+            boolean isNeeded = keepModel || filtered == null || filtered.length > 0 || journal != null
+                    || !awaiters.isEmpty();
+            long cloneStart = BlackboardMetrics.isEnabled()? System.nanoTime() : 0;
+            Object clone = shouldClone && isNeeded ? copy(key, element) : element;
+            if( cloneStart != 0 && key != null ){
+                BlackboardMetrics.KeyMetrics keyMetrics = BlackboardMetrics.getKeyMetrics(key);
+                keyMetrics.onPost();
+                if( clone != element ) keyMetrics.getCloneTime().record(System.nanoTime() - cloneStart);
+            }
+            byte[] encoded = journal != null? BlackboardJournal.encode(clone) : null;
+            if (keepModel && clone != null && key != null) {
+                // serialized before taking the lock, so posts of other threads don't wait for it
+                byte[] spilled = spillStore != null? SpillStore.serialize(clone) : null;
+                synchronized (writeLock) {
+                    model.put(key, clone);
+                    versionedModel.put(key, clone);
+                    scheduleExpiration(sender, key, clone, ttl);
+                    if( spillStore != null ) spillStore.onPut(key, clone, spilled);
+                    journal(BlackboardJournal.POST, sender, key, encoded);
+                }
+                if( shouldVerify(key, clone) ) fingerprints.put(key, CommonUtils.toJson(clone));
+            }else{
+                journal(BlackboardJournal.POST, sender, key, encoded);
+            }
             if (loggerOn){
                 logger.add(key, clone == null? "element is null" : clone.toString());
             }
-            notifySubscribers(sender, Constants.ELEMENT_ADDED, key, clone);
+            if( !awaiters.isEmpty() && clone != null ) awaiters.onPost(key, clone, this);
+            notifySubscribers(sender, Constants.ELEMENT_ADDED, key, clone, filtered, tracker);
         }
         catch (NoClassDefFoundError e){
-            post( sender, key, element, false);
+            post( sender, key, element, ttl, false, tracker);
         }catch(Throwable e){
             checkException( e );
         }
     }
 
+    @Override
+    public void postAll(BlackboardListener sender, Map<String, Object> elements) throws Throwable{
+        // errors go through checkException there, so they are thrown when shouldThrowException is set
+        postAll(sender, elements, true);
+    }
+
+    /**
+     * All the elements are written to the model at once (other posts cannot interleave with them), and each
+     * subscriber receives one event: a regular ELEMENT_ADDED event if it is subscribed to only one of the keys, or
+     * an ELEMENTS_ADDED event whose element is a map with all the keys it is subscribed to.
+     */
+    private void postAll(BlackboardListener sender, Map<String, Object> elements, boolean shouldClone) throws Throwable{
+        try {
+            if( sender == null ){
+                checkException( new MultiuserException(ErrorMessages.BLACKBOARD_SENDER_NULL, "") );
+            }
+            if( elements == null || elements.isEmpty() ){
+                checkException( new MultiuserException(ErrorMessages.BLACKBOARD_ELEMENT_NULL, "") );
+            }
+            // the mailboxes that reject global events are reported once the local elements are posted too
+            Set<String> keys = elements.keySet();
+            List<BlackboardListener> rejectedGlobals = new ArrayList<>();
+            elements = postGlobals(sender, elements, shouldClone, rejectedGlobals);
+            if( elements.isEmpty() ){
+                checkRejected(keys, rejectedGlobals);
+                return;
+            }
+            Map<String, Object> clones = new LinkedHashMap<>();
+            for( Map.Entry<String, Object> entry : elements.entrySet() ){
+                if( entry.getKey() == null ){
+                    checkException( new MultiuserException(ErrorMessages.BLACKBOARD_KEY_NULL, "") );
+                }
+                if( entry.getValue() == null ){
+                    checkException( new MultiuserException(ErrorMessages.BLACKBOARD_ELEMENT_NULL, "") );
+                }
+                long cloneStart = BlackboardMetrics.isEnabled()? System.nanoTime() : 0;
+                clones.put( entry.getKey(), shouldClone ? copy(entry.getKey(), entry.getValue()) : entry.getValue() );
+                if( cloneStart != 0 && entry.getKey() != null ){
+                    BlackboardMetrics.KeyMetrics keyMetrics = BlackboardMetrics.getKeyMetrics(entry.getKey());
+                    keyMetrics.onPost();
+                    if( shouldClone ) keyMetrics.getCloneTime().record(System.nanoTime() - cloneStart);
+                }
+            }
+            Map<String, byte[]> encoded = null;
+            if( journal != null ){
+                encoded = new LinkedHashMap<>();
+                for( Map.Entry<String, Object> entry : clones.entrySet() ){
+                    encoded.put( entry.getKey(), BlackboardJournal.encode(entry.getValue()) );
+                }
+            }
+            if( keepModel ) {
+                Map<String, byte[]> spilled = new HashMap<>();
+                if( spillStore != null ){
+                    for( Map.Entry<String, Object> entry : clones.entrySet() ){
+                        spilled.put( entry.getKey(), SpillStore.serialize(entry.getValue()) );
+                    }
+                }
+                synchronized (writeLock) {
+                    model.putAll(clones);
+                    versionedModel.putAll(clones);
+                    for( Map.Entry<String, Object> entry : clones.entrySet() ){
+                        scheduleExpiration(sender, entry.getKey(), entry.getValue(), 0);
+                        if( spillStore != null ) spillStore.onPut(entry.getKey(), entry.getValue(),
+                                spilled.get(entry.getKey()));
+                    }
+                    journal(sender, encoded);
+                }
+                for( Map.Entry<String, Object> entry : clones.entrySet() ){
+                    if( shouldVerify(entry.getKey(), entry.getValue()) ){
+                        fingerprints.put(entry.getKey(), CommonUtils.toJson(entry.getValue()));
+                    }
+                }
+            }else{
+                journal(sender, encoded);
+            }
+            if (loggerOn){
+                for( Map.Entry<String, Object> entry : clones.entrySet() ) {
+                    logger.add(entry.getKey(), entry.getValue().toString());
+                }
+            }
+            if( !awaiters.isEmpty() ) awaiters.onPostAll(clones, this);
+            notifySubscribers(sender, clones);
+            checkRejected(keys, rejectedGlobals);
+        }
+        catch (NoClassDefFoundError e){
+            postAll( sender, elements, false);
+        }catch(Throwable e){
+            checkException( e );
+        }
+    }
+
+    /**
+     * Posts the elements of the global namespace to the GlobalBlackboard
+     * @param rejected the subscribers whose mailboxes rejected a global event are added to it
+     * @return the elements that belong to this session
+     */
+    private Map<String, Object> postGlobals(BlackboardListener sender, Map<String, Object> elements,
+                                            boolean shouldClone, List<BlackboardListener> rejected){
+        Map<String, Object> local = null;
+        for( Map.Entry<String, Object> entry : elements.entrySet() ){
+            if( GlobalBlackboard.isGlobal(entry.getKey()) ){
+                if( local == null ){
+                    local = new LinkedHashMap<>(elements);
+                }
+                local.remove(entry.getKey());
+                postGlobal(sender, entry.getKey(), entry.getValue(), shouldClone, null, rejected);
+            }
+        }
+        return local == null? elements : local;
+    }
+
+    /**
+     * Posts an element of the global namespace to the GlobalBlackboard. This blackboard still measures, journals
+     * and logs the post, like the posts of its own keys (the awaiters are completed by the GlobalBlackboard)
+     * @param rejected the subscribers whose mailboxes rejected the event are added to it
+     */
+    private void postGlobal(BlackboardListener sender, String key, Object element, boolean shouldClone,
+                            DeliveryTracker tracker, List<BlackboardListener> rejected){
+        if( element == null ){
+            GlobalBlackboard.getInstance().post(sender, key, null, this, tracker, rejected);
+            return;
+        }
+        long cloneStart = BlackboardMetrics.isEnabled()? System.nanoTime() : 0;
+        Object clone = shouldClone? copy(key, element) : element;
+        if( cloneStart != 0 ){
+            BlackboardMetrics.KeyMetrics keyMetrics = BlackboardMetrics.getKeyMetrics(key);
+            keyMetrics.onPost();
+            if( clone != element ) keyMetrics.getCloneTime().record(System.nanoTime() - cloneStart);
+        }
+        if( journal != null ){
+            journal(BlackboardJournal.POST, sender, key, BlackboardJournal.encode(clone));
+        }
+        if( loggerOn ){
+            logger.add(key, clone.toString());
+        }
+        GlobalBlackboard.getInstance().post(sender, key, clone, this, tracker, rejected);
+    }
+
     public void remove(BlackboardListener sender, String key) throws Throwable{
         remove(sender, key, true);
     }
@@ -141,13 +512,39 @@ public class BlackboardImpl implements Blackboard {
             if( key == null ){
                 checkException( new MultiuserException(ErrorMessages.BLACKBOARD_KEY_NULL, "") );
             }
-            Object clone = Utils.clone(model.get(key));
-            if (key.contains(Constants.REMOVE_ALL)) {
-                model.clear();
-            } else {
-                if (keepModel) model.remove(key);
+            if( GlobalBlackboard.isGlobal(key) ){
+                List<BlackboardListener> rejected = new ArrayList<>();
+                if( GlobalBlackboard.getInstance().remove(sender, key, this, rejected) != null ){
+                    journal(BlackboardJournal.REMOVE, sender, key, BlackboardJournal.encode(null));
+                }
+                checkRejected(key, rejected);
+                return;
             }
-            notifySubscribers(sender, Constants.ELEMENT_REMOVED, key, clone);
+            Object value = getValue(key);
+            if( verifyImmutability ) verifyImmutability(key, value);
+            Object clone = shouldClone ? copy(key, value) : value;
+            synchronized (writeLock) {
+                if (key.contains(Constants.REMOVE_ALL)) {
+                    model.clear();
+                    versionedModel.clear();
+                    fingerprints.clear();
+                    cancelExpirations();
+                    if( spillStore != null ) spillStore.clear();
+                    journal(BlackboardJournal.CLEAR, sender, key, BlackboardJournal.encode(null));
+                } else {
+                    if (keepModel) {
+                        model.remove(key);
+                        versionedModel.remove(key);
+                        if( spillStore != null ) spillStore.remove(key);
+                    }
+                    fingerprints.remove(key);
+                    HashedWheelTimer.Timeout expiration = expirations.remove(key);
+                    if( expiration != null ) expiration.cancel();
+                    journal(BlackboardJournal.REMOVE, sender, key, BlackboardJournal.encode(null));
+                }
+            }
+            if( !awaiters.isEmpty() ) awaiters.onChange(this);
+            notifySubscribers(sender, Constants.ELEMENT_REMOVED, key, clone, null, null);
         }catch( NoClassDefFoundError e){
             remove(sender, key, false);
         }
@@ -166,7 +563,9 @@ public class BlackboardImpl implements Blackboard {
             checkException( new MultiuserException(ErrorMessages.BLACKBOARD_KEY_NULL, "") );
         }
         try {
-            value = shouldClone ? Utils.clone(model.get(key)) : model.get(key);
+            value = getValue(key);
+            if( verifyImmutability ) verifyImmutability(key, value);
+            value = shouldClone ? copy(key, value) : value;
         }catch (NoClassDefFoundError e){
             value = get(key, false);
         }catch (Throwable e) {
@@ -175,6 +574,184 @@ public class BlackboardImpl implements Blackboard {
         return value;
     }
 
+    @Override
+    public CompletableFuture<Object> await(String key, long timeout) {
+        return await(key, null, timeout);
+    }
+
+    /**
+     * Keys of the global namespace are awaited in the GlobalBlackboard, so any session can complete them
+     */
+    @Override
+    public CompletableFuture<Object> await(String key, Predicate<Object> condition, long timeout) {
+        if( GlobalBlackboard.isGlobal(key) ){
+            final CompletableFuture<Object> future = GlobalBlackboard.getInstance().await(key, condition, timeout);
+            globalAwaits.add(future);
+            future.whenComplete(new BiConsumer<Object, Throwable>() {
+                @Override
+                public void accept(Object result, Throwable error) {
+                    globalAwaits.remove(future);
+                }
+            });
+            return future;
+        }
+        return awaiters.await(key, condition, timeout, this);
+    }
+
+    @Override
+    public CompletableFuture<Void> await(Predicate<Blackboard> condition, long timeout) {
+        return awaiters.await(condition, timeout, this);
+    }
+
+    public Awaiters getAwaiters() {
+        return awaiters;
+    }
+
+    /**
+     * Called by the GlobalBlackboard when a global key this blackboard posts or delivers changes
+     */
+    void onGlobalChange(){
+        if( !awaiters.isEmpty() ) awaiters.onChange(this);
+    }
+
+    /**
+     * @return the value of key, loading it back from the spill store if it is not on the heap (keys of the global
+     * namespace are read from the GlobalBlackboard)
+     */
+    private Object getValue(String key) throws Throwable{
+        if( GlobalBlackboard.isGlobal(key) ){
+            return GlobalBlackboard.getInstance().get(key);
+        }
+        Object value = model.get(key);
+        // it can be replaced (or dropped) by setMemoryBudget meanwhile
+        SpillStore store = spillStore;
+        if( store == null ){
+            return value;
+        }
+        if( value != null ){
+            store.onRead(key);
+        }else if( store.getSpilled(key) != null ){
+            synchronized (writeLock){
+                value = model.get(key);
+                SpillStore.Ref ref = store.getSpilled(key);
+                if( value == null && ref != null ){
+                    value = ref.load();
+                    model.put(key, value);
+                    versionedModel.swap(key, ref, value);
+                    store.onLoad(key, value, ref);
+                }
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public void setMemoryBudget(long sessionBudget) {
+        synchronized (writeLock) {
+            if( spillStore != null ){
+                if( sessionBudget > 0 || SpillStore.getGlobalBudget() > 0 ){
+                    spillStore.setSessionBudget(sessionBudget);
+                    return;
+                }
+                // no budget anymore: the spilled values are loaded back before the store is dropped
+                for( String key : new ArrayList<>( spillStore.getSpilledKeys() ) ){
+                    SpillStore.Ref ref = spillStore.getSpilled(key);
+                    if( ref != null && model.get(key) == null ){
+                        try {
+                            Object value = ref.load();
+                            model.put(key, value);
+                            versionedModel.swap(key, ref, value);
+                        }catch (Throwable e){
+                            ExceptionHandler.handle(e);
+                        }
+                    }
+                }
+                spillStore.close();
+                spillStore = null;
+            }else if( sessionBudget > 0 || SpillStore.getGlobalBudget() > 0 ) {
+                spillStore = new SpillStore(sessionBudget, new SpillStore.Evictor() {
+                    @Override
+                    public boolean evict(String key, Object value, SpillStore.Ref ref) {
+                        if( model.get(key) == value && versionedModel.swap(key, value, ref) ){
+                            model.remove(key, value);
+                            return true;
+                        }
+                        return false;
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * @return the tier where the least recently used values are spilled, or null if there is no memory budget
+     */
+    public SpillStore getSpillStore() {
+        return spillStore;
+    }
+
+    /**
+     * @return a consistent, read-only view of the model. Remember to close it when you are done
+     */
+    @Override
+    public BlackboardSnapshot snapshot() {
+        return versionedModel.snapshot();
+    }
+
+    public VersionedModel getVersionedModel() {
+        return versionedModel;
+    }
+
+    @Override
+    public void setJournal(BlackboardJournal journal) {
+        this.journal = journal;
+    }
+
+    @Override
+    public BlackboardJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Appends a mutation to the journal (if any). When the model is kept, it is called under writeLock, so the
+     * order of the records matches the order of the versions
+     * @param value encoded value (null if the journal was set after the value was encoded)
+     */
+    private void journal(byte type, BlackboardListener sender, String key, byte[] value){
+        if( journal != null && value != null ){
+            journal(type, nextJournalVersion(), sender, key, value);
+        }
+    }
+
+    private void journal(BlackboardListener sender, Map<String, byte[]> encoded){
+        if( journal != null && encoded != null ){
+            long version = nextJournalVersion();
+            for( Map.Entry<String, byte[]> entry : encoded.entrySet() ){
+                if( entry.getValue() != null ) {
+                    journal(BlackboardJournal.POST, version, sender, entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    private void journal(byte type, long version, BlackboardListener sender, String key, byte[] value){
+        BlackboardJournal journal = this.journal;
+        if( journal != null ){
+            journal.append(type, version, sender == null? null : sender.getClass().getName(), key, value);
+        }
+    }
+
+    /**
+     * @return the version of the model when it is kept, otherwise a counter of this blackboard's mutations, so
+     * records can still be ordered when the journal is replayed
+     */
+    private long nextJournalVersion(){
+        return keepModel? versionedModel.getVersion() : journalVersion.incrementAndGet();
+    }
+
+    /**
+     * @return the values that are on the heap (values spilled because of the memory budget are not included)
+     */
     public ConcurrentHashMap<String, Object> getModel() {
         return model;
     }
@@ -190,12 +767,38 @@ public class BlackboardImpl implements Blackboard {
             // list will be overriden.
             subscribe( subscriber, ResourceLocator.getComponentsSubscriptions( subscriber.hashCode() ) );
         }else if (subsClass.isAnnotationPresent(BlackboardSubscription.class)) {
-            String[] messages = ((Class<? extends BlackboardListener>)subsClass)
-                    .getAnnotation(BlackboardSubscription.class).messages();
-            subscribe(subscriber, messages);
+            BlackboardSubscription subscription = ((Class<? extends BlackboardListener>)subsClass)
+                    .getAnnotation(BlackboardSubscription.class);
+            subscribe(subscriber, subscription.messages());
+            conflater.setConflatedTopics(subscriber, subscription.conflate());
         }
     }
 
+    @Override
+    public void subscribe(BlackboardListener subscriber, String topic, Predicate<Object> filter) throws Throwable{
+        if( subscriber == null ){
+            checkException( new MultiuserException(ErrorMessages.BLACKBOARD_SUBSCRIBER_NULL) );
+        }
+        if( topic == null || filter == null ){
+            checkException( new MultiuserException(ErrorMessages.ANY_ELEMENT_IS_NULL, "topic: " + topic,
+                    "filter: " + filter) );
+        }
+        if( !subscribers.contains( subscriber ) ) subscribers.add( subscriber );
+        if( GlobalBlackboard.isGlobal(topic) ){
+            GlobalBlackboard.getInstance().subscribe( subscriber, topic, filter, this );
+            return;
+        }
+        filters.add(subscriber, topic, filter);
+        subscriptions.subscribe( topic, subscriber );
+    }
+
+    /**
+     * @return the content filters of subscriber, with their hit/miss counters
+     */
+    public List<SubscriptionFilters.Filter> getFilters(BlackboardListener subscriber){
+        return filters.getFilters(subscriber);
+    }
+
     private void subscribe(BlackboardListener subscriber, String[] messages) throws Throwable{
         if( subscriber == null ){
             checkException( new MultiuserException(ErrorMessages.BLACKBOARD_SUBSCRIBER_NULL));
@@ -204,63 +807,58 @@ public class BlackboardImpl implements Blackboard {
             checkException( new MultiuserException(ErrorMessages.BLACKBOARD_MESSAGES_NULL));
         }
         for (String message : messages) {
-            List<BlackboardListener> listeners = subscriptions.get( message );
-            if( listeners == null ){
-                listeners = new ArrayList<>();
-                subscriptions.put( message, listeners );
-            }
-            if( !listeners.contains(subscriber) ){
-                listeners.add( subscriber );
+            if( GlobalBlackboard.isGlobal(message) ){
+                GlobalBlackboard.getInstance().subscribe( subscriber, message, this );
+            }else {
+                subscriptions.subscribe( message, subscriber );
             }
         }
     }
 
     public boolean unsubscribe(BlackboardListener subscriber){
+        if( dispatcher instanceof MailboxDispatcher ){
+            ((MailboxDispatcher) dispatcher).removeMailbox( subscriber );
+        }
+        subscriptions.unsubscribe( subscriber );
+        conflater.remove( subscriber );
+        filters.remove( subscriber );
+        GlobalBlackboard.getInstance().release( subscriber, this );
         return subscribers.remove( subscriber );
     }
 
+    /**
+     * @param filtered subscribers that passed the content filters (null if the filters were not evaluated)
+     */
     private void notifySubscribers(final BlackboardListener sender, final String status, final String key,
-                                   final Object element) throws Throwable{
+                                   final Object element, BlackboardListener[] filtered, DeliveryTracker tracker)
+            throws Throwable{
         if(notifySubscribers && key != null) {
             try {
-                List<BlackboardListener> listeners = subscriptions.get(key);
-                if( !key.equals(Constants.REMOVE_ALL) && (listeners == null || listeners.isEmpty() )){
+                BlackboardListener[] listeners = subscriptions.lookup(key);
+                if( !key.equals(Constants.REMOVE_ALL) && listeners.length == 0 ){
                     checkException( new MultiuserException(ErrorMessages.NOBODY_IS_SUBSCRIBED, key) );
                 }
-                if (listeners != null) {
-                    for(final BlackboardListener subscriber : listeners ){
+                if( filtered != null ){
+                    listeners = filtered;
+                }
+                if( BlackboardMetrics.isEnabled() && status.equals(Constants.ELEMENT_ADDED) ){
+                    BlackboardMetrics.getKeyMetrics(key).onDelivered(listeners.length);
+                }
+                if (listeners.length > 0) {
+                    String sessionId = sender.getSessionId();
+                    List<BlackboardListener> rejected = null;
+                    for(BlackboardListener subscriber : listeners ){
                         if( subscriber == null ){
                             checkException( new MultiuserException(ErrorMessages.ANY_ELEMENT_IS_NULL,
                                     "subscriber: " + subscriber));
                             continue;
                         }
-                        if( !subscriber.isClosing() ) {
-                            final String sessionId = sender.getSessionId();
-                            if (subscriber instanceof PluggableComponent) {
-                                ((PluggableComponent) subscriber).setActiveSession(sessionId);
-                            }
-                            final BlackboardImpl bb = this;
-                            new Thread("blackboard-onEvent-" + sessionId) {
-                                public void run() {
-                                    try {
-                                        BlackboardEvent event = new BlackboardEvent(status, key, element, sessionId);
-                                        subscriber.onEvent(bb, event);
-                                        if (subscriber instanceof PluggableComponent && subscriber.getClass()
-                                                .isAnnotationPresent(ConnectRemoteService.class)) {
-                                            SessionMessage sessionMessage = new SessionMessage();
-                                            sessionMessage.setSessionId(sender.getSessionId());
-                                            sessionMessage.setRequestType(status);
-                                            sessionMessage.setMessageId(key);
-                                            sessionMessage.setPayload(CommonUtils.toJson(event.getElement()));
-                                            ((PluggableComponent) subscriber).send(sessionMessage);
-                                        }
-                                    } catch (Throwable e) {
-                                        ExceptionHandler.handle(e);
-                                    }
-                                }
-                            }.start();
+                        if( !deliver(sessionId, subscriber, status, key, element, tracker) ){
+                            if( rejected == null ) rejected = new ArrayList<>();
+                            rejected.add(subscriber);
                         }
                     }
+                    checkRejected(key, rejected);
                 }
             } catch (Throwable e) {
                 checkException(e);
@@ -268,13 +866,205 @@ public class BlackboardImpl implements Blackboard {
         }
     }
 
+    /**
+     * Coalesces the notifications of a postAll: one event per subscriber, no matter how many of the keys it is
+     * subscribed to
+     */
+    private void notifySubscribers(BlackboardListener sender, Map<String, Object> elements) throws Throwable{
+        if( !notifySubscribers ) {
+            return;
+        }
+        try {
+            Map<BlackboardListener, Map<String, Object>> perSubscriber = new LinkedHashMap<>();
+            for( Map.Entry<String, Object> entry : elements.entrySet() ){
+                BlackboardListener[] listeners = subscriptions.lookup(entry.getKey());
+                if( !filters.isEmpty() ){
+                    listeners = filters.filter(listeners, entry.getKey(), entry.getValue());
+                }
+                if( BlackboardMetrics.isEnabled() ){
+                    BlackboardMetrics.getKeyMetrics(entry.getKey()).onDelivered(listeners.length);
+                }
+                for( BlackboardListener subscriber : listeners ){
+                    Map<String, Object> subscriberElements = perSubscriber.get(subscriber);
+                    if( subscriberElements == null ){
+                        subscriberElements = new LinkedHashMap<>();
+                        perSubscriber.put(subscriber, subscriberElements);
+                    }
+                    subscriberElements.put(entry.getKey(), entry.getValue());
+                }
+            }
+            if( perSubscriber.isEmpty() ){
+                checkException( new MultiuserException(ErrorMessages.NOBODY_IS_SUBSCRIBED, elements.keySet()) );
+            }
+            String sessionId = sender.getSessionId();
+            List<BlackboardListener> rejected = null;
+            for( Map.Entry<BlackboardListener, Map<String, Object>> entry : perSubscriber.entrySet() ){
+                Map<String, Object> subscriberElements = entry.getValue();
+                boolean isDelivered;
+                if( subscriberElements.size() == 1 ){
+                    Map.Entry<String, Object> element = subscriberElements.entrySet().iterator().next();
+                    isDelivered = deliver(sessionId, entry.getKey(), Constants.ELEMENT_ADDED, element.getKey(),
+                            element.getValue(), null);
+                }else{
+                    isDelivered = deliver(sessionId, entry.getKey(), Constants.ELEMENTS_ADDED,
+                            String.join(Constants.KEY_SEPARATOR, subscriberElements.keySet()),
+                            Collections.unmodifiableMap(subscriberElements), null);
+                }
+                if( !isDelivered ){
+                    if( rejected == null ) rejected = new ArrayList<>();
+                    rejected.add(entry.getKey());
+                }
+            }
+            checkRejected(elements.keySet(), rejected);
+        } catch (Throwable e) {
+            checkException(e);
+        }
+    }
+
+    /**
+     * Reports the subscribers whose mailboxes rejected an event (OVERFLOW_FAIL), once all the other subscribers got
+     * it. Each mailbox counts its own drops (see MailboxDispatcher.getDropped)
+     */
+    private void checkRejected(Object key, List<BlackboardListener> rejected) throws Throwable{
+        if( rejected != null && !rejected.isEmpty() ){
+            List<String> names = new ArrayList<>();
+            for( BlackboardListener subscriber : rejected ){
+                names.add( subscriber.getClass().getSimpleName() );
+            }
+            checkException( new MultiuserException(ErrorMessages.SUBSCRIBER_QUEUE_FULL, key, names,
+                    dispatcher instanceof MailboxDispatcher? ((MailboxDispatcher) dispatcher).getCapacity() : "") );
+        }
+    }
+
+    /**
+     * Hands the event to the dispatcher, which decides on which thread subscriber.onEvent is called
+     * @param tracker not null if the post is tracked (see postAndTrack)
+     * @return false if the subscriber's mailbox is full and rejected the event
+     */
+    private boolean deliver(final String sessionId, final BlackboardListener subscriber, final String status,
+                         final String key, final Object element, DeliveryTracker tracker) throws Throwable{
+        Runnable delivery = newDelivery(sessionId, subscriber, status, key, element, tracker);
+        if( subscriber.isClosing() ) {
+            DeliveryTracker.discard(delivery);
+            return true;
+        }
+        if (subscriber instanceof PluggableComponent && !GlobalBlackboard.isGlobal(key)) {
+            ((PluggableComponent) subscriber).setActiveSession(sessionId);
+        }
+        if( conflater.isConflated(subscriber, key) ){
+            Runnable replaced = conflater.replace(subscriber, key, delivery);
+            if( replaced != null ){
+                // the pending event has been replaced by this one
+                DeliveryTracker.discard(replaced);
+                dispatcher.getStats().onConflated();
+                return true;
+            }
+            // the task delivers whatever is pending when it runs. If it is dropped instead, the slot has to be
+            // emptied too, otherwise the next posts of the key would be conflated into a task that does not exist
+            delivery = new DeliveryTracker.DiscardableDelivery() {
+                public void run() {
+                    Runnable latest = conflater.take(subscriber, key);
+                    if( latest != null ) latest.run();
+                }
+
+                public void discard() {
+                    DeliveryTracker.discard( conflater.take(subscriber, key) );
+                }
+            };
+        }
+        if( !dispatcher.dispatch(sessionId, subscriber, delivery) ){
+            DeliveryTracker.discard(delivery);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Delivers an event of the GlobalBlackboard to a subscriber that this blackboard subscribed, so it goes through
+     * this blackboard's dispatcher, conflation and metrics
+     * @return false if the subscriber's mailbox is full and rejected the event
+     */
+    boolean deliverGlobal(String sessionId, BlackboardListener subscriber, String status, String key,
+                          Object element, DeliveryTracker tracker) throws Throwable{
+        return deliver(sessionId, subscriber, status, key, element, tracker);
+    }
+
+    private Runnable newDelivery(final String sessionId, final BlackboardListener subscriber, final String status,
+                                 final String key, final Object element, final DeliveryTracker tracker){
+        final BlackboardImpl bb = this;
+        final long postedAt = BlackboardMetrics.isEnabled()? System.nanoTime() : 0;
+        Runnable delivery = new Runnable() {
+            public void run() {
+                try {
+                    BlackboardEvent event = new BlackboardEvent(status, key, element, sessionId);
+                    long start = postedAt != 0? System.nanoTime() : 0;
+                    subscriber.onEvent(bb, event);
+                    if( postedAt != 0 ){
+                        recordDelivery(subscriber, status, key, start - postedAt, System.nanoTime() - start);
+                    }
+                    if (subscriber instanceof PluggableComponent && subscriber.getClass()
+                            .isAnnotationPresent(ConnectRemoteService.class)) {
+                        sendToRemote((PluggableComponent) subscriber, sessionId, status, key, event.getElement());
+                    }
+                } catch (Throwable e) {
+                    if( tracker != null ) tracker.onError(subscriber, e);
+                    ExceptionHandler.handle(e);
+                }
+            }
+        };
+        return tracker == null? delivery : tracker.track(subscriber, delivery);
+    }
+
+    /**
+     * Remote services only know single-key messages, so the elements of an ELEMENTS_ADDED event are sent one by one,
+     * as ELEMENT_ADDED messages
+     */
+    @SuppressWarnings("unchecked")
+    private static void sendToRemote(PluggableComponent component, String sessionId, String status, String key,
+                                     Object element){
+        if( status.equals(Constants.ELEMENTS_ADDED) ){
+            for( Map.Entry<String, Object> entry : ((Map<String, Object>) element).entrySet() ){
+                sendToRemote(component, sessionId, Constants.ELEMENT_ADDED, entry.getKey(), entry.getValue());
+            }
+            return;
+        }
+        SessionMessage sessionMessage = new SessionMessage();
+        sessionMessage.setSessionId(sessionId);
+        sessionMessage.setRequestType(status);
+        sessionMessage.setMessageId(key);
+        sessionMessage.setPayload(CommonUtils.toJson(element));
+        component.send(sessionMessage);
+    }
+
+    private static void recordDelivery(BlackboardListener subscriber, String status, String key, long queueWait,
+                                       long duration){
+        BlackboardMetrics.SubscriberMetrics subscriberMetrics = BlackboardMetrics.getSubscriberMetrics(
+                subscriber.getClass());
+        subscriberMetrics.getQueueWait().record(queueWait);
+        subscriberMetrics.getOnEvent().record(duration);
+        if( status.equals(Constants.ELEMENT_ADDED) ){
+            BlackboardMetrics.getKeyMetrics(key).getQueueWait().record(queueWait);
+        }
+    }
+
     public BlackboardListener[] getSubscribers() {
         return subscribers.toArray( new BlackboardListener[ subscribers.size()] );
     }
 
     public void reset() throws Throwable{
         try {
-            model.clear();
+            synchronized (writeLock) {
+                model.clear();
+                versionedModel.clear();
+                cancelExpirations();
+                if( spillStore != null ) spillStore.clear();
+                journal(BlackboardJournal.CLEAR, null, Constants.REMOVE_ALL, BlackboardJournal.encode(null));
+            }
+            fingerprints.clear();
+            awaiters.cancelAll();
+            for( CompletableFuture<Object> future : globalAwaits ){
+                future.cancel(false);
+            }
         }catch (Throwable e){
             checkException( e );
         }
@@ -291,7 +1081,9 @@ public class BlackboardImpl implements Blackboard {
         try {
             if (keyElement.getClass().isAnnotationPresent(ForceSync.class)) {
                 ForceSync annotation = keyElement.getClass().getAnnotation(ForceSync.class);
-                value = shouldClone? Utils.clone(model.get( annotation.id() )) : model.get(annotation.id());
+                value = getValue( annotation.id() );
+                if( verifyImmutability ) verifyImmutability(annotation.id(), value);
+                value = shouldClone? copy(annotation.id(), value) : value;
             }
         }catch (NoClassDefFoundError e){
             value = getSyncEvent( keyElement, false );
@@ -306,14 +1098,22 @@ public class BlackboardImpl implements Blackboard {
 
     public boolean areSubscribersNotified() { return notifySubscribers; }
 
+    /**
+     * @return a copy of the subscriptions: exact key or pattern (e.g., "NLU.*") -> subscribers
+     */
     public ConcurrentHashMap<String, List<BlackboardListener>> getSubscriptions() {
-        return subscriptions;
+        return subscriptions.getTopics();
     }
 
+    /**
+     * @return the subscribers that will be notified when key is posted, including those subscribed through a
+     * pattern, or null if there are none
+     */
     public List<BlackboardListener> getSubscription (String key) throws Exception {
         if (subscriptions == null)
             throw new MultiuserException(ErrorMessages.NOBODY_IS_SUBSCRIBED, key);
-        return subscriptions.get(key);
+        BlackboardListener[] listeners = subscriptions.lookup(key);
+        return listeners.length == 0? null : Collections.unmodifiableList( Arrays.asList(listeners) );
     }
 
     private void checkException(Throwable mex) throws Throwable{
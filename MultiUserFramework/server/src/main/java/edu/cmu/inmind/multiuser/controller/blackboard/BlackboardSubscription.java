@@ -8,9 +8,16 @@ import java.lang.annotation.Target;
 /**
  * Created by oscarr on 3/15/17.
  * Add this annotation to indicate to which messages the PluggableComponent is subscribed to.
+ * Messages can be exact keys or patterns such as "NLU.*" (see TopicIndex).
  */
 @Retention(RetentionPolicy.RUNTIME)
 @Target(ElementType.TYPE)
 public @interface BlackboardSubscription {
     String[] messages();
+
+    /**
+     * Messages (or patterns) for which this component only cares about the latest value: while it still has an
+     * undelivered event of one of these messages, newer posts replace that event instead of being queued.
+     */
+    String[] conflate() default {};
 }
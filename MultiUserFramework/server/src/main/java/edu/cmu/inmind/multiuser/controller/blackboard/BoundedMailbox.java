@@ -0,0 +1,117 @@
+package edu.cmu.inmind.multiuser.controller.blackboard;
+
+import edu.cmu.inmind.multiuser.controller.common.Constants;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Mailbox of one subscriber with a fixed capacity. When it is full, the overflow policy decides what happens with a
+ * new event:
+ * - Constants.OVERFLOW_BLOCK: the poster waits until there is room, up to BLOCK_TIMEOUT ms (and the event is dropped
+ *   after that). The subscriber's own thread never waits for its own mailbox, its event is dropped instead, since
+ *   it would wait forever.
+ * - Constants.OVERFLOW_DROP_OLDEST: the oldest pending event is discarded.
+ * - Constants.OVERFLOW_DROP_NEWEST: the new event is discarded.
+ * - Constants.OVERFLOW_FAIL: the new event is rejected and the poster is notified (see EventDispatcher.dispatch).
+ */
+class BoundedMailbox extends SerialExecutor {
+    static final long BLOCK_TIMEOUT = 1000;
+    private final int capacity;
+    private final String overflowPolicy;
+    private final DispatcherStats stats;
+    private final Semaphore room;
+    private final LongAdder dropped = new LongAdder();
+
+    BoundedMailbox(Executor executor, int capacity, String overflowPolicy, DispatcherStats stats) {
+        super(executor);
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.stats = stats;
+        this.room = new Semaphore(capacity);
+    }
+
+    /**
+     * @return false if the event was rejected (only with OVERFLOW_FAIL)
+     */
+    boolean offer(Runnable delivery){
+        if( !room.tryAcquire() ){
+            switch (overflowPolicy){
+                case Constants.OVERFLOW_DROP_OLDEST:
+                    if( !dropOldest() ){
+                        return offer(delivery);
+                    }
+                    break;
+                case Constants.OVERFLOW_BLOCK:
+                    if( !block() ){
+                        drop(delivery);
+                        return true;
+                    }
+                    break;
+                case Constants.OVERFLOW_FAIL:
+                    drop(delivery);
+                    return false;
+                default:
+                    drop(delivery);
+                    return true;
+            }
+        }
+        execute( EventDispatchers.timed(stats, delivery) );
+        return true;
+    }
+
+    /**
+     * @return true if an event was discarded (its room is handed over to the new one), false if the mailbox was
+     * drained meanwhile
+     */
+    private boolean dropOldest(){
+        Runnable oldest = poll();
+        if( oldest != null ){
+            dropped.increment();
+            stats.onDropped(true);
+            DeliveryTracker.discard(oldest);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean block(){
+        if( isDrainingThread() ){
+            return false;
+        }
+        try {
+            return room.tryAcquire(BLOCK_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Drops a new event (that was not queued)
+     */
+    private void drop(Runnable delivery){
+        dropped.increment();
+        stats.onDropped(false);
+        DeliveryTracker.discard(delivery);
+    }
+
+    @Override
+    protected Runnable next() {
+        Runnable task = super.next();
+        if( task != null ){
+            room.release();
+        }
+        return task;
+    }
+
+    long getDropped(){
+        return dropped.sum();
+    }
+
+    int getCapacity(){
+        return capacity;
+    }
+}
@@ -0,0 +1,29 @@
+package edu.cmu.inmind.multiuser.controller.blackboard;
+
+/**
+ * Delivers each event synchronously on the thread that posts it, so post() returns only when all the subscribers
+ * have processed the event. This is useful for tests and for components whose onEvent is very cheap.
+ */
+public class CallerRunsDispatcher implements EventDispatcher {
+    private final DispatcherStats stats;
+
+    public CallerRunsDispatcher(DispatcherStats stats) {
+        this.stats = stats;
+    }
+
+    @Override
+    public boolean dispatch(String sessionId, BlackboardListener subscriber, Runnable delivery) {
+        EventDispatchers.timed(stats, delivery).run();
+        return true;
+    }
+
+    @Override
+    public DispatcherStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public void close() {
+        //nothing to release
+    }
+}
@@ -0,0 +1,116 @@
+package edu.cmu.inmind.multiuser.controller.blackboard;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Latest-value-wins delivery for high-frequency keys. While a subscriber still has an undelivered event for a
+ * conflated key, newer posts of that key replace the pending event instead of being queued, so a burst of posts
+ * costs at most one pending event per (subscriber, key). Similar to what zmq's YPipeConflate does for sockets.
+ *
+ * A key is conflated either for all the subscribers (Blackboard.registerConflatedKey) or only for one subscriber
+ * (BlackboardSubscription.conflate). Both accept patterns such as "AFFECT.*" (see TopicIndex), which are split
+ * once, when they are registered.
+ */
+public class Conflater {
+    private static final Topic[] NO_TOPICS = new Topic[0];
+    /** copy on write, topics are rarely registered but checked on every delivery **/
+    private volatile Topic[] conflatedTopics = NO_TOPICS;
+    private final ConcurrentHashMap<BlackboardListener, Topic[]> subscriberTopics = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<BlackboardListener, ConcurrentHashMap<String, AtomicReference<Runnable>>>
+            pending = new ConcurrentHashMap<>();
+
+    public synchronized void addConflatedTopic(String topic){
+        for( Topic conflated : conflatedTopics ){
+            if( conflated.topic.equals(topic) ) return;
+        }
+        Topic[] topics = Arrays.copyOf(conflatedTopics, conflatedTopics.length + 1);
+        topics[topics.length - 1] = new Topic(topic);
+        conflatedTopics = topics;
+    }
+
+    public void setConflatedTopics(BlackboardListener subscriber, String[] topics){
+        if( topics != null && topics.length > 0 ) {
+            Topic[] compiled = new Topic[topics.length];
+            for( int i = 0; i < topics.length; i++ ){
+                compiled[i] = new Topic(topics[i]);
+            }
+            subscriberTopics.put(subscriber, compiled);
+        }
+    }
+
+    public void remove(BlackboardListener subscriber){
+        subscriberTopics.remove(subscriber);
+        pending.remove(subscriber);
+    }
+
+    public boolean isConflated(BlackboardListener subscriber, String key){
+        Topic[] topics = conflatedTopics;
+        if( topics.length == 0 && subscriberTopics.isEmpty() ){
+            return false;
+        }
+        for( Topic topic : topics ){
+            if( topic.matches(key) ) return true;
+        }
+        topics = subscriberTopics.get(subscriber);
+        if( topics != null ){
+            for( Topic topic : topics ){
+                if( topic.matches(key) ) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stores delivery as the pending event of (subscriber, key)
+     * @return true if there was no pending event, so the caller has to dispatch a task that calls take; false if
+     * delivery replaced a pending event, which will be taken by the task that is already dispatched
+     */
+    public boolean offer(BlackboardListener subscriber, String key, Runnable delivery){
+        return replace(subscriber, key, delivery) == null;
+    }
+
+    /**
+     * Same as offer, but it returns the pending event that delivery replaced (null if there was none)
+     */
+    public Runnable replace(BlackboardListener subscriber, String key, Runnable delivery){
+        return getSlot(subscriber, key).getAndSet(delivery);
+    }
+
+    /**
+     * @return the latest pending event of (subscriber, key), or null if it was already taken
+     */
+    public Runnable take(BlackboardListener subscriber, String key){
+        return getSlot(subscriber, key).getAndSet(null);
+    }
+
+    private AtomicReference<Runnable> getSlot(BlackboardListener subscriber, String key){
+        ConcurrentHashMap<String, AtomicReference<Runnable>> slots = pending.get(subscriber);
+        if( slots == null ){
+            pending.putIfAbsent(subscriber, new ConcurrentHashMap<String, AtomicReference<Runnable>>());
+            slots = pending.get(subscriber);
+        }
+        AtomicReference<Runnable> slot = slots.get(key);
+        if( slot == null ){
+            slots.putIfAbsent(key, new AtomicReference<Runnable>());
+            slot = slots.get(key);
+        }
+        return slot;
+    }
+
+    private static class Topic {
+        private final String topic;
+        /** null if the topic is not a pattern **/
+        private final String[] pattern;
+
+        Topic(String topic) {
+            this.topic = topic;
+            this.pattern = TopicIndex.isPattern(topic)? TopicIndex.split(topic) : null;
+        }
+
+        boolean matches(String key){
+            return pattern == null? topic.equals(key) : TopicIndex.matches(pattern, key);
+        }
+    }
+}
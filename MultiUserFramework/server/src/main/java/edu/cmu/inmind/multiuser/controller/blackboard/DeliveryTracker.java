@@ -0,0 +1,107 @@
+package edu.cmu.inmind.multiuser.controller.blackboard;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks the deliveries of one postAndTrack. Each delivery that is handed to the dispatcher is wrapped in a
+ * TrackedDelivery, which reports when onEvent returns (or when the event is discarded instead of delivered), and
+ * the future is completed when all of them are done.
+ */
+class DeliveryTracker {
+    private final DeliveryReport report;
+    private final CompletableFuture<DeliveryReport> future = new CompletableFuture<>();
+    /** one per delivery plus one that is released by seal, once all the deliveries have been handed out **/
+    private final AtomicInteger pending = new AtomicInteger(1);
+    private final ConcurrentHashMap<BlackboardListener, Throwable> errors = new ConcurrentHashMap<>();
+
+    DeliveryTracker(String key) {
+        this.report = new DeliveryReport(key);
+    }
+
+    CompletableFuture<DeliveryReport> getFuture() {
+        return future;
+    }
+
+    TrackedDelivery track(BlackboardListener subscriber, Runnable delivery){
+        pending.incrementAndGet();
+        return new TrackedDelivery(subscriber, delivery);
+    }
+
+    /**
+     * No more deliveries will be tracked
+     */
+    void seal(){
+        done();
+    }
+
+    /**
+     * Called by the delivery of subscriber when onEvent throws (each subscriber receives the event only once)
+     */
+    void onError(BlackboardListener subscriber, Throwable error){
+        errors.put(subscriber, error);
+    }
+
+    void fail(Throwable error){
+        future.completeExceptionally(error);
+    }
+
+    private void done(){
+        if( pending.decrementAndGet() == 0 ){
+            report.complete();
+            future.complete(report);
+        }
+    }
+
+    /**
+     * Tells a tracked delivery that it will not be run (e.g., its event was dropped or conflated)
+     */
+    static void discard(Runnable delivery){
+        if( delivery instanceof DiscardableDelivery ){
+            ((DiscardableDelivery) delivery).discard();
+        }
+    }
+
+    /**
+     * A delivery that has to be told when it is dropped instead of run
+     */
+    interface DiscardableDelivery extends Runnable {
+        void discard();
+    }
+
+    class TrackedDelivery implements DiscardableDelivery {
+        private final BlackboardListener subscriber;
+        private final Runnable delivery;
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        TrackedDelivery(BlackboardListener subscriber, Runnable delivery) {
+            this.subscriber = subscriber;
+            this.delivery = delivery;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            try {
+                delivery.run();
+            }finally {
+                finish( new DeliveryReport.SubscriberDelivery(subscriber, start - report.getPostedAt(),
+                        System.nanoTime() - start, errors.remove(subscriber), false) );
+            }
+        }
+
+        @Override
+        public void discard() {
+            finish( new DeliveryReport.SubscriberDelivery(subscriber, 0, 0, null, true) );
+        }
+
+        private void finish(DeliveryReport.SubscriberDelivery result){
+            if( finished.compareAndSet(false, true) ){
+                report.add(result);
+                done();
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package edu.cmu.inmind.multiuser.controller.blackboard;
+
+import edu.cmu.inmind.multiuser.controller.common.Constants;
+import edu.cmu.inmind.multiuser.controller.exceptions.ErrorMessages;
+import edu.cmu.inmind.multiuser.controller.exceptions.ExceptionHandler;
+import edu.cmu.inmind.multiuser.controller.exceptions.MultiuserException;
+import edu.cmu.inmind.multiuser.controller.log.Log4J;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factory of blackboard event dispatchers. It also owns the thread pool that is shared by all the blackboards
+ * (i.e., all the sessions) of this process, so we don't create a new thread per event anymore.
+ */
+public class EventDispatchers {
+    public static final int DEFAULT_POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2;
+    public static final int DEFAULT_QUEUE_CAPACITY = 10 * 1000;
+
+    private static ThreadPoolExecutor sharedPool;
+    private static ConcurrentHashMap<String, DispatcherStats> stats = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the shared pool. If it is not called, the pool is lazily created with default values the first time
+     * a dispatcher needs it.
+     * @param poolSize number of threads (0 means DEFAULT_POOL_SIZE)
+     * @param queueCapacity max number of events waiting for a thread (0 means DEFAULT_QUEUE_CAPACITY). When the queue
+     *                      is full, the posting thread delivers the event by itself (caller-runs back-pressure)
+     */
+    public static synchronized void initSharedPool(int poolSize, int queueCapacity){
+        if( sharedPool == null || sharedPool.isShutdown() ) {
+            poolSize = poolSize <= 0? DEFAULT_POOL_SIZE : poolSize;
+            queueCapacity = queueCapacity <= 0? DEFAULT_QUEUE_CAPACITY : queueCapacity;
+            sharedPool = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueCapacity), new DispatcherThreadFactory(),
+                    new CallerRunsHandler());
+            sharedPool.allowCoreThreadTimeOut(true);
+            Log4J.info(EventDispatchers.class, String.format("Blackboard shared pool created with %s threads and " +
+                    "a queue of %s events", poolSize, queueCapacity));
+        }
+    }
+
+    static synchronized Executor getSharedPool(){
+        if( sharedPool == null || sharedPool.isShutdown() ){
+            initSharedPool(DEFAULT_POOL_SIZE, DEFAULT_QUEUE_CAPACITY);
+        }
+        return sharedPool;
+    }
+
+    public static synchronized void shutdownSharedPool(){
+        if( sharedPool != null ){
+            sharedPool.shutdown();
+            try {
+                if (!sharedPool.awaitTermination(1000, TimeUnit.MILLISECONDS)) {
+                    sharedPool.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                sharedPool.shutdownNow();
+            }
+            sharedPool = null;
+        }
+    }
+
+    /**
+     * @param mode one of Constants.DISPATCH_*
+     * @return a new dispatcher for one blackboard
+     */
+    public static EventDispatcher create(String mode){
+        return create(mode, 0, Constants.OVERFLOW_BLOCK);
+    }
+
+    /**
+     * @param mode one of Constants.DISPATCH_*
+     * @param mailboxCapacity max number of pending events per subscriber (only DISPATCH_MAILBOX, 0 means unbounded)
+     * @param overflowPolicy one of Constants.OVERFLOW_*, used when a mailbox is full
+     * @return a new dispatcher for one blackboard
+     */
+    public static EventDispatcher create(String mode, int mailboxCapacity, String overflowPolicy){
+        if( mode == null || mode.equals(Constants.DISPATCH_SHARED_POOL) ){
+            return new SharedPoolDispatcher( getStats(Constants.DISPATCH_SHARED_POOL) );
+        }else if( mode.equals(Constants.DISPATCH_SESSION_SERIAL) ){
+            return new SessionSerialDispatcher( getStats(mode) );
+        }else if( mode.equals(Constants.DISPATCH_CALLER_RUNS) ){
+            return new CallerRunsDispatcher( getStats(mode) );
+        }else if( mode.equals(Constants.DISPATCH_MAILBOX) ){
+            return new MailboxDispatcher( getStats(mode), mailboxCapacity, overflowPolicy );
+        }
+        ExceptionHandler.handle( new MultiuserException(ErrorMessages.UNKNOWN_DISPATCH_MODE, mode) );
+        return new SharedPoolDispatcher( getStats(Constants.DISPATCH_SHARED_POOL) );
+    }
+
+    /**
+     * @param mode one of Constants.DISPATCH_*
+     * @return the counters aggregated across all the blackboards that use this dispatch mode
+     */
+    public static DispatcherStats getStats(String mode){
+        DispatcherStats modeStats = stats.get(mode);
+        if( modeStats == null ){
+            stats.putIfAbsent(mode, new DispatcherStats());
+            modeStats = stats.get(mode);
+        }
+        return modeStats;
+    }
+
+    /**
+     * Wraps the delivery so the dispatcher stats are updated once the delivery actually starts
+     */
+    static Runnable timed(final DispatcherStats dispatcherStats, final Runnable delivery){
+        final long dispatchedAt = dispatcherStats.onDispatched();
+        if( delivery instanceof DeliveryTracker.DiscardableDelivery ){
+            // keep it discardable, so a mailbox that drops it can still tell it
+            return new DeliveryTracker.DiscardableDelivery() {
+                @Override
+                public void run() {
+                    dispatcherStats.onDeliveryStarted(dispatchedAt);
+                    delivery.run();
+                }
+
+                @Override
+                public void discard() {
+                    ((DeliveryTracker.DiscardableDelivery) delivery).discard();
+                }
+            };
+        }
+        return new Runnable() {
+            @Override
+            public void run() {
+                dispatcherStats.onDeliveryStarted(dispatchedAt);
+                delivery.run();
+            }
+        };
+    }
+
+    static class DispatcherThreadFactory implements ThreadFactory{
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "blackboard-dispatcher-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    static class CallerRunsHandler implements RejectedExecutionHandler{
+        @Override
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+            if( !executor.isShutdown() ){
+                getStats(Constants.DISPATCH_SHARED_POOL).onCallerRuns();
+                runnable.run();
+            }else{
+                DeliveryTracker.discard(runnable);
+            }
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package edu.cmu.inmind.multiuser.controller.blackboard;
+
+import edu.cmu.inmind.multiuser.controller.common.Constants;
+import edu.cmu.inmind.multiuser.controller.exceptions.ErrorMessages;
+import edu.cmu.inmind.multiuser.controller.exceptions.ExceptionHandler;
+import edu.cmu.inmind.multiuser.controller.exceptions.MultiuserException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Process-wide blackboard for the data that every session shares (feature flags, counters, shared models, etc.).
+ * Its keys start with Constants.GLOBAL_NAMESPACE and session blackboards read, post and subscribe to them through
+ * this tier, so the data is stored once instead of once per session.
+ *
+ * The model is copy-on-write: a post publishes a new immutable map through a volatile reference, so reads never
+ * lock (writes are expected to be rare compared to reads). A component that is subscribed from several sessions
+ * (e.g., a stateless component) is subscribed here only once, so it receives each change once, not once per
+ * session. Each event is delivered through the blackboard that subscribed the component, so it honors that
+ * blackboard's dispatch mode, mailbox bounds, conflation, content filters and metrics.
+ *
+ * Blackboard.await on a global key waits here, so it completes whichever session posts the key. The condition
+ * waiters (Blackboard.await(condition)) of the blackboard that posts and of the blackboards that deliver the event
+ * are re-evaluated after each change.
+ */
+public class GlobalBlackboard {
+    private static GlobalBlackboard instance;
+
+    private volatile Map<String, Object> model = Collections.emptyMap();
+    private final Object writeLock = new Object();
+    private final TopicIndex subscriptions = new TopicIndex();
+    private final SubscriptionFilters filters = new SubscriptionFilters();
+    /** blackboards that subscribed each component, the component is unsubscribed when all of them release it **/
+    private final ConcurrentHashMap<BlackboardListener, List<Blackboard>> registrants = new ConcurrentHashMap<>();
+    /** used for the subscribers whose blackboard is not a BlackboardImpl **/
+    private final EventDispatcher dispatcher = EventDispatchers.create(Constants.DISPATCH_SHARED_POOL);
+    private final Awaiters awaiters = new Awaiters();
+
+    private GlobalBlackboard(){}
+
+    public static synchronized GlobalBlackboard getInstance(){
+        if( instance == null ){
+            instance = new GlobalBlackboard();
+        }
+        return instance;
+    }
+
+    public static boolean isGlobal(String key){
+        return key != null && key.startsWith(Constants.GLOBAL_NAMESPACE);
+    }
+
+    public Object get(String key){
+        return model.get(key);
+    }
+
+    /**
+     * @return the current (immutable) model
+     */
+    public Map<String, Object> getModel(){
+        return model;
+    }
+
+    public void post(BlackboardListener sender, String key, Object element){
+        post(sender, key, element, null);
+    }
+
+    /**
+     * @param origin blackboard of the session that posts the element (null if it is not posted from a session)
+     */
+    public void post(BlackboardListener sender, String key, Object element, Blackboard origin){
+        List<BlackboardListener> rejected = new ArrayList<>();
+        post(sender, key, element, origin, null, rejected);
+        reportRejected(key, rejected);
+    }
+
+    /**
+     * @param tracker not null if the post is tracked (see Blackboard.postAndTrack)
+     * @param rejected the subscribers whose mailboxes rejected the event are added to it
+     */
+    void post(BlackboardListener sender, String key, Object element, Blackboard origin, DeliveryTracker tracker,
+              List<BlackboardListener> rejected){
+        if( !isGlobal(key) || element == null ){
+            ExceptionHandler.handle( new MultiuserException(ErrorMessages.ANY_ELEMENT_IS_NULL, "key: " + key,
+                    "element: " + element) );
+            return;
+        }
+        synchronized (writeLock){
+            Map<String, Object> updated = new HashMap<>(model);
+            updated.put(key, element);
+            model = Collections.unmodifiableMap(updated);
+        }
+        // there are no condition waiters here, they belong to the session blackboards (see notifySubscribers)
+        if( !awaiters.isEmpty() ) awaiters.onPost(key, element, null);
+        notifySubscribers(sender, Constants.ELEMENT_ADDED, key, element, origin, tracker, rejected);
+    }
+
+    /**
+     * @return the removed element, if any
+     */
+    public Object remove(BlackboardListener sender, String key, Blackboard origin){
+        List<BlackboardListener> rejected = new ArrayList<>();
+        Object removed = remove(sender, key, origin, rejected);
+        reportRejected(key, rejected);
+        return removed;
+    }
+
+    /**
+     * @param rejected the subscribers whose mailboxes rejected the event are added to it
+     */
+    Object remove(BlackboardListener sender, String key, Blackboard origin, List<BlackboardListener> rejected){
+        Object removed;
+        synchronized (writeLock){
+            if( !model.containsKey(key) ){
+                return null;
+            }
+            Map<String, Object> updated = new HashMap<>(model);
+            removed = updated.remove(key);
+            model = Collections.unmodifiableMap(updated);
+        }
+        notifySubscribers(sender, Constants.ELEMENT_REMOVED, key, removed, origin, null, rejected);
+        return removed;
+    }
+
+    /**
+     * @param condition null means any element
+     * @param timeout in milliseconds (0 means no timeout)
+     * @return a future that is completed with the first element of key (possibly the current one) that satisfies
+     * condition, no matter which session posts it
+     */
+    public CompletableFuture<Object> await(String key, Predicate<Object> condition, long timeout){
+        return awaiters.await(key, condition, timeout, new Function<String, Object>() {
+            @Override
+            public Object apply(String key) {
+                return model.get(key);
+            }
+        });
+    }
+
+    /**
+     * Subscribes subscriber to topic on behalf of blackboard. Subscribing the same component from several
+     * blackboards does not duplicate its events
+     */
+    public void subscribe(BlackboardListener subscriber, String topic, Blackboard blackboard){
+        subscribe(subscriber, topic, null, blackboard);
+    }
+
+    /**
+     * Like subscribe(subscriber, topic, blackboard), but subscriber only gets the events whose element satisfies
+     * filter (if it is not null)
+     */
+    public void subscribe(BlackboardListener subscriber, String topic, Predicate<Object> filter,
+                          Blackboard blackboard){
+        synchronized (registrants){
+            List<Blackboard> blackboards = registrants.get(subscriber);
+            if( blackboards == null ){
+                blackboards = new CopyOnWriteArrayList<>();
+                registrants.put(subscriber, blackboards);
+            }
+            if( !blackboards.contains(blackboard) ) blackboards.add(blackboard);
+            if( filter != null ) filters.add(subscriber, topic, filter);
+            subscriptions.subscribe(topic, subscriber);
+        }
+    }
+
+    /**
+     * The subscriber is unsubscribed once every blackboard that subscribed it has released it
+     * @return true if the subscriber was unsubscribed
+     */
+    public boolean release(BlackboardListener subscriber, Blackboard blackboard){
+        synchronized (registrants){
+            List<Blackboard> blackboards = registrants.get(subscriber);
+            if( blackboards == null || !blackboards.remove(blackboard) || !blackboards.isEmpty() ){
+                return false;
+            }
+            registrants.remove(subscriber);
+            filters.remove(subscriber);
+            return subscriptions.unsubscribe(subscriber);
+        }
+    }
+
+    public BlackboardListener[] getSubscribers(String key){
+        return subscriptions.lookup(key);
+    }
+
+    /**
+     * Removes all the elements and subscriptions, and cancels the pending awaits
+     */
+    public void reset(){
+        synchronized (writeLock){
+            model = Collections.emptyMap();
+        }
+        awaiters.cancelAll();
+        synchronized (registrants){
+            for( BlackboardListener subscriber : registrants.keySet() ){
+                subscriptions.unsubscribe(subscriber);
+                filters.remove(subscriber);
+            }
+            registrants.clear();
+        }
+    }
+
+    /**
+     * Keeps fanning out when a mailbox rejects the event: the rejected subscribers are added to rejected
+     */
+    private void notifySubscribers(BlackboardListener sender, final String status, final String key,
+                                   final Object element, Blackboard origin, DeliveryTracker tracker,
+                                   List<BlackboardListener> rejected){
+        String sessionId = Constants.GLOBAL_NAMESPACE;
+        try {
+            if( sender != null ) sessionId = sender.getSessionId();
+        }catch (Throwable e){
+            ExceptionHandler.handle(e);
+        }
+        BlackboardListener[] listeners = subscriptions.lookup(key);
+        notifyAwaiters(listeners, origin);
+        if( !filters.isEmpty() && element != null ){
+            listeners = filters.filter(listeners, key, element);
+        }
+        if( BlackboardMetrics.isEnabled() && status.equals(Constants.ELEMENT_ADDED) ){
+            BlackboardMetrics.getKeyMetrics(key).onDelivered(listeners.length);
+        }
+        for( final BlackboardListener subscriber : listeners ){
+            final Blackboard blackboard = blackboardOf(subscriber, origin);
+            try {
+                if( blackboard instanceof BlackboardImpl ){
+                    if( !((BlackboardImpl) blackboard).deliverGlobal(sessionId, subscriber, status, key, element,
+                            tracker) ){
+                        rejected.add(subscriber);
+                    }
+                    continue;
+                }
+                if( subscriber.isClosing() ) continue;
+                final String eventSessionId = sessionId;
+                dispatcher.dispatch(sessionId, subscriber, new Runnable() {
+                    public void run() {
+                        try {
+                            subscriber.onEvent(blackboard, new BlackboardEvent(status, key, element,
+                                    eventSessionId));
+                        }catch (Throwable e){
+                            ExceptionHandler.handle(e);
+                        }
+                    }
+                });
+            }catch (Throwable e){
+                ExceptionHandler.handle(e);
+            }
+        }
+    }
+
+    /**
+     * Re-evaluates the condition waiters of origin and of the blackboards that subscribed listeners
+     */
+    private void notifyAwaiters(BlackboardListener[] listeners, Blackboard origin){
+        Set<Blackboard> blackboards = Collections.newSetFromMap(new IdentityHashMap<Blackboard, Boolean>());
+        if( origin != null ) blackboards.add(origin);
+        for( BlackboardListener subscriber : listeners ){
+            Blackboard blackboard = blackboardOf(subscriber, origin);
+            if( blackboard != null ) blackboards.add(blackboard);
+        }
+        for( Blackboard blackboard : blackboards ){
+            if( blackboard instanceof BlackboardImpl ){
+                ((BlackboardImpl) blackboard).onGlobalChange();
+            }
+        }
+    }
+
+    private static void reportRejected(String key, List<BlackboardListener> rejected){
+        if( !rejected.isEmpty() ){
+            List<String> names = new ArrayList<>();
+            for( BlackboardListener subscriber : rejected ){
+                names.add( subscriber.getClass().getSimpleName() );
+            }
+            ExceptionHandler.handle( new MultiuserException(ErrorMessages.SUBSCRIBER_QUEUE_FULL, key, names, "") );
+        }
+    }
+
+    /**
+     * @return origin if subscriber was subscribed through it, otherwise one of the blackboards that subscribed it
+     */
+    private Blackboard blackboardOf(BlackboardListener subscriber, Blackboard origin){
+        List<Blackboard> blackboards = registrants.get(subscriber);
+        if( blackboards == null || blackboards.isEmpty() || blackboards.contains(origin) ){
+            return origin;
+        }
+        try {
+            return blackboards.get(0);
+        }catch (IndexOutOfBoundsException e){
+            return origin;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package edu.cmu.inmind.multiuser.controller.blackboard;
+
+import edu.cmu.inmind.multiuser.controller.common.Constants;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Actor-style delivery: each subscriber of the blackboard (i.e., each (session, subscriber) pair, since there is one
+ * blackboard per session) has its own lock-free mailbox, which is drained by the shared pool. Therefore, a subscriber
+ * receives its events in the same order they were posted and its onEvent is never called concurrently, while
+ * different subscribers still process their events in parallel. Components using this mode don't need to
+ * synchronize their onEvent methods.
+ *
+ * Mailboxes are unbounded unless a capacity is given, in which case the overflow policy (Constants.OVERFLOW_*)
+ * decides what to do when a slow subscriber falls behind (see BoundedMailbox).
+ */
+public class MailboxDispatcher implements EventDispatcher {
+    private final DispatcherStats stats;
+    private final int capacity;
+    private final String overflowPolicy;
+    private final ConcurrentHashMap<BlackboardListener, SerialExecutor> mailboxes = new ConcurrentHashMap<>();
+
+    public MailboxDispatcher(DispatcherStats stats) {
+        this(stats, 0, Constants.OVERFLOW_BLOCK);
+    }
+
+    /**
+     * @param capacity max number of pending events per subscriber (0 means unbounded)
+     * @param overflowPolicy one of Constants.OVERFLOW_*
+     */
+    public MailboxDispatcher(DispatcherStats stats, int capacity, String overflowPolicy) {
+        this.stats = stats;
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    @Override
+    public boolean dispatch(String sessionId, BlackboardListener subscriber, Runnable delivery) {
+        SerialExecutor mailbox = getMailbox(subscriber);
+        if( mailbox instanceof BoundedMailbox ){
+            return ((BoundedMailbox) mailbox).offer(delivery);
+        }
+        mailbox.execute( EventDispatchers.timed(stats, delivery) );
+        return true;
+    }
+
+    private SerialExecutor getMailbox(BlackboardListener subscriber){
+        SerialExecutor mailbox = mailboxes.get(subscriber);
+        if( mailbox == null || mailbox.getOnIdle() != null ){
+            synchronized (this){
+                mailbox = mailboxes.get(subscriber);
+                if( mailbox == null ){
+                    mailbox = capacity > 0
+                            ? new BoundedMailbox( EventDispatchers.getSharedPool(), capacity, overflowPolicy, stats )
+                            : new SerialExecutor( EventDispatchers.getSharedPool() );
+                    mailboxes.put(subscriber, mailbox);
+                }else{
+                    // the subscriber is back before its old mailbox was drained, so it keeps using it
+                    mailbox.setOnIdle(null);
+                }
+            }
+        }
+        return mailbox;
+    }
+
+    /**
+     * Forgets the mailbox of a subscriber (e.g., when it unsubscribes). Events that are already in the mailbox
+     * are still delivered, and the mailbox is kept until they are, so if the subscriber subscribes again
+     * meanwhile its new events are not processed concurrently with the old ones.
+     */
+    public void removeMailbox(final BlackboardListener subscriber){
+        final SerialExecutor mailbox = mailboxes.get(subscriber);
+        if( mailbox == null ){
+            return;
+        }
+        mailbox.setOnIdle(new Runnable() {
+            @Override
+            public void run() {
+                forget(subscriber, mailbox);
+            }
+        });
+        forget(subscriber, mailbox);
+    }
+
+    private synchronized void forget(BlackboardListener subscriber, SerialExecutor mailbox){
+        if( mailbox.getOnIdle() != null && mailbox.isIdle() ){
+            mailboxes.remove(subscriber, mailbox);
+        }
+    }
+
+    /**
+     * @return number of subscribers that currently have a mailbox
+     */
+    public int getNumOfMailboxes(){
+        return mailboxes.size();
+    }
+
+    /**
+     * @return number of events waiting in the subscriber's mailbox
+     */
+    public int getQueueDepth(BlackboardListener subscriber){
+        SerialExecutor mailbox = mailboxes.get(subscriber);
+        return mailbox == null? 0 : mailbox.getDepth();
+    }
+
+    /**
+     * @return number of events of this subscriber that have been discarded because its mailbox was full
+     */
+    public long getDropped(BlackboardListener subscriber){
+        SerialExecutor mailbox = mailboxes.get(subscriber);
+        return mailbox instanceof BoundedMailbox? ((BoundedMailbox) mailbox).getDropped() : 0;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public String getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    @Override
+    public DispatcherStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public void close() {
+        //pending events are still delivered since the drain tasks keep a reference to their mailboxes
+        mailboxes.clear();
+    }
+}
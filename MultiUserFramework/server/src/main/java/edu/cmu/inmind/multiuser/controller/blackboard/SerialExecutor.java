@@ -0,0 +1,140 @@
+package edu.cmu.inmind.multiuser.controller.blackboard;
+
+import edu.cmu.inmind.multiuser.controller.exceptions.ExceptionHandler;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs its tasks one at a time, in FIFO order, on top of another (shared) executor. At most one drain task is
+ * scheduled at any time, and it gives the thread back after BATCH_SIZE tasks so a busy queue does not starve the
+ * other ones that share the same pool. If the pool does not run the drain task (it is rejected, or discarded because
+ * the pool is shut down), the tasks waiting in the queue are discarded too, since nothing would ever run them.
+ * Reference: {@Link https://docs.oracle.com/javase/8/docs/api/java/util/concurrent/Executor.html}
+ */
+class SerialExecutor implements Executor, DeliveryTracker.DiscardableDelivery {
+    private static final int BATCH_SIZE = 64;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final AtomicInteger depth = new AtomicInteger();
+    private final Executor executor;
+    /** thread that is currently running the tasks, if any **/
+    private volatile Thread drainer;
+    /** called when the executor runs out of tasks, if it is set **/
+    private volatile Runnable onIdle;
+
+    SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        depth.incrementAndGet();
+        tasks.offer(task);
+        schedule();
+    }
+
+    protected void schedule(){
+        if( !tasks.isEmpty() && scheduled.compareAndSet(false, true) ){
+            try {
+                executor.execute(this);
+            }catch (RejectedExecutionException e){
+                ExceptionHandler.handle(e);
+                discard();
+            }
+        }
+    }
+
+    /**
+     * Called when the drain task will not run (see EventDispatchers.CallerRunsHandler). The waiting tasks are
+     * discarded and the queue is checked again once the executor is no longer scheduled, since a task that is added
+     * meanwhile does not schedule it
+     */
+    @Override
+    public void discard() {
+        do {
+            Runnable task;
+            while( (task = next()) != null ){
+                DeliveryTracker.discard(task);
+            }
+            scheduled.set(false);
+        } while( !tasks.isEmpty() && scheduled.compareAndSet(false, true) );
+        Runnable onIdle = this.onIdle;
+        if( onIdle != null && isIdle() ){
+            onIdle.run();
+        }
+    }
+
+    /**
+     * @return the next task to run, or null if there are no more
+     */
+    protected Runnable next(){
+        return poll();
+    }
+
+    protected Runnable poll(){
+        Runnable task = tasks.poll();
+        if( task != null ){
+            depth.decrementAndGet();
+        }
+        return task;
+    }
+
+    /**
+     * @return number of tasks waiting to run
+     */
+    int getDepth(){
+        return depth.get();
+    }
+
+    /**
+     * @return true if there are no tasks waiting or running
+     */
+    boolean isIdle(){
+        return tasks.isEmpty() && !scheduled.get();
+    }
+
+    Runnable getOnIdle() {
+        return onIdle;
+    }
+
+    void setOnIdle(Runnable onIdle) {
+        this.onIdle = onIdle;
+    }
+
+    /**
+     * @return true if the calling thread is the one running this executor's tasks
+     */
+    boolean isDrainingThread(){
+        return drainer == Thread.currentThread();
+    }
+
+    @Override
+    public void run() {
+        drainer = Thread.currentThread();
+        try {
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                Runnable task = next();
+                if (task == null) {
+                    break;
+                }
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    ExceptionHandler.handle(e);
+                }
+            }
+        }finally {
+            drainer = null;
+            scheduled.set(false);
+            schedule();
+            Runnable onIdle = this.onIdle;
+            if( onIdle != null && isIdle() ){
+                onIdle.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package edu.cmu.inmind.multiuser.controller.blackboard;
+
+/**
+ * Delivers the events of one session (i.e., one blackboard) one at a time and in the same order they were posted,
+ * borrowing a thread from the shared pool only while there are pending events.
+ */
+public class SessionSerialDispatcher implements EventDispatcher {
+    private final DispatcherStats stats;
+    private final SerialExecutor executor;
+
+    public SessionSerialDispatcher(DispatcherStats stats) {
+        this.stats = stats;
+        this.executor = new SerialExecutor( EventDispatchers.getSharedPool() );
+    }
+
+    @Override
+    public boolean dispatch(String sessionId, BlackboardListener subscriber, Runnable delivery) {
+        executor.execute( EventDispatchers.timed(stats, delivery) );
+        return true;
+    }
+
+    @Override
+    public DispatcherStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public void close() {
+        //pending events are still delivered, there is nothing else to release
+    }
+}
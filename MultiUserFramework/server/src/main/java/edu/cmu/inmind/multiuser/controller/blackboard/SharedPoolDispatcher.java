@@ -0,0 +1,30 @@
+package edu.cmu.inmind.multiuser.controller.blackboard;
+
+/**
+ * Delivers each event on the process-wide blackboard pool. Events are delivered concurrently, so two events posted
+ * to the same subscriber may overlap or arrive out of order (same behavior we had with a thread per event, but
+ * without paying the thread creation).
+ */
+public class SharedPoolDispatcher implements EventDispatcher {
+    private final DispatcherStats stats;
+
+    public SharedPoolDispatcher(DispatcherStats stats) {
+        this.stats = stats;
+    }
+
+    @Override
+    public boolean dispatch(String sessionId, BlackboardListener subscriber, Runnable delivery) {
+        EventDispatchers.getSharedPool().execute( EventDispatchers.timed(stats, delivery) );
+        return true;
+    }
+
+    @Override
+    public DispatcherStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public void close() {
+        //nothing to release, the pool is shared
+    }
+}
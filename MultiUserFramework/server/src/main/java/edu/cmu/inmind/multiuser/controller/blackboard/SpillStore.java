@@ -0,0 +1,528 @@
+package edu.cmu.inmind.multiuser.controller.blackboard;
+
+import edu.cmu.inmind.multiuser.controller.exceptions.ExceptionHandler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Second tier of the blackboard model. It keeps track of the (serialized) size of the values that are on the heap,
+ * and when they exceed the budget of the session, the least recently used (posted or read, see onRead) values are
+ * dropped from the heap and loaded back from a memory-mapped file when they are read. When all the sessions together exceed the global budget,
+ * the values are evicted from the session that has the most bytes on the heap. Only Serializable values are
+ * accounted for and spilled.
+ *
+ * Values are serialized once, by the poster and outside the blackboard's lock (see serialize), and their bytes are
+ * appended to the file when they are posted, so evicting a value does not serialize it again. The file is split in
+ * segments of up to MAX_SEGMENT_SIZE bytes. Disk space of values that are removed or overwritten is reclaimed by
+ * compacting the segments when more than half of them is garbage. Each disk copy (Ref) keeps the mapping it was
+ * read from, so copies that open snapshots still hold can be read after a compaction or a clear.
+ */
+public class SpillStore {
+    private static final int INITIAL_SEGMENT_SIZE = 1024 * 1024;
+    static final int MAX_SEGMENT_SIZE = 1024 * 1024 * 1024;
+    private static final AtomicLong globalHotBytes = new AtomicLong();
+    private static volatile long globalBudget = 0;
+    /** all the stores, to evict from the biggest one when the global budget is exceeded (guarded by itself) **/
+    private static final Set<SpillStore> stores = Collections.newSetFromMap(new WeakHashMap<SpillStore, Boolean>());
+    /** spill files that have not been deleted yet, they are deleted when the process exits **/
+    private static final Set<File> files = ConcurrentHashMap.newKeySet();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for( File file : files ){
+                    file.delete();
+                }
+            }
+        }, "blackboard-spill-cleaner"));
+    }
+
+    private volatile long sessionBudget;
+    private final Evictor evictor;
+    /** values on the heap, in LRU order (guarded by this) **/
+    private final LinkedHashMap<String, Entry> hot = new LinkedHashMap<>(16, 0.75f, true);
+    /** values that are only on disk **/
+    private final ConcurrentHashMap<String, Ref> spilled = new ConcurrentHashMap<>();
+    private long hotBytes;
+    private final LongAdder spills = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder compactions = new LongAdder();
+    private final List<Segment> segments = new ArrayList<>();
+    /** the segment that is written, the last one **/
+    private Segment current;
+    private long writtenBytes;
+    private long garbageBytes;
+
+    /**
+     * Removes an evicted value from the heap (model and versioned model)
+     */
+    public interface Evictor {
+        /**
+         * @return false if the key does not hold value anymore (e.g., it was posted again meanwhile)
+         */
+        boolean evict(String key, Object value, Ref ref);
+    }
+
+    /**
+     * @param sessionBudget max number of bytes of this session's values that can be on the heap (0 means that only the
+     *                      global budget applies)
+     */
+    public SpillStore(long sessionBudget, Evictor evictor) {
+        this.sessionBudget = sessionBudget;
+        this.evictor = evictor;
+        synchronized (stores){
+            stores.add(this);
+        }
+    }
+
+    /**
+     * @param bytes max number of bytes of blackboard values (of all the sessions) that can be on the heap (0 means
+     *              unlimited)
+     */
+    public static void setGlobalBudget(long bytes){
+        globalBudget = bytes;
+    }
+
+    public static long getGlobalBudget(){
+        return globalBudget;
+    }
+
+    public static long getGlobalHotBytes(){
+        return globalHotBytes.get();
+    }
+
+    /**
+     * Changes the budget of the session, evicting values if it is exceeded
+     */
+    public void setSessionBudget(long sessionBudget){
+        this.sessionBudget = sessionBudget;
+        synchronized (this){
+            evictIfNeeded();
+        }
+    }
+
+    /**
+     * @return the serialized value, to pass it to onPut, or null if it is not Serializable. It is meant to be called
+     * before taking the blackboard's lock
+     */
+    public static byte[] serialize(Object value){
+        if( !(value instanceof Serializable) ){
+            return null;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+                output.writeObject(value);
+            }
+            return bytes.toByteArray();
+        }catch (IOException e){
+            // e.g., a Serializable class with fields that are not, it stays on the heap
+            return null;
+        }
+    }
+
+    /**
+     * Accounts for a value that has just been posted and evicts others if the budget is exceeded
+     * @param bytes the serialized value (see serialize), null if it cannot be spilled
+     */
+    public void onPut(String key, Object value, byte[] bytes){
+        synchronized (this) {
+            discard(key);
+            if (bytes != null) {
+                try {
+                    admit(key, new Entry(value, bytes.length, write(bytes)));
+                } catch (IOException e) {
+                    ExceptionHandler.handle(e);
+                }
+                evictIfNeeded();
+            }
+        }
+        enforceGlobalBudget();
+    }
+
+    /**
+     * Marks the value of key as the most recently used one, if it is on the heap
+     */
+    public synchronized void onRead(String key){
+        hot.get(key);
+    }
+
+    /**
+     * @return the disk copy of key if its value is not on the heap, null otherwise
+     */
+    public Ref getSpilled(String key){
+        return spilled.get(key);
+    }
+
+    /**
+     * @return the keys whose values are only on disk
+     */
+    public Set<String> getSpilledKeys(){
+        return spilled.keySet();
+    }
+
+    /**
+     * Accounts for a value that has just been loaded back to the heap
+     */
+    public void onLoad(String key, Object value, Ref ref){
+        synchronized (this) {
+            if (!spilled.remove(key, ref)) {
+                return;
+            }
+            loads.increment();
+            admit(key, new Entry(value, ref.length, ref));
+            evictIfNeeded();
+        }
+        enforceGlobalBudget();
+    }
+
+    public synchronized void remove(String key){
+        discard(key);
+    }
+
+    /**
+     * Forgets all the values and deletes the segments. Disk copies that are still referenced (e.g., by open
+     * snapshots) can still be read, since they keep their mappings
+     */
+    public synchronized void clear(){
+        for( String key : new ArrayList<>( hot.keySet() ) ){
+            discard(key);
+        }
+        spilled.clear();
+        for( Segment segment : segments ){
+            segment.close();
+        }
+        segments.clear();
+        current = null;
+        writtenBytes = 0;
+        garbageBytes = 0;
+    }
+
+    /**
+     * Same as clear, and the store is not taken into account for the global budget anymore
+     */
+    public void close(){
+        clear();
+        synchronized (stores){
+            stores.remove(this);
+        }
+    }
+
+    private void admit(String key, Entry entry){
+        hot.put(key, entry);
+        hotBytes += entry.size;
+        globalHotBytes.addAndGet(entry.size);
+    }
+
+    /**
+     * Forgets the current value of key (on the heap and on disk)
+     */
+    private void discard(String key){
+        Entry entry = hot.remove(key);
+        if( entry != null ){
+            hotBytes -= entry.size;
+            globalHotBytes.addAndGet(-entry.size);
+            free(entry.ref);
+        }
+        free(spilled.remove(key));
+    }
+
+    private void free(Ref ref){
+        if( ref != null ){
+            garbageBytes += ref.length;
+        }
+    }
+
+    private void evictIfNeeded(){
+        long budget = sessionBudget;
+        while( budget > 0 && hotBytes > budget && evictEldest() );
+    }
+
+    /**
+     * Spills the least recently used value of this store
+     * @return false if there are no values on the heap
+     */
+    private synchronized boolean evictEldest(){
+        Iterator<Map.Entry<String, Entry>> iterator = hot.entrySet().iterator();
+        if( !iterator.hasNext() ){
+            return false;
+        }
+        Map.Entry<String, Entry> eldest = iterator.next();
+        String key = eldest.getKey();
+        Entry entry = eldest.getValue();
+        // the disk copy is published before the value leaves the heap, so readers always find one of them
+        spilled.put(key, entry.ref);
+        boolean isEvicted = false;
+        try {
+            isEvicted = evictor.evict(key, entry.value, entry.ref);
+        }catch (Throwable e){
+            ExceptionHandler.handle(e);
+        }
+        if( isEvicted ){
+            spills.increment();
+        }else{
+            spilled.remove(key, entry.ref);
+            free(entry.ref);
+        }
+        iterator.remove();
+        hotBytes -= entry.size;
+        globalHotBytes.addAndGet(-entry.size);
+        return true;
+    }
+
+    /**
+     * Evicts values from the stores with the most bytes on the heap until the global budget is met. It is called
+     * without holding any store's lock
+     */
+    private static void enforceGlobalBudget(){
+        if( globalBudget <= 0 || globalHotBytes.get() <= globalBudget ){
+            return;
+        }
+        synchronized (stores){
+            while( globalBudget > 0 && globalHotBytes.get() > globalBudget ){
+                SpillStore biggest = null;
+                long biggestBytes = 0;
+                for( SpillStore store : stores ){
+                    long bytes = store.getHotBytes();
+                    if( bytes > biggestBytes ){
+                        biggest = store;
+                        biggestBytes = bytes;
+                    }
+                }
+                if( biggest == null || !biggest.evictEldest() ){
+                    return;
+                }
+            }
+        }
+    }
+
+    private Ref write(byte[] bytes) throws IOException{
+        if( current == null || current.position + bytes.length > current.buffer.capacity() ){
+            if( garbageBytes > writtenBytes / 2 ){
+                compact();
+            }
+            makeRoom(bytes.length);
+        }
+        return new Ref(append(bytes), bytes.length);
+    }
+
+    /**
+     * Makes sure the current segment has room for length more bytes, growing it or opening a new one
+     */
+    private void makeRoom(int length) throws IOException{
+        if( current != null && current.position + length <= current.buffer.capacity() ){
+            return;
+        }
+        if( current != null && (long) current.position + length <= MAX_SEGMENT_SIZE ){
+            long size = current.buffer.capacity();
+            while( size < current.position + length ) size *= 2;
+            current.map( (int) Math.min(size, MAX_SEGMENT_SIZE) );
+        }else{
+            current = new Segment( Math.max(INITIAL_SEGMENT_SIZE, length) );
+            segments.add(current);
+        }
+    }
+
+    private Slot append(byte[] bytes){
+        ByteBuffer target = current.buffer.duplicate();
+        target.position(current.position);
+        target.put(bytes);
+        Slot slot = new Slot(current.buffer, current.position);
+        current.position += bytes.length;
+        writtenBytes += bytes.length;
+        return slot;
+    }
+
+    /**
+     * Copies the live disk copies to new segments and deletes the old ones, so the space of the removed ones is
+     * reclaimed
+     */
+    private void compact() throws IOException{
+        List<Ref> live = new ArrayList<>( spilled.values() );
+        for( Entry entry : hot.values() ){
+            live.add(entry.ref);
+        }
+        List<Segment> old = new ArrayList<>( segments );
+        segments.clear();
+        current = null;
+        writtenBytes = 0;
+        garbageBytes = 0;
+        for( Ref ref : live ){
+            byte[] bytes = ref.read();
+            makeRoom(bytes.length);
+            ref.slot = append(bytes);
+        }
+        for( Segment segment : old ){
+            segment.close();
+        }
+        compactions.increment();
+    }
+
+    private static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException{
+        try (ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return input.readObject();
+        }
+    }
+
+    public long getSessionBudget() {
+        return sessionBudget;
+    }
+
+    public synchronized long getHotBytes() {
+        return hotBytes;
+    }
+
+    /**
+     * @return bytes on disk that belong to live values
+     */
+    public synchronized long getSpilledBytes() {
+        return writtenBytes - garbageBytes;
+    }
+
+    public synchronized long getFileSize() {
+        long size = 0;
+        for( Segment segment : segments ){
+            size += segment.buffer.capacity();
+        }
+        return size;
+    }
+
+    public int getNumOfSpilledKeys() {
+        return spilled.size();
+    }
+
+    public long getSpills() {
+        return spills.sum();
+    }
+
+    public long getLoads() {
+        return loads.sum();
+    }
+
+    public long getCompactions() {
+        return compactions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[hotBytes: %s, spilledBytes: %s, spilledKeys: %s, spills: %s, loads: %s, fileSize: %s, " +
+                "compactions: %s]", getHotBytes(), getSpilledBytes(), getNumOfSpilledKeys(), getSpills(), getLoads(),
+                getFileSize(), getCompactions());
+    }
+
+    private static class Entry {
+        private final Object value;
+        private final long size;
+        /** copy on disk **/
+        private final Ref ref;
+
+        Entry(Object value, long size, Ref ref) {
+            this.value = value;
+            this.size = size;
+            this.ref = ref;
+        }
+    }
+
+    /**
+     * One file of the store, mapped as a whole
+     */
+    private static class Segment {
+        private final File file;
+        private final FileChannel channel;
+        private MappedByteBuffer buffer;
+        private int position;
+
+        Segment(int size) throws IOException {
+            file = File.createTempFile("blackboard-spill-", ".bin");
+            files.add(file);
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            map(size);
+        }
+
+        /**
+         * Maps the segment again with a bigger size. The previous mapping stays valid for the disk copies that use it
+         */
+        void map(int size) throws IOException {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        /**
+         * Closes and deletes the file. Its mappings stay valid until they are garbage collected
+         */
+        void close(){
+            try {
+                channel.close();
+            }catch (IOException e){
+                ExceptionHandler.handle(e);
+            }
+            if( file.delete() ){
+                files.remove(file);
+            }
+        }
+    }
+
+    /**
+     * Where a disk copy is: a mapping and the offset in it
+     */
+    private static class Slot {
+        private final ByteBuffer buffer;
+        private final int offset;
+
+        Slot(ByteBuffer buffer, int offset) {
+            this.buffer = buffer;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * A serialized value in the spill file
+     */
+    public static class Ref {
+        /** it changes when the store is compacted **/
+        private volatile Slot slot;
+        private final int length;
+
+        Ref(Slot slot, int length) {
+            this.slot = slot;
+            this.length = length;
+        }
+
+        private byte[] read(){
+            Slot slot = this.slot;
+            byte[] bytes = new byte[length];
+            ByteBuffer source = slot.buffer.duplicate();
+            source.position(slot.offset);
+            source.get(bytes);
+            return bytes;
+        }
+
+        /**
+         * @return a new instance deserialized from the spill file
+         */
+        public Object load() throws IOException, ClassNotFoundException{
+            return deserialize( read() );
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package edu.cmu.inmind.multiuser.controller.blackboard;
+
+import edu.cmu.inmind.multiuser.controller.exceptions.ExceptionHandler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Content filters of the subscriptions (see Blackboard.subscribe(subscriber, topic, filter)). They are evaluated on
+ * the posting thread, once per post and subscriber, before the element is copied or dispatched, so an event that a
+ * subscriber would discard in onEvent costs neither a copy nor a dispatcher thread. When there are no filters, the
+ * post path only checks that the map is empty.
+ */
+public class SubscriptionFilters {
+    private static final BlackboardListener[] NONE = new BlackboardListener[0];
+    /** filters of each subscriber (the arrays are copy-on-write) **/
+    private final ConcurrentHashMap<BlackboardListener, Filter[]> filters = new ConcurrentHashMap<>();
+
+    public boolean isEmpty(){
+        return filters.isEmpty();
+    }
+
+    public synchronized void add(BlackboardListener subscriber, String topic, Predicate<Object> predicate){
+        Filter[] current = filters.get(subscriber);
+        List<Filter> updated = new ArrayList<>();
+        if( current != null ){
+            for( Filter filter : current ){
+                // a new filter for the same topic replaces the old one
+                if( !filter.topic.equals(topic) ) updated.add(filter);
+            }
+        }
+        updated.add( new Filter(topic, predicate) );
+        filters.put(subscriber, updated.toArray( new Filter[ updated.size() ] ));
+    }
+
+    public synchronized void remove(BlackboardListener subscriber){
+        filters.remove(subscriber);
+    }
+
+    /**
+     * @return the listeners that accept element (the same array if all of them accept it)
+     */
+    public BlackboardListener[] filter(BlackboardListener[] listeners, String key, Object element){
+        List<BlackboardListener> accepted = null;
+        for( int i = 0; i < listeners.length; i++ ){
+            boolean accepts = accepts(listeners[i], key, element);
+            if( !accepts && accepted == null ){
+                accepted = new ArrayList<>( Arrays.asList(listeners).subList(0, i) );
+            }else if( accepts && accepted != null ){
+                accepted.add(listeners[i]);
+            }
+        }
+        if( accepted == null ){
+            return listeners;
+        }
+        return accepted.isEmpty()? NONE : accepted.toArray( new BlackboardListener[ accepted.size() ] );
+    }
+
+    /**
+     * @return false if any filter of subscriber whose topic matches key rejects element
+     */
+    private boolean accepts(BlackboardListener subscriber, String key, Object element){
+        Filter[] subscriberFilters = filters.get(subscriber);
+        if( subscriberFilters == null ){
+            return true;
+        }
+        boolean accepts = true;
+        for( Filter filter : subscriberFilters ){
+            if( filter.matches(key) && !filter.test(element) ){
+                accepts = false;
+            }
+        }
+        return accepts;
+    }
+
+    /**
+     * @return the filters of subscriber, with their hit/miss counters
+     */
+    public List<Filter> getFilters(BlackboardListener subscriber){
+        Filter[] subscriberFilters = filters.get(subscriber);
+        return subscriberFilters == null? Collections.<Filter>emptyList()
+                : Collections.unmodifiableList( Arrays.asList(subscriberFilters) );
+    }
+
+    public static class Filter {
+        private final String topic;
+        private final String[] pattern;
+        private final Predicate<Object> predicate;
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+
+        Filter(String topic, Predicate<Object> predicate) {
+            this.topic = topic;
+            this.pattern = TopicIndex.isPattern(topic)? TopicIndex.split(topic) : null;
+            this.predicate = predicate;
+        }
+
+        boolean matches(String key){
+            return pattern == null? topic.equals(key) : TopicIndex.matches(pattern, key);
+        }
+
+        /**
+         * A filter that throws counts as a miss
+         */
+        boolean test(Object element){
+            boolean accepted;
+            try {
+                accepted = predicate.test(element);
+            }catch (Throwable e){
+                ExceptionHandler.handle(e);
+                accepted = false;
+            }
+            if( accepted ){
+                hits.increment();
+            }else{
+                misses.increment();
+            }
+            return accepted;
+        }
+
+        public String getTopic() {
+            return topic;
+        }
+
+        /**
+         * @return number of elements that passed the filter (and were delivered)
+         */
+        public long getHits() {
+            return hits.sum();
+        }
+
+        /**
+         * @return number of elements that were not delivered because of the filter
+         */
+        public long getMisses() {
+            return misses.sum();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[topic: %s, hits: %s, misses: %s]", topic, getHits(), getMisses());
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package edu.cmu.inmind.multiuser.controller.blackboard;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps blackboard keys to their subscribers. Keys are hierarchical (segments separated by '.') and a subscription
+ * can be either an exact key (e.g., "NLU.INTENT") or a pattern where '*' stands for one segment (e.g., "NLU.*.SLOTS").
+ * If '*' is the last segment, it stands for one or more segments, so "NLU.*" is a prefix subscription that matches
+ * "NLU.INTENT" and "NLU.INTENT.SLOTS" but not "NLU".
+ *
+ * The index is copy-on-write: subscribe and unsubscribe build a new immutable snapshot and publish it through a
+ * volatile reference, so lookups never block (nor are blocked by) writers. Each snapshot caches the subscribers
+ * resolved for every key it has been asked for, so after the first post of a key, its lookup does not allocate.
+ */
+public class TopicIndex {
+    public static final String WILDCARD = "*";
+    public static final String SEPARATOR = ".";
+    private static final BlackboardListener[] NONE = new BlackboardListener[0];
+    /** keys beyond this number are resolved on every lookup instead of being cached **/
+    private static final int MAX_RESOLVED_KEYS = 4096;
+
+    private volatile Snapshot snapshot = new Snapshot( new LinkedHashMap<String, BlackboardListener[]>() );
+    private final Object writeLock = new Object();
+
+    /**
+     * @param key a posted key
+     * @return the subscribers of this key (exact subscriptions first, then patterns in subscription order). The
+     * returned array is shared, so it must not be modified
+     */
+    public BlackboardListener[] lookup(String key){
+        return snapshot.lookup(key);
+    }
+
+    /**
+     * @return true if the subscriber was not subscribed to this topic yet
+     */
+    public boolean subscribe(String topic, BlackboardListener subscriber){
+        synchronized (writeLock){
+            BlackboardListener[] listeners = snapshot.topics.get(topic);
+            if( listeners == null ){
+                listeners = NONE;
+            }
+            for( BlackboardListener listener : listeners ){
+                if( listener == subscriber ) return false;
+            }
+            BlackboardListener[] newListeners = new BlackboardListener[ listeners.length + 1 ];
+            System.arraycopy(listeners, 0, newListeners, 0, listeners.length);
+            newListeners[ listeners.length ] = subscriber;
+            LinkedHashMap<String, BlackboardListener[]> topics = new LinkedHashMap<>(snapshot.topics);
+            topics.put(topic, newListeners);
+            snapshot = new Snapshot(topics);
+            return true;
+        }
+    }
+
+    /**
+     * Removes the subscriber from all its topics
+     * @return true if the subscriber was subscribed to any topic
+     */
+    public boolean unsubscribe(BlackboardListener subscriber){
+        synchronized (writeLock){
+            boolean removed = false;
+            LinkedHashMap<String, BlackboardListener[]> topics = new LinkedHashMap<>();
+            for( Map.Entry<String, BlackboardListener[]> entry : snapshot.topics.entrySet() ){
+                List<BlackboardListener> listeners = new ArrayList<>( entry.getValue().length );
+                for( BlackboardListener listener : entry.getValue() ){
+                    if( listener == subscriber ){
+                        removed = true;
+                    }else{
+                        listeners.add(listener);
+                    }
+                }
+                if( !listeners.isEmpty() ){
+                    topics.put( entry.getKey(), listeners.toArray( new BlackboardListener[ listeners.size() ] ) );
+                }
+            }
+            if( removed ){
+                snapshot = new Snapshot(topics);
+            }
+            return removed;
+        }
+    }
+
+    public void clear(){
+        synchronized (writeLock){
+            snapshot = new Snapshot( new LinkedHashMap<String, BlackboardListener[]>() );
+        }
+    }
+
+    /**
+     * @return a copy of the subscriptions: topic (exact key or pattern) -> subscribers
+     */
+    public ConcurrentHashMap<String, List<BlackboardListener>> getTopics(){
+        ConcurrentHashMap<String, List<BlackboardListener>> topics = new ConcurrentHashMap<>();
+        for( Map.Entry<String, BlackboardListener[]> entry : snapshot.topics.entrySet() ){
+            List<BlackboardListener> listeners = new ArrayList<>( entry.getValue().length );
+            Collections.addAll( listeners, entry.getValue() );
+            topics.put( entry.getKey(), Collections.unmodifiableList(listeners) );
+        }
+        return topics;
+    }
+
+    public static boolean isPattern(String topic){
+        return topic.contains(WILDCARD);
+    }
+
+    static boolean matches(String[] pattern, String key){
+        int start = 0;
+        for( int i = 0; i < pattern.length; i++ ){
+            if( start > key.length() ) return false;
+            int end = key.indexOf(SEPARATOR, start);
+            if( end == -1 ) end = key.length();
+            if( pattern[i].equals(WILDCARD) ){
+                if( end == start ) return false; //empty segment
+                if( i == pattern.length - 1 ) return true; //trailing wildcard: one or more segments
+            }else if( !key.regionMatches(start, pattern[i], 0, pattern[i].length())
+                    || pattern[i].length() != end - start ){
+                return false;
+            }
+            start = end + 1;
+        }
+        return start == key.length() + 1;
+    }
+
+    static String[] split(String pattern){
+        List<String> segments = new ArrayList<>();
+        int start = 0, end;
+        while( (end = pattern.indexOf(SEPARATOR, start)) != -1 ){
+            segments.add( pattern.substring(start, end) );
+            start = end + 1;
+        }
+        segments.add( pattern.substring(start) );
+        return segments.toArray( new String[ segments.size() ] );
+    }
+
+    /**
+     * Immutable state of the index. Only the resolved cache changes, and it is derived from the immutable part.
+     */
+    private static class Snapshot {
+        private final Map<String, BlackboardListener[]> topics;
+        private final Map<String, BlackboardListener[]> exact = new HashMap<>();
+        private final List<String[]> patterns = new ArrayList<>();
+        private final List<BlackboardListener[]> patternListeners = new ArrayList<>();
+        private final ConcurrentHashMap<String, BlackboardListener[]> resolved = new ConcurrentHashMap<>();
+
+        Snapshot(Map<String, BlackboardListener[]> topics) {
+            this.topics = topics;
+            for( Map.Entry<String, BlackboardListener[]> entry : topics.entrySet() ){
+                if( isPattern(entry.getKey()) ){
+                    patterns.add( split(entry.getKey()) );
+                    patternListeners.add( entry.getValue() );
+                }else{
+                    exact.put( entry.getKey(), entry.getValue() );
+                }
+            }
+        }
+
+        BlackboardListener[] lookup(String key){
+            if( patterns.isEmpty() ){
+                BlackboardListener[] listeners = exact.get(key);
+                return listeners == null? NONE : listeners;
+            }
+            BlackboardListener[] listeners = resolved.get(key);
+            if( listeners == null ){
+                listeners = resolve(key);
+                if( resolved.size() < MAX_RESOLVED_KEYS ) {
+                    resolved.putIfAbsent(key, listeners);
+                }
+            }
+            return listeners;
+        }
+
+        private BlackboardListener[] resolve(String key){
+            List<BlackboardListener> listeners = new ArrayList<>();
+            BlackboardListener[] exactListeners = exact.get(key);
+            if( exactListeners != null ){
+                Collections.addAll(listeners, exactListeners);
+            }
+            for( int i = 0; i < patterns.size(); i++ ){
+                if( matches(patterns.get(i), key) ){
+                    for( BlackboardListener listener : patternListeners.get(i) ){
+                        if( !listeners.contains(listener) ) listeners.add(listener);
+                    }
+                }
+            }
+            return listeners.isEmpty()? NONE : listeners.toArray( new BlackboardListener[ listeners.size() ] );
+        }
+    }
+}
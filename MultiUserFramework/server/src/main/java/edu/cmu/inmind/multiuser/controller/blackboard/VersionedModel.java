@@ -0,0 +1,283 @@
+package edu.cmu.inmind.multiuser.controller.blackboard;
+
+import edu.cmu.inmind.multiuser.controller.exceptions.ExceptionHandler;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Multi-version storage of the blackboard model. Each key points to a chain of versions (newest first). A write
+ * creates a new version number for all the keys it touches and publishes it only after they are all linked, so a
+ * snapshot (which is just a version number) never sees half of a write. Writes are serialized, reads don't lock.
+ *
+ * Open snapshots are registered, so a write can drop the versions of the keys it touches that no open snapshot can
+ * read anymore: for each key, it keeps the versions newer than the oldest open snapshot plus the one that snapshot
+ * reads. When the oldest snapshot is closed, the old versions it was keeping are dropped as well.
+ */
+public class VersionedModel {
+    private final ConcurrentHashMap<String, Version> heads = new ConcurrentHashMap<>();
+    private volatile long committed = 0;
+    /** version -> number of open snapshots at that version **/
+    private final TreeMap<Long, Integer> openSnapshots = new TreeMap<>();
+    private final Object snapshotLock = new Object();
+    /** keys that have more than one version, i.e., that some open snapshot may be keeping old versions of **/
+    private final Set<String> keysWithHistory = new HashSet<>();
+
+    public synchronized void put(String key, Object value){
+        long version = committed + 1;
+        link(key, value, version);
+        commit(version);
+        trim(key);
+    }
+
+    public synchronized void putAll(Map<String, Object> elements){
+        long version = committed + 1;
+        for( Map.Entry<String, Object> entry : elements.entrySet() ){
+            link(entry.getKey(), entry.getValue(), version);
+        }
+        commit(version);
+        for( String key : elements.keySet() ){
+            trim(key);
+        }
+    }
+
+    public synchronized void remove(String key){
+        if( heads.containsKey(key) ) {
+            put(key, null);
+        }
+    }
+
+    /**
+     * Removes all the keys (open snapshots still see them)
+     */
+    public synchronized void clear(){
+        long version = committed + 1;
+        Set<String> keys = new HashSet<>( heads.keySet() );
+        for( String key : keys ){
+            link(key, null, version);
+        }
+        commit(version);
+        for( String key : keys ){
+            trim(key);
+        }
+    }
+
+    /**
+     * Replaces the whole content of the model
+     */
+    public synchronized void reset(Map<String, Object> elements){
+        long version = committed + 1;
+        for( String key : heads.keySet() ){
+            link(key, elements.get(key), version);
+        }
+        for( Map.Entry<String, Object> entry : elements.entrySet() ){
+            if( !heads.containsKey(entry.getKey()) ) link(entry.getKey(), entry.getValue(), version);
+        }
+        commit(version);
+        for( String key : new HashSet<>( heads.keySet() ) ){
+            trim(key);
+        }
+    }
+
+    private void link(String key, Object value, long version){
+        Version previous = heads.get(key);
+        heads.put(key, new Version(version, value, previous));
+        if( previous != null ){
+            keysWithHistory.add(key);
+        }
+    }
+
+    private void commit(long version){
+        committed = version;
+    }
+
+    /**
+     * Drops the versions of key that no open snapshot can read, and the key itself if it has been removed and
+     * nobody can read it anymore
+     */
+    private void trim(String key){
+        long oldestReadable = getOldestReadableVersion();
+        Version version = heads.get(key);
+        while( version != null && version.version > oldestReadable ){
+            version = version.previous;
+        }
+        if( version != null ){
+            version.previous = null;
+            if( version == heads.get(key) ){
+                keysWithHistory.remove(key);
+                if( version.value == null ){
+                    heads.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the versions that no open snapshot can read anymore, of all the keys
+     */
+    private synchronized void trimHistory(){
+        for( String key : keysWithHistory.toArray( new String[ keysWithHistory.size() ] ) ){
+            trim(key);
+        }
+    }
+
+    private long getOldestReadableVersion(){
+        synchronized (snapshotLock){
+            return openSnapshots.isEmpty()? committed : openSnapshots.firstKey();
+        }
+    }
+
+    /**
+     * @return the latest committed element of key
+     */
+    public Object get(String key){
+        return get(key, committed);
+    }
+
+    private Object get(String key, long atVersion){
+        Version version = heads.get(key);
+        while( version != null && version.version > atVersion ){
+            version = version.previous;
+        }
+        Object value = version == null? null : version.value;
+        if( value instanceof SpillStore.Ref ){
+            try {
+                value = ((SpillStore.Ref) value).load();
+            } catch (Throwable e) {
+                ExceptionHandler.handle(e);
+                value = null;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Replaces the latest value of key by another representation of the same value (e.g., its disk copy when it is
+     * spilled, or the loaded instance when it is read back). It does not create a new version.
+     * @return false if the latest value of key is not expected anymore
+     */
+    public synchronized boolean swap(String key, Object expected, Object replacement){
+        Version version = heads.get(key);
+        if( version != null && version.value == expected ){
+            version.value = replacement;
+            return true;
+        }
+        return false;
+    }
+
+    public long getVersion(){
+        return committed;
+    }
+
+    /**
+     * @return a consistent, read-only view of the model at the last committed version
+     */
+    public BlackboardSnapshot snapshot(){
+        synchronized (snapshotLock){
+            long version = committed;
+            Integer count = openSnapshots.get(version);
+            openSnapshots.put(version, count == null? 1 : count + 1);
+            return new Snapshot(version);
+        }
+    }
+
+    private void release(long version){
+        boolean wasOldest;
+        synchronized (snapshotLock){
+            Integer count = openSnapshots.get(version);
+            if( count == null || count <= 1 ){
+                wasOldest = !openSnapshots.isEmpty() && openSnapshots.firstKey() == version;
+                openSnapshots.remove(version);
+            }else{
+                wasOldest = false;
+                openSnapshots.put(version, count - 1);
+            }
+        }
+        if( wasOldest ){
+            trimHistory();
+        }
+    }
+
+    /**
+     * @return number of snapshots that have not been closed yet
+     */
+    public int getNumOfOpenSnapshots(){
+        synchronized (snapshotLock){
+            int count = 0;
+            for( Integer snapshots : openSnapshots.values() ){
+                count += snapshots;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * @return number of versions (of all keys) that are still stored
+     */
+    public int getNumOfVersions(){
+        int count = 0;
+        for( Version version : heads.values() ){
+            for( ; version != null; version = version.previous ){
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static class Version {
+        private final long version;
+        /** null means the key was removed at this version. It can be swapped by a disk copy (SpillStore.Ref) **/
+        private volatile Object value;
+        private volatile Version previous;
+
+        Version(long version, Object value, Version previous) {
+            this.version = version;
+            this.value = value;
+            this.previous = previous;
+        }
+    }
+
+    private class Snapshot implements BlackboardSnapshot {
+        private final long version;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        Snapshot(long version) {
+            this.version = version;
+        }
+
+        @Override
+        public long getVersion() {
+            return version;
+        }
+
+        @Override
+        public Object get(String key) {
+            return VersionedModel.this.get(key, version);
+        }
+
+        @Override
+        public boolean contains(String key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public Set<String> keySet() {
+            Set<String> keys = new HashSet<>();
+            for( String key : heads.keySet() ){
+                if( get(key) != null ) keys.add(key);
+            }
+            return keys;
+        }
+
+        @Override
+        public void close() {
+            if( closed.compareAndSet(false, true) ){
+                release(version);
+            }
+        }
+    }
+}
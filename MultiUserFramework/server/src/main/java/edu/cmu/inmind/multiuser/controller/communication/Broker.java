@@ -6,14 +6,17 @@ package edu.cmu.inmind.multiuser.controller.communication;
 
 import edu.cmu.inmind.multiuser.controller.common.CommonUtils;
 import edu.cmu.inmind.multiuser.controller.common.Constants;
+import edu.cmu.inmind.multiuser.controller.common.HashedWheelTimer;
 import edu.cmu.inmind.multiuser.controller.exceptions.ExceptionHandler;
 import edu.cmu.inmind.multiuser.controller.log.Log4J;
 import edu.cmu.inmind.multiuser.controller.resources.CommonsResourceLocator;
 import edu.cmu.inmind.multiuser.controller.resources.Config;
 import org.zeromq.*;
 
+import java.io.File;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -22,17 +25,36 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public class Broker implements CommonUtils.NamedRunnable, DestroyableCallback {
 
-    // We'd normally pull these from config data
     private static final String INTERNAL_SERVICE_PREFIX = "mmi.";
-    private static final int HEARTBEAT_LIVENESS = 5; // 3-5 is reasonable
-    private static final int HEARTBEAT_INTERVAL = 2500; // msecs
-    private static final int HEARTBEAT_EXPIRY = HEARTBEAT_INTERVAL * HEARTBEAT_LIVENESS;
+    private static final byte[] INTERNAL_SERVICE_PREFIX_DATA = INTERNAL_SERVICE_PREFIX.getBytes(ZMQ.CHARSET);
+    /** request queues of all the services, aggregated across all the brokers (and shards). The workers count the
+     * requests they have received on their own (see ServerCommController.getRequestStats) **/
+    private static final PriorityLaneStats requestStats = new PriorityLaneStats();
+    public static final int DEFAULT_HEARTBEAT_LIVENESS = 5; // 3-5 is reasonable
+    public static final long DEFAULT_HEARTBEAT_INTERVAL = 2500; // msecs
+    /** how long the requests recovered from the journal wait for their client to come back (see
+     * redeliverRecovered) before they are dropped **/
+    public static final long RECOVERED_REQUEST_TTL = 5 * 60 * 1000; // msecs
+    private final long heartbeatInterval;
+    private final long heartbeatExpiry;
+    /** heartbeats and expirations of the idle workers. It is advanced by the broker loop, so its tasks run on the
+     * broker thread and each tick only touches the workers that are due **/
+    private final HashedWheelTimer timer;
     private AtomicBoolean isDestroyed = new AtomicBoolean(false);
     private ConcurrentHashMap<Service, Boolean> statusResponseMsgs = new ConcurrentHashMap<>();
     private int port;
     private String publicServerAddress;
     private DestroyableCallback callback;
     private ZMQ.Poller items;
+    /** inproc endpoint of the ShardedBroker this broker is a shard of (null if it binds its own port) **/
+    private String shardEndpoint;
+    private int shard;
+    /** accepted requests, so they are delivered again after a restart (null unless setJournal is called) **/
+    private RequestJournal journal;
+    /** journal ids of the queued requests (only if there is a journal) **/
+    private final IdentityHashMap<ZMsg, Long> journaled = new IdentityHashMap<>();
+    /** set when the broker is destroyed, the broker thread closes the journal when it stops **/
+    private volatile boolean isClosingJournal;
 
 
     // ---------------------------------------------------------------------
@@ -42,13 +64,18 @@ public class Broker implements CommonUtils.NamedRunnable, DestroyableCallback {
      */
     private static class Service {
         public final String name; // Service name
-        Deque<ZMsg> requests; // List of client requests
-        Deque<Worker> waiting; // List of waiting workers
-
-        public Service(String name) {
-            this.name = name;
-            this.requests = new ArrayDeque<>();
-            this.waiting = new ArrayDeque<>();
+        final FrameKey key; // Service name, as received
+        PriorityLanes<ZMsg> requests; // Client requests, one queue per priority class
+        LinkedHashSet<Worker> waiting; // Waiting workers, in the order they became idle
+        Set<Worker> workers; // All the workers of the service, idle or not
+        List<RequestJournal.Request> recovered; // Requests recovered from the journal, waiting for their client
+
+        public Service(FrameKey key) {
+            this.key = key;
+            this.name = key.toString();
+            this.requests = new PriorityLanes<>(PriorityLanes.DEFAULT_STARVATION_LIMIT, requestStats);
+            this.waiting = new LinkedHashSet<>();
+            this.workers = new HashSet<>();
         }
 
         @Override
@@ -61,15 +88,17 @@ public class Broker implements CommonUtils.NamedRunnable, DestroyableCallback {
      * This defines one worker, idle or active (orchestrator).
      */
     private static class Worker{
-        String identity;// Identity of worker
+        FrameKey identity;// Identity of worker
         ZFrame address;// Address frame to route to
         Service service; // Owning service, if known
         long expiry;// Expires at unless heartbeat
+        HashedWheelTimer.Timeout timeout; // Next heartbeat or expiration, if it is idle
+        ArrayDeque<Long> inFlight; // Journal ids of the requests it has not processed yet, oldest first
 
-        public Worker(String identity, ZFrame address) {
+        public Worker(FrameKey identity, ZFrame address, long expiry) {
             this.address = address;
             this.identity = identity;
-            this.expiry = System.currentTimeMillis() + HEARTBEAT_INTERVAL * HEARTBEAT_LIVENESS;
+            this.expiry = expiry;
         }
         @Override public String toString() {
             return "worker " + identity + " for service " + (service == null? service : service.toString())
@@ -82,10 +111,10 @@ public class Broker implements CommonUtils.NamedRunnable, DestroyableCallback {
     private ZContext ctx;// Our context
     private ZMQ.Socket socket; // Socket for clients & workers
 
-    private long heartbeatAt;// When to send HEARTBEAT
-    private ConcurrentHashMap<String, Service> services;// known services
-    private ConcurrentHashMap<String, Worker> workers;// known workers
-    private Deque<Worker> waiting;// idle workers
+    private ConcurrentHashMap<FrameKey, Service> services;// known services
+    private ConcurrentHashMap<FrameKey, Worker> workers;// known workers
+    /** points at the frame being looked up in services or workers, so lookups do not allocate (broker thread only) **/
+    private final FrameKey lookupKey = new FrameKey();
 
     // ---------------------------------------------------------------------
 
@@ -94,28 +123,66 @@ public class Broker implements CommonUtils.NamedRunnable, DestroyableCallback {
      * Initialize broker state.
      */
     public Broker(String publicServerAddress, int port) {
+        this(publicServerAddress, port, DEFAULT_HEARTBEAT_INTERVAL, DEFAULT_HEARTBEAT_LIVENESS);
+    }
+
+    /**
+     * @param heartbeatInterval how often idle workers get a heartbeat, in milliseconds
+     * @param heartbeatLiveness how many heartbeats a worker can miss before it is considered dead
+     */
+    public Broker(String publicServerAddress, int port, long heartbeatInterval, int heartbeatLiveness) {
+        this(port, 0, null, heartbeatInterval, heartbeatLiveness);
+        this.publicServerAddress = publicServerAddress;
+    }
+
+    /**
+     * Initialize a shard of a ShardedBroker: instead of binding a public port, it receives the messages of its
+     * clients and workers (and sends its replies) through an inproc pipe connected to shardEndpoint
+     */
+    public Broker(int port, int shard, String shardEndpoint) {
+        this(port, shard, shardEndpoint, DEFAULT_HEARTBEAT_INTERVAL, DEFAULT_HEARTBEAT_LIVENESS);
+    }
+
+    public Broker(int port, int shard, String shardEndpoint, long heartbeatInterval, int heartbeatLiveness) {
         this.services = new ConcurrentHashMap<>();
         this.workers = new ConcurrentHashMap<>();
-        this.waiting = new ArrayDeque<>();
-        this.heartbeatAt = System.currentTimeMillis() + HEARTBEAT_INTERVAL;
+        this.heartbeatInterval = heartbeatInterval;
+        this.heartbeatExpiry = heartbeatInterval * heartbeatLiveness;
+        this.timer = new HashedWheelTimer(Math.max(1, heartbeatInterval / 10), HashedWheelTimer.DEFAULT_WHEEL_SIZE,
+                false);
         this.ctx = CommonsResourceLocator.getContext(this);
-        this.socket = CommonsResourceLocator.createSocket(ctx, ZMQ.ROUTER);
-        this.publicServerAddress = publicServerAddress;
+        if( shardEndpoint == null ) {
+            this.socket = CommonsResourceLocator.createSocket(ctx, ZMQ.ROUTER);
+        }else{
+            this.socket = CommonsResourceLocator.createSocket(ctx, ZMQ.PAIR);
+            // unbounded, otherwise the shard and the router could block each other when both pipes are full
+            this.socket.setSndHWM(0);
+            this.socket.setRcvHWM(0);
+        }
         this.port = port;
+        this.shard = shard;
+        this.shardEndpoint = shardEndpoint;
         this.items = ctx.createPoller(1);
         this.items.register(socket, ZMQ.Poller.POLLIN);
     }
 
     @Override
     public String getName(){
-        return "broker-" + port;
+        return shardEndpoint == null? "broker-" + port : "broker-" + port + "-" + shard;
     }
 
     // ---------------------------------------------------------------------
     @Override
     public void run() {
         try {
-            bind("tcp://*:" + port);
+            if( shardEndpoint == null ) {
+                bind("tcp://*:" + port);
+            }else{
+                socket.connect(shardEndpoint);
+            }
+            if( journal != null ) {
+                redeliverRecovered();
+            }
             mediate();
         }catch (Throwable e){
             ExceptionHandler.handle( e );
@@ -128,7 +195,9 @@ public class Broker implements CommonUtils.NamedRunnable, DestroyableCallback {
     public void mediate(){
         while (!isDestroyed.get()) {
             try {
-                if (items.poll(HEARTBEAT_INTERVAL) == -1)
+                long pollTimeout = journal == null? timer.getTimeToNextTick()
+                        : Math.min(timer.getTimeToNextTick(), journal.getTimeToCommit());
+                if (items.poll( Math.max(1, pollTimeout) ) == -1)
                     break; // Interrupted
                 if (items.pollin(0)) {
                     ZMsg msg = ZMsg.recvMsg(socket);
@@ -151,8 +220,13 @@ public class Broker implements CommonUtils.NamedRunnable, DestroyableCallback {
                         header.destroy();
                     }
                 }
-                purgeWorkers();
-                sendHeartbeats();
+                timer.advance();
+                if( journal != null ) {
+                    journal.commitIfDue();
+                }
+                if( isClosingJournal ) {
+                    closeJournal();
+                }
             }catch (Throwable e){
                 try {
                     if( CommonUtils.isZMQException(e) ) {
@@ -164,6 +238,52 @@ public class Broker implements CommonUtils.NamedRunnable, DestroyableCallback {
                 }
             }
         }
+        closeJournal();
+        discardRequests();
+    }
+
+    /**
+     * Drops the requests still queued when the broker stops (the journaled ones are delivered again when it restarts)
+     */
+    private void discardRequests(){
+        for (Service service : services.values()) {
+            for (ZMsg msg : service.requests.clear()) {
+                journaled.remove(msg);
+                msg.destroy();
+            }
+        }
+    }
+
+    /**
+     * The requests of the workers are not delivered again until the broker restarts
+     */
+    private void closeJournal(){
+        if( journal != null ) {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    /**
+     * @return counters of the request queues of each priority class, aggregated across all the brokers
+     */
+    public static PriorityLaneStats getRequestStats() {
+        return requestStats;
+    }
+
+    /**
+     * Makes the requests durable: they are appended to a journal in directory/getName() when they are accepted and
+     * marked as done when the worker has processed them (MDP.S_DONE, whether they got zero, one or several replies),
+     * and the ones that are not done are delivered again if their worker dies or the broker restarts. After a
+     * restart, they wait for their client to send a new request to their service (see redeliverRecovered). It has to
+     * be called before running the broker
+     */
+    public void setJournal(String directory) {
+        try {
+            journal = new RequestJournal(new File(directory, getName()));
+        }catch (Throwable e){
+            ExceptionHandler.handle(e);
+        }
     }
 
     /**
@@ -178,13 +298,18 @@ public class Broker implements CommonUtils.NamedRunnable, DestroyableCallback {
     @Override
     public void destroyInCascade(DestroyableCallback destroyedObj) throws Throwable {
         if ( !isDestroyed.get() ) {
+            // the journal is used by the broker thread, which closes it when it stops
+            isClosingJournal = true;
             for(Worker worker : workers.values() ){
                 try {
+                    // their requests are delivered again when the broker restarts
+                    worker.inFlight = null;
                     deleteWorker(worker, true);
                 } catch (Throwable throwable) {
                     throwable.printStackTrace();
                 }
             }
+            timer.stop();
             ctx = null;
             isDestroyed.getAndSet(true);
             Log4J.info(this, "Gracefully destroying...");
@@ -199,37 +324,45 @@ public class Broker implements CommonUtils.NamedRunnable, DestroyableCallback {
     private void processClient(ZFrame sender, ZMsg msg) throws Throwable{
         ExceptionHandler.checkAssert(msg.size() >= 2); // Service name + body
         ZFrame serviceFrame = msg.pop();
+        if (msg.size() == 2 && MDP.S_CREDIT.frameEquals(msg.peekFirst())) {
+            creditWorkers(requireService(serviceFrame), msg);
+            serviceFrame.destroy();
+            return;
+        }
+        MessagePriority priority = MessagePriority.peek(msg); // the worker pops it
         // Set reply return address to client sender
         msg.wrap(sender.duplicate());
-        if (serviceFrame.toString().startsWith(INTERNAL_SERVICE_PREFIX))
+        if (lookupKey.set(serviceFrame).startsWith(INTERNAL_SERVICE_PREFIX_DATA))
             serviceInternal(serviceFrame, msg);
         else {
             // if orchestrator hasn't sent a response back but receives a new message, then
             // it has to inform that is ready to receive new messages
             Service service = requireService(serviceFrame);
-            Worker worker = reactivateWorker(service, msg == null? null : msg.peekFirst() );
+            if( service.recovered != null ){
+                readdressRecovered(service, sender);
+            }
+            if( journal != null ){
+                journaled.put(msg, journal.append(service.key.getData(), priority, msg));
+            }
+            Worker worker = reactivateWorker(service);
             if( worker != null){
-                workerWaiting(worker, msg);
+                workerWaiting(worker, msg, priority);
             }else{
-                dispatch(service, msg);
+                dispatch(service, msg, priority);
             }
         }
         serviceFrame.destroy();
     }
 
-    private Worker reactivateWorker(Service service, ZFrame sender) throws Throwable{
+    private Worker reactivateWorker(Service service) throws Throwable{
         // if broker hasn't received a message back from orchestrator, then reactivate
-        // the worker automatically
+        // the worker automatically (a worker of the service, the sender is the client)
         Boolean status = statusResponseMsgs.get( service );
         if( status != null && !status ) {
-            Worker worker = service.waiting.isEmpty()?
-                    (sender == null? null : requireWorker(sender))
-                    : service.waiting.peek();
-            if( worker != null ) {
-                if( worker.service == null )
-                    worker.service = service;
-                return worker;
-            }
+            if( !service.waiting.isEmpty() )
+                return service.waiting.iterator().next();
+            if( !service.workers.isEmpty() )
+                return service.workers.iterator().next();
         }
         return null;
     }
@@ -240,33 +373,38 @@ public class Broker implements CommonUtils.NamedRunnable, DestroyableCallback {
     private void processWorker(ZFrame sender, ZMsg msg) throws Throwable {
         ExceptionHandler.checkAssert((msg.size() >= 1)); // At least, command
         ZFrame command = msg.pop();
-        boolean workerReady = workers.containsKey(sender.strhex());
-        Worker worker = requireWorker(sender);
+        Worker worker = workers.get(lookupKey.set(sender));
+        boolean workerReady = worker != null;
+        if (!workerReady) worker = requireWorker(sender);
         if (MDP.S_READY.frameEquals(command)) {
             // Not first command in session || Reserved service name
             if (workerReady
-                    || sender.toString().startsWith(INTERNAL_SERVICE_PREFIX)) {
+                    || worker.identity.startsWith(INTERNAL_SERVICE_PREFIX_DATA)) {
                 deleteWorker(worker, true);
             } else {
                 // Attach worker to service and mark as idle
                 ZFrame serviceFrame = msg.pop();
                 worker.service = requireService(serviceFrame);
+                worker.service.workers.add(worker);
                 workerWaiting(worker);
                 serviceFrame.destroy();
             }
         } else if(MDP.S_SHUTDOWN.frameEquals(command)) {
-            String serviceName = worker.service == null? null : worker.service.name;
+            byte[] serviceName = worker.service == null? null : worker.service.key.getData();
             if( serviceName == null && msg.getLast().toString().startsWith(Constants.SERVICE_NAME) ){
-                serviceName =  msg.pollLast().toString().substring( Constants.SERVICE_NAME.length() );
+                serviceName =  msg.pollLast().toString().substring( Constants.SERVICE_NAME.length() )
+                        .getBytes(ZMQ.CHARSET);
             }
             sendToClient(msg, serviceName);
         } else if (MDP.S_REPLY.frameEquals(command)) {
             if (workerReady) {
                 // Remove & save client return envelope and insert the
                 // protocol header and service name, then rewrap envelope.
-                sendToClient(msg, worker.service.name);
+                sendToClient(msg, worker.service.key.getData());
                 statusResponseMsgs.put( worker.service, true );
-                workerWaiting(worker);
+                // a worker that owes an S_DONE is waiting once it sends it, not once it replies
+                if (worker.inFlight == null || worker.inFlight.isEmpty())
+                    workerWaiting(worker);
             } else {
                 deleteWorker(worker, true);
             }
@@ -277,7 +415,28 @@ public class Broker implements CommonUtils.NamedRunnable, DestroyableCallback {
             } else {
                 deleteWorker(worker, true);
             }
+        } else if (MDP.S_CREDIT.frameEquals(command)) {
+            if (workerReady && worker.service != null) {
+                // credits the session grants to its client, they do not change the state of the worker
+                ZFrame client = msg.unwrap();
+                msg.addFirst(MDP.S_CREDIT.newFrame());
+                msg.wrap(client);
+                sendToClient(msg, worker.service.key.getData());
+            } else {
+                deleteWorker(worker, true);
+            }
+        } else if (MDP.S_DONE.frameEquals(command)) {
+            // the request has been processed, even if the worker is not known any more
+            requestDone(worker, msg.peekFirst());
+            if (workerReady) {
+                // whether it replied to the request or not
+                workerWaiting(worker);
+            } else {
+                deleteWorker(worker, true);
+            }
         } else if (MDP.S_DISCONNECT.frameEquals(command)){
+            if (workerReady)
+                workerLeft(worker);
             deleteWorker(worker, false);
         }else {
             Log4J.error(this, "invalid message: " + command.toString());
@@ -285,10 +444,13 @@ public class Broker implements CommonUtils.NamedRunnable, DestroyableCallback {
         msg.destroy();
     }
 
-    private void sendToClient(ZMsg msg, String serviceName) {
+    /**
+     * @param serviceName the bytes of the service name (they are shared with the frame, not copied)
+     */
+    private void sendToClient(ZMsg msg, byte[] serviceName) {
         ZFrame client = msg.unwrap();
         if( !MDP.S_READY.frameEquals(msg.peekLast(), "\"")) {
-            msg.addFirst(serviceName);
+            msg.addFirst(new ZFrame(serviceName));
             msg.addFirst(MDP.C_CLIENT.newFrame());
             msg.wrap(client);
             msg.send(socket);
@@ -296,7 +458,7 @@ public class Broker implements CommonUtils.NamedRunnable, DestroyableCallback {
     }
 
     private void renewExpiration(Worker worker){
-        worker.expiry = System.currentTimeMillis() + HEARTBEAT_EXPIRY;
+        worker.expiry = System.currentTimeMillis() + heartbeatExpiry;
     }
 
     /**
@@ -307,10 +469,169 @@ public class Broker implements CommonUtils.NamedRunnable, DestroyableCallback {
         if (disconnect) {
             sendToWorker(worker, MDP.S_DISCONNECT, null, null);
         }
-        if (worker.service != null)
+        if (worker.service != null) {
             worker.service.waiting.remove(worker);
+            worker.service.workers.remove(worker);
+        }
+        if (worker.timeout != null)
+            worker.timeout.cancel();
         workers.remove(worker.identity);
+        if (shardEndpoint != null) {
+            // tells the ShardedBroker to forget the shard of this worker
+            new ZFrame(worker.identity.getData()).send(socket, 0);
+        }
         worker.address.destroy();
+        redeliver(worker);
+    }
+
+    /**
+     * A worker that disconnects on its own (e.g., its session has been closed) is not coming back. If it was the last
+     * worker of its service, no other worker will process the requests it had not processed yet or the ones that are
+     * still queued for the service, so they are dropped (and marked as done, so the journal does not keep them)
+     */
+    private void workerLeft(Worker worker) throws Throwable{
+        Service service = worker.service;
+        if (service == null || service.workers.size() > 1)
+            return;
+        int dropped = 0;
+        if (journal != null && worker.inFlight != null) {
+            for (Long id : worker.inFlight) {
+                journal.done(id);
+                dropped++;
+            }
+        }
+        worker.inFlight = null;
+        for (ZMsg msg : service.requests.clear()) {
+            Long id = journaled.remove(msg);
+            if (id != null)
+                journal.done(id);
+            msg.destroy();
+            dropped++;
+        }
+        if (dropped > 0)
+            Log4J.info(this, String.format("Dropping %s requests of %s, its last worker has left", dropped, service));
+    }
+
+    /**
+     * Queues again (for the other workers of the service, or the next one that registers) the journaled requests
+     * that a dead worker had not answered
+     */
+    private void redeliver(Worker worker) throws Throwable{
+        if (journal == null || worker.inFlight == null || worker.service == null)
+            return;
+        for (Long id : worker.inFlight) {
+            RequestJournal.Request request = journal.read(id);
+            if (request != null) {
+                journaled.put(request.msg, id);
+                worker.service.requests.offer(request.msg, request.priority, clientOf(request.msg));
+            }
+        }
+        worker.inFlight = null;
+        dispatch(worker.service, null, null);
+    }
+
+    /**
+     * Holds the requests that were not done when the broker stopped until their client comes back. Their return
+     * address is the client's identity in the previous process, which cannot be routed any more, and the sessions
+     * that served them have to be created again. So they are queued once the client sends a new request to the
+     * service, re-addressed to it, ahead of that request. Only services whose recovered requests came from a single
+     * client (e.g., sessions) can be matched with their client, the requests of the rest (e.g., the session manager)
+     * are dropped, like the ones whose client does not come back within RECOVERED_REQUEST_TTL
+     */
+    private void redeliverRecovered() throws Throwable{
+        for (RequestJournal.Request request : journal.getRecovered()) {
+            Service service = requireService(new ZFrame(request.service));
+            if (service.recovered == null)
+                service.recovered = new ArrayList<>();
+            service.recovered.add(request);
+        }
+        journal.getRecovered().clear();
+        for (final Service service : services.values()) {
+            if (service.recovered == null)
+                continue;
+            if (!hasSingleClient(service.recovered)) {
+                dropRecovered(service, "they came from several clients");
+                continue;
+            }
+            timer.newTimeout(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        dropRecovered(service, "their client has not come back");
+                    }catch (Throwable e){
+                        ExceptionHandler.handle(e);
+                    }
+                }
+            }, RECOVERED_REQUEST_TTL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static boolean hasSingleClient(List<RequestJournal.Request> requests){
+        ZFrame client = null;
+        for (RequestJournal.Request request : requests) {
+            ZFrame address = request.msg.getFirst();
+            if (client == null)
+                client = address;
+            else if (!client.hasSameData(address))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Queues the recovered requests of service, with client as their return address. They are journaled again with
+     * that address, in case they have to be delivered again
+     */
+    private void readdressRecovered(Service service, ZFrame client) throws Throwable{
+        for (RequestJournal.Request request : service.recovered) {
+            request.msg.unwrap().destroy();
+            request.msg.wrap(client.duplicate());
+            if (journal != null) {
+                journaled.put(request.msg, journal.append(service.key.getData(), request.priority, request.msg));
+                journal.done(request.id);
+            }
+            service.requests.offer(request.msg, request.priority, clientOf(request.msg));
+        }
+        service.recovered = null;
+    }
+
+    private void dropRecovered(Service service, String reason) throws Throwable{
+        if (service.recovered == null || journal == null)
+            return;
+        Log4J.warn(this, String.format("Dropping %s recovered requests of %s, %s", service.recovered.size(),
+                service, reason));
+        for (RequestJournal.Request request : service.recovered) {
+            journal.done(request.id);
+            request.msg.destroy();
+        }
+        service.recovered = null;
+    }
+
+    /**
+     * The worker has processed a journaled request (see MDP.S_DONE)
+     * @param idFrame journal id of the request
+     */
+    private void requestDone(Worker worker, ZFrame idFrame) throws Throwable{
+        if (journal == null || idFrame == null)
+            return;
+        long id;
+        try {
+            id = Long.parseLong(idFrame.toString());
+        }catch (NumberFormatException e){
+            Log4J.error(this, "invalid request id: " + idFrame);
+            return;
+        }
+        if (worker.inFlight != null)
+            worker.inFlight.remove(id);
+        journal.done(id);
+    }
+
+    /**
+     * @param msg a request, with its return address first
+     * @return the key that keeps the requests of a client in order in the priority lanes
+     */
+    private static FrameKey clientOf(ZMsg msg){
+        return new FrameKey(msg.peekFirst().getData());
     }
 
     /**
@@ -318,10 +639,11 @@ public class Broker implements CommonUtils.NamedRunnable, DestroyableCallback {
      */
     private Worker requireWorker(ZFrame address) throws Throwable{
         ExceptionHandler.checkAssert( (address != null) );
-        String identity = address.strhex();
-        Worker worker = workers.get(identity);
+        Worker worker = workers.get(lookupKey.set(address));
         if (worker == null) {
-            worker = new Worker(identity, address.duplicate());
+            FrameKey identity = lookupKey.copy();
+            worker = new Worker(identity, new ZFrame(identity.getData()),
+                    System.currentTimeMillis() + heartbeatExpiry);
             workers.put(identity, worker);
         }
         return worker;
@@ -332,11 +654,10 @@ public class Broker implements CommonUtils.NamedRunnable, DestroyableCallback {
      */
     private Service requireService(ZFrame serviceFrame) throws Throwable{
         ExceptionHandler.checkAssert( (serviceFrame != null) );
-        String name = serviceFrame.toString();
-        Service service = services.get(name);
+        Service service = services.get(lookupKey.set(serviceFrame));
         if (service == null) {
-            service = new Service(name);
-            services.put(name, service);
+            service = new Service(lookupKey.copy());
+            services.put(service.key, service);
         }
         return service;
     }
@@ -355,8 +676,7 @@ public class Broker implements CommonUtils.NamedRunnable, DestroyableCallback {
     private void serviceInternal(ZFrame serviceFrame, ZMsg msg) throws Throwable{
         String returnCode = "501";
         if ("mmi.service".equals(serviceFrame.toString())) {
-            String name = msg.peekLast().toString();
-            returnCode = services.containsKey(name) ? "200" : "400";
+            returnCode = services.containsKey(new FrameKey(msg.peekLast().getData())) ? "200" : "400";
         }
         msg.peekLast().reset(returnCode.getBytes());
         // Remove & save client return envelope and insert the
@@ -369,74 +689,106 @@ public class Broker implements CommonUtils.NamedRunnable, DestroyableCallback {
     }
 
     /**
-     * Send heartbeats to idle workers if it's time
+     * Schedules the next heartbeat (or the expiration) of an idle worker
      */
-    public synchronized void sendHeartbeats() throws Throwable{
-        // Send heartbeats to idle workers if it's time
-        if (System.currentTimeMillis() >= heartbeatAt) {
-            for (Worker worker : waiting) {
-                sendToWorker(worker, MDP.S_HEARTBEAT, null, null);
+    private void schedule(final Worker worker, long delay){
+        worker.timeout = timer.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    onTimeout(worker);
+                }catch (Throwable e){
+                    ExceptionHandler.handle(e);
+                }
             }
-            heartbeatAt = System.currentTimeMillis() + HEARTBEAT_INTERVAL;
-        }
+        }, delay, TimeUnit.MILLISECONDS);
     }
 
     /**
-     * Look for & kill expired workers. Workers are oldest to most recent, so we
-     * stop at the first alive worker.
+     * Called by the timer, on the broker thread. Busy workers are skipped (they are scheduled again when they
+     * become idle), expired workers are deleted and the rest get a heartbeat.
      */
-    public synchronized void purgeWorkers() throws Throwable{
-        Iterator<Worker> iterator = waiting.iterator();
-        while(iterator.hasNext()){
-            Worker w = iterator.next();
-            if (w.expiry < System.currentTimeMillis()){
-                iterator.remove();
-                deleteWorker(w, false);
-            }
+    private void onTimeout(Worker worker) throws Throwable{
+        worker.timeout = null;
+        if (worker.service == null || !worker.service.waiting.contains(worker))
+            return;
+        long now = System.currentTimeMillis();
+        if (worker.expiry <= now) {
+            deleteWorker(worker, false);
+        } else {
+            sendToWorker(worker, MDP.S_HEARTBEAT, null, null);
+            schedule(worker, Math.min(heartbeatInterval, worker.expiry - now));
         }
     }
 
     /**
      * This worker is now waiting for work.
      */
-    public synchronized void workerWaiting(Worker worker, ZMsg msg) throws Throwable{
-        // Queue to broker and service waiting lists
-        waiting.addLast(worker);
-        worker.service.waiting.addLast(worker);
+    public synchronized void workerWaiting(Worker worker, ZMsg msg, MessagePriority priority) throws Throwable{
+        // Queue to service waiting list (at the end, it is the last one that became idle)
         renewExpiration(worker);
-        dispatch(worker.service, msg);
+        worker.service.waiting.remove(worker);
+        worker.service.waiting.add(worker);
+        if (worker.timeout == null)
+            schedule(worker, heartbeatInterval);
+        dispatch(worker.service, msg, priority);
     }
 
     public synchronized void workerWaiting(Worker worker) throws Throwable{
-        workerWaiting( worker, null );
+        workerWaiting( worker, null, null );
+    }
+
+    /**
+     * Forwards the credits a client grants to the workers of its service right away (they are not requests, so
+     * they are neither queued nor need an idle worker)
+     * @param msg S_CREDIT frame and the number of credits
+     */
+    private void creditWorkers(Service service, ZMsg msg) throws Throwable{
+        msg.pop().destroy();
+        for (Worker worker : service.workers) {
+            sendToWorker(worker, MDP.S_CREDIT, null, msg.duplicate());
+        }
+        msg.destroy();
     }
 
     /**
-     * Dispatch requests to waiting workers as possible
+     * Dispatch requests to waiting workers as possible, higher priority classes first
      */
-    private void dispatch(Service service, ZMsg msg) throws Throwable{
+    private void dispatch(Service service, ZMsg msg, MessagePriority priority) throws Throwable{
         ExceptionHandler.checkAssert( (service != null) );
         if (msg != null)// Queue message if any
-            service.requests.offerLast(msg);
-        purgeWorkers();
+            service.requests.offer(msg, priority, clientOf(msg));
         while (!service.waiting.isEmpty() && !service.requests.isEmpty()) {
-            msg = service.requests.pop();
-            Worker worker = service.waiting.pop();
-            waiting.remove(worker);
+            msg = service.requests.poll();
+            Iterator<Worker> iterator = service.waiting.iterator();
+            Worker worker = iterator.next();
+            iterator.remove();
+            if (journal != null) {
+                Long id = journaled.remove(msg);
+                if (id != null) {
+                    if (worker.inFlight == null)
+                        worker.inFlight = new ArrayDeque<>();
+                    worker.inFlight.add(id);
+                    // so the worker can tell when it has processed it
+                    ZFrame client = msg.unwrap();
+                    msg.addFirst(new ZFrame(String.valueOf(id)));
+                    msg.addFirst(MDP.S_DONE.newFrame());
+                    msg.wrap(client);
+                }
+            }
             statusResponseMsgs.put( service, false );
             sendToWorker(worker, MDP.S_REQUEST, null, msg);
-            msg.destroy();
         }
     }
 
     /**
-     * Send message to worker. If message is provided, sends that message. Does
-     * not destroy the message, this is the caller's job.
+     * Send message to worker. If message is provided, sends that message and takes ownership of it: its frames are
+     * forwarded as they are (not duplicated) and the message is destroyed once sent.
      */
     public void sendToWorker(Worker worker, MDP command, String option,
                              ZMsg msgp) throws Throwable{
         if( !Thread.currentThread().isInterrupted() && Thread.currentThread().isAlive() ) {
-            ZMsg msg = msgp == null ? new ZMsg() : msgp.duplicate();
+            ZMsg msg = msgp == null ? new ZMsg() : msgp;
             // Stack protocol envelope to start of message
             if (option != null)
                 msg.addFirst(new ZFrame(option));
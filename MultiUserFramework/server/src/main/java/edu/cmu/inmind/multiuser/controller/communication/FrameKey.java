@@ -0,0 +1,76 @@
+package edu.cmu.inmind.multiuser.controller.communication;
+
+import org.zeromq.ZFrame;
+
+import java.util.Arrays;
+
+/**
+ * Binary identity of a frame (a worker's routing id or a service name) with a precomputed hash, so the brokers can
+ * key their maps by the bytes they receive instead of building (and hex-encoding) Strings on every message.
+ *
+ * A broker thread keeps one mutable key that it points at the frame to look up (no copy, no allocation) and stores
+ * an immutable copy (see copy) only when it adds a new entry.
+ */
+public class FrameKey {
+    private byte[] data;
+    private int hash;
+
+    public FrameKey() {
+    }
+
+    public FrameKey(byte[] data) {
+        set(data);
+    }
+
+    /**
+     * Points this key at data (it is not copied, so data must not change while it is used as a key)
+     */
+    public FrameKey set(byte[] data){
+        this.data = data == null? new byte[0] : data;
+        this.hash = Arrays.hashCode(this.data);
+        return this;
+    }
+
+    public FrameKey set(ZFrame frame){
+        return set(frame == null? null : frame.getData());
+    }
+
+    /**
+     * @return an immutable copy of this key, to be stored in a map
+     */
+    public FrameKey copy(){
+        return new FrameKey(Arrays.copyOf(data, data.length));
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public boolean startsWith(byte[] prefix){
+        if( data.length < prefix.length ){
+            return false;
+        }
+        for( int i = 0; i < prefix.length; i++ ){
+            if( data[i] != prefix[i] ) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof FrameKey)) return false;
+        FrameKey other = (FrameKey) o;
+        return hash == other.hash && Arrays.equals(data, other.data);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return new ZFrame(data).toString();
+    }
+}
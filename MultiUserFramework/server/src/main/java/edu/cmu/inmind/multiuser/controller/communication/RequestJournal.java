@@ -0,0 +1,422 @@
+package edu.cmu.inmind.multiuser.controller.communication;
+
+import edu.cmu.inmind.multiuser.controller.exceptions.ExceptionHandler;
+import edu.cmu.inmind.multiuser.controller.log.Log4J;
+import org.zeromq.ZFrame;
+import org.zeromq.ZMsg;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Durable queue of the requests a Broker has accepted (Titanic pattern): the requests that were not processed survive
+ * a restart of the broker, or of the worker that was processing them, and are delivered again. So delivery is at
+ * least once, not exactly once.
+ *
+ * It is a sequence of memory-mapped segment files with two kinds of records: REQUEST (service name, priority and
+ * frames of the request, return address included) and DONE (the request with that id was processed, see MDP.S_DONE). A record is
+ * [length, crc, type, id, payload] and its length is written last, so a record that was being written when the
+ * process died is ignored. Records are in memory (and survive a crash of the process) once they are written, and the
+ * segments are forced to disk in groups, every commitBatch records or commitInterval msecs (see commitIfDue), so the
+ * broker does not wait for the disk on every request. Segments are deleted in order, once all their requests are done.
+ * So that a few requests that are never done (e.g., of a service that has no workers) do not keep every segment after
+ * theirs, the oldest segment is compacted when there are newer full ones: its pending requests are copied (with the
+ * same ids) to the current segment, and then it is deleted.
+ *
+ * It is not thread safe, the broker uses it from its own thread.
+ */
+public class RequestJournal {
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final int DEFAULT_COMMIT_BATCH = 256;
+    public static final long DEFAULT_COMMIT_INTERVAL = 10; // msecs
+    private static final byte REQUEST = 1;
+    private static final byte DONE = 2;
+    private static final int HEADER_SIZE = 4 + 4 + 1 + 8; // length, crc, type, id
+    private static final String SEGMENT_PREFIX = "requests-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+    /** the oldest segment is compacted if its pending requests take at most 1/COMPACTION_RATIO of a segment **/
+    private static final int COMPACTION_RATIO = 4;
+
+    private final File directory;
+    private final int segmentSize;
+    private final int commitBatch;
+    private final long commitInterval;
+    /** segments by index, the last one is the one that is written **/
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    /** requests that are not done yet **/
+    private final HashMap<Long, Location> pending = new HashMap<>();
+    private final List<Request> recovered = new ArrayList<>();
+    private final CRC32 crc = new CRC32();
+    private Segment current;
+    private long nextId;
+    private int uncommitted;
+    private long firstUncommittedAt;
+
+    /**
+     * A request read from the journal
+     */
+    public static class Request {
+        public final long id;
+        public final byte[] service;
+        public final MessagePriority priority;
+        public final ZMsg msg;
+
+        Request(long id, byte[] service, MessagePriority priority, ZMsg msg) {
+            this.id = id;
+            this.service = service;
+            this.priority = priority;
+            this.msg = msg;
+        }
+    }
+
+    private static class Segment {
+        final long index;
+        final File file;
+        final MappedByteBuffer buffer;
+        int position; // where the next record is written
+        int pending; // requests of this segment that are not done yet
+        int pendingBytes; // size of their records
+        boolean isDirty;
+
+        Segment(long index, File file, MappedByteBuffer buffer) {
+            this.index = index;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private static class Location {
+        final Segment segment;
+        final int offset;
+
+        Location(Segment segment, int offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    public RequestJournal(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_COMMIT_BATCH, DEFAULT_COMMIT_INTERVAL);
+    }
+
+    /**
+     * Opens the journal in directory (it is created if it does not exist) and reads the requests that are not done
+     * (see getRecovered)
+     */
+    public RequestJournal(File directory, int segmentSize, int commitBatch, long commitInterval) throws IOException {
+        if( !directory.isDirectory() && !directory.mkdirs() ){
+            throw new IOException("Cannot create the request journal at " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.commitBatch = commitBatch;
+        this.commitInterval = commitInterval;
+        recover();
+        openSegment(segments.isEmpty()? 0 : segments.lastKey() + 1, segmentSize);
+    }
+
+    /**
+     * @return the requests that were not done when the journal was closed (or the process died), in the order they
+     * were accepted. Their ids are still pending, so they have to be marked as done when they are processed
+     */
+    public List<Request> getRecovered() {
+        return recovered;
+    }
+
+    /**
+     * @param msg the request as it is queued (return address first). It is not modified
+     * @return the id of the request, to mark it as done
+     */
+    public long append(byte[] service, MessagePriority priority, ZMsg msg) throws IOException {
+        int size = HEADER_SIZE + 4 + service.length + 1 + 4;
+        for( ZFrame frame : msg ){
+            size += 4 + frame.size();
+        }
+        long id = nextId++;
+        ByteBuffer record = reserve(size);
+        int offset = current.position;
+        record.put(REQUEST).putLong(id);
+        record.putInt(service.length).put(service);
+        record.put((byte) priority.ordinal());
+        record.putInt(msg.size());
+        for( ZFrame frame : msg ){
+            byte[] data = frame.getData();
+            record.putInt(data == null? 0 : data.length);
+            if( data != null ) record.put(data);
+        }
+        seal(offset, size);
+        pending.put(id, new Location(current, offset));
+        current.pending++;
+        current.pendingBytes += size;
+        return id;
+    }
+
+    /**
+     * Marks a request as processed, so it is not delivered again
+     */
+    public void done(long id) throws IOException {
+        Location location = pending.remove(id);
+        if( location == null ){
+            return;
+        }
+        ByteBuffer record = reserve(HEADER_SIZE);
+        int offset = current.position;
+        record.put(DONE).putLong(id);
+        seal(offset, HEADER_SIZE);
+        removed(location);
+        deleteDoneSegments();
+    }
+
+    /**
+     * @return a request that is not done yet (e.g., to deliver it again when its worker dies), or null
+     */
+    public Request read(long id) {
+        Location location = pending.get(id);
+        return location == null? null : read(location.segment, location.offset);
+    }
+
+    public int getNumOfPending() {
+        return pending.size();
+    }
+
+    /**
+     * Forces the records written since the last commit to disk, if there are commitBatch of them or the oldest one
+     * has waited commitInterval msecs
+     */
+    public void commitIfDue() {
+        if( uncommitted > 0 && (uncommitted >= commitBatch
+                || System.currentTimeMillis() - firstUncommittedAt >= commitInterval) ){
+            commit();
+        }
+    }
+
+    /**
+     * @return msecs until commitIfDue has to be called, Long.MAX_VALUE if there is nothing to commit
+     */
+    public long getTimeToCommit() {
+        if( uncommitted == 0 ){
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, firstUncommittedAt + commitInterval - System.currentTimeMillis());
+    }
+
+    public void commit() {
+        for( Segment segment : segments.values() ){
+            if( segment.isDirty ){
+                segment.buffer.force();
+                segment.isDirty = false;
+            }
+        }
+        uncommitted = 0;
+    }
+
+    public void close() {
+        commit();
+    }
+
+    /**
+     * @return a buffer positioned after the length and crc of a record of size bytes, in the current segment
+     */
+    private ByteBuffer reserve(int size) throws IOException {
+        if( current.position + size + 4 > current.buffer.capacity() ){
+            // a new segment (at least as big as the record), the trailing zero length marks the end of this one
+            openSegment(current.index + 1, Math.max(segmentSize, size + 4));
+        }
+        ByteBuffer record = current.buffer.duplicate();
+        record.position(current.position + 8);
+        return record;
+    }
+
+    /**
+     * Writes the crc and then the length of the record, which makes it valid
+     */
+    private void seal(int offset, int size) {
+        ByteBuffer record = current.buffer.duplicate();
+        record.position(offset + 8).limit(offset + size);
+        crc.reset();
+        crc.update(record);
+        current.buffer.putInt(offset + 4, (int) crc.getValue());
+        current.buffer.putInt(offset, size);
+        current.position += size;
+        current.isDirty = true;
+        if( uncommitted++ == 0 ){
+            firstUncommittedAt = System.currentTimeMillis();
+        }
+    }
+
+    private void openSegment(long index, int size) throws IOException {
+        File file = new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            // the mapping stays valid after the channel is closed
+            current = new Segment(index, file,
+                    randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+        segments.put(index, current);
+    }
+
+    /**
+     * A request is not pending in location any more
+     */
+    private static void removed(Location location) {
+        location.segment.pending--;
+        location.segment.pendingBytes -= location.segment.buffer.getInt(location.offset);
+    }
+
+    /**
+     * Deletes the oldest segments whose requests are all done, compacting them first if they have a few pending ones
+     * and there are newer full segments. Only in order, since the DONE records of a segment's requests can be in the
+     * segments after it
+     */
+    private void deleteDoneSegments() throws IOException {
+        // the segments this call opens while compacting are not compacted again
+        long last = segments.isEmpty()? 0 : segments.lastKey();
+        while( segments.size() > 1 ){
+            Segment oldest = segments.firstEntry().getValue();
+            if( oldest.pending > 0 ){
+                if( segments.size() < 3 || oldest.index >= last
+                        || oldest.pendingBytes > oldest.buffer.capacity() / COMPACTION_RATIO ){
+                    return;
+                }
+                compact(oldest);
+            }
+            segments.remove(oldest.index);
+            if( !oldest.file.delete() ){
+                Log4J.warn(this, "Cannot delete the request journal segment " + oldest.file);
+            }
+        }
+    }
+
+    /**
+     * Copies the pending requests of segment to the current one, in the order they were accepted. They are forced to
+     * disk, so segment can be deleted right away
+     */
+    private void compact(Segment segment) throws IOException {
+        List<Long> ids = new ArrayList<>(segment.pending);
+        for( Map.Entry<Long, Location> entry : pending.entrySet() ){
+            if( entry.getValue().segment == segment ) ids.add(entry.getKey());
+        }
+        Collections.sort(ids);
+        for( long id : ids ){
+            Location location = pending.get(id);
+            int size = segment.buffer.getInt(location.offset);
+            ByteBuffer record = reserve(size);
+            int offset = current.position;
+            ByteBuffer source = segment.buffer.duplicate();
+            source.position(location.offset + 8).limit(location.offset + size);
+            record.put(source);
+            seal(offset, size);
+            removed(location);
+            pending.put(id, new Location(current, offset));
+            current.pending++;
+            current.pendingBytes += size;
+        }
+        commit();
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles();
+        if( files == null ){
+            return;
+        }
+        Arrays.sort(files);
+        for( File file : files ){
+            String name = file.getName();
+            if( !name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX) ){
+                continue;
+            }
+            long index = Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                    name.length() - SEGMENT_SUFFIX.length()));
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+                current = new Segment(index, file, randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                        0, randomAccessFile.length()));
+            }
+            segments.put(index, current);
+            scan(current);
+        }
+        List<Long> ids = new ArrayList<>(pending.keySet());
+        Collections.sort(ids);
+        for( long id : ids ){
+            Location location = pending.get(id);
+            Request request = read(location.segment, location.offset);
+            if( request != null ){
+                recovered.add(request);
+            }
+        }
+        deleteDoneSegments();
+        if( !recovered.isEmpty() ){
+            Log4J.info(this, String.format("Recovered %s requests from %s", recovered.size(), directory));
+        }
+    }
+
+    /**
+     * Reads the records of a segment, up to the end or the first one that is not valid
+     */
+    private void scan(Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+        int offset = 0;
+        while( offset + HEADER_SIZE <= buffer.capacity() ){
+            int size = buffer.getInt(offset);
+            if( size < HEADER_SIZE || offset + size > buffer.capacity() ){
+                break;
+            }
+            ByteBuffer record = buffer.duplicate();
+            record.position(offset + 8).limit(offset + size);
+            crc.reset();
+            crc.update(record);
+            if( (int) crc.getValue() != buffer.getInt(offset + 4) ){
+                Log4J.warn(this, String.format("Corrupted record at %s of %s, the rest is ignored", offset,
+                        segment.file));
+                break;
+            }
+            byte type = buffer.get(offset + 8);
+            long id = buffer.getLong(offset + 9);
+            nextId = Math.max(nextId, id + 1);
+            if( type == REQUEST ){
+                // a copy made by compact supersedes the original (the process died before it was deleted)
+                Location original = pending.put(id, new Location(segment, offset));
+                if( original != null ) removed(original);
+                segment.pending++;
+                segment.pendingBytes += size;
+            }else if( type == DONE ){
+                Location location = pending.remove(id);
+                if( location != null ) removed(location);
+            }
+            offset += size;
+        }
+        segment.position = offset;
+    }
+
+    private Request read(Segment segment, int offset) {
+        try {
+            ByteBuffer record = segment.buffer.duplicate();
+            record.position(offset + 9);
+            long id = record.getLong();
+            byte[] service = new byte[record.getInt()];
+            record.get(service);
+            byte priority = record.get();
+            int numOfFrames = record.getInt();
+            ZMsg msg = new ZMsg();
+            for( int i = 0; i < numOfFrames; i++ ){
+                byte[] data = new byte[record.getInt()];
+                record.get(data);
+                msg.add(new ZFrame(data));
+            }
+            return new Request(id, service, MessagePriority.values()[priority], msg);
+        }catch (RuntimeException e){
+            ExceptionHandler.handle(e);
+            return null;
+        }
+    }
+}
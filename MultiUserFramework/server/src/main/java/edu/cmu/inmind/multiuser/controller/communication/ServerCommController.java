@@ -13,6 +13,8 @@ import org.zeromq.ZFrame;
 import org.zeromq.ZMQ;
 import org.zeromq.ZMsg;
 
+import java.util.ArrayDeque;
+import java.util.Queue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -22,6 +24,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public class ServerCommController implements DestroyableCallback {
     private static final int HEARTBEAT_LIVENESS = 3; // 3-5 is reasonable
+    private static final int MAX_QUEUED_REQUESTS = 1000; // received requests waiting to be processed
 
     private String serverAddress;
     private ZContext ctx;
@@ -45,6 +48,24 @@ public class ServerCommController implements DestroyableCallback {
     private AtomicBoolean isDestroyed = new AtomicBoolean(false);
     private AtomicBoolean stop = new AtomicBoolean(false);
     private DestroyableCallback callback;
+    /** credits of the client for the replies, and the ones this worker grants it for the requests **/
+    private CreditWindow credits = new CreditWindow(0);
+    /** replies waiting for the client to grant credits. We queue them instead of blocking the sender, which may be
+     * the thread that receives the credits (e.g., an orchestrator that replies while processing a request) **/
+    private final Queue<ZMsg> pendingReplies = new ArrayDeque<>();
+    /** when the oldest pending reply was queued or the client last granted credits. Past timeout, the pending
+     * replies are sent anyway, like the client does with its requests **/
+    private long pendingSince;
+    /** journal id of the last request returned by receive. It is done (S_DONE) once the next one is asked for,
+     * no matter how many replies it got **/
+    private ZFrame processing;
+    /** counters of the requests queue, so the ones of each service can be told apart from the broker ones **/
+    private final PriorityLaneStats requestStats = new PriorityLaneStats();
+    /** requests already received but not returned by receive yet, so the ones of higher priority classes overtake
+     * the ones of other clients that arrived before them (the requests of a client keep their order, so e.g. a
+     * disconnection is still processed after the messages sent before it). The rest wait in the socket **/
+    private final PriorityLanes<ZMsgWrapper> requests = new PriorityLanes<>(PriorityLanes.DEFAULT_STARVATION_LIMIT,
+            requestStats);
 
     public ServerCommController(String serverAddress, String serviceId, ZMsgWrapper msgTemplate) {
         try {
@@ -76,6 +97,8 @@ public class ServerCommController implements DestroyableCallback {
 
         // Register service with broker
         sendToBroker(MDP.S_READY, service, null);
+        // the pending replies are kept, their client is still waiting for them
+        credits.reset();
 
         // If liveness hits zero, queue is considered disconnected
         liveness = HEARTBEAT_LIVENESS;
@@ -91,16 +114,19 @@ public class ServerCommController implements DestroyableCallback {
      */
     public ZMsgWrapper receive(ZMsg reply){
         try {
+            // the previous request has been processed
+            sendDone();
             // Format and send the reply if we were provided one
             //assert ( reply != null || !expectReply);
             while ( !isDestroyed.get() ) {
                 try {
-                    // Poll socket for a reply, with timeout
-                    if (items.poll( DEBUG_MODE? timeoutForDebug : timeout) == -1) {
+                    // Poll socket for a reply, with timeout (none if there are queued requests, then it only takes
+                    // what has already arrived)
+                    if (items.poll( !requests.isEmpty()? 0 : DEBUG_MODE? timeoutForDebug : timeout) == -1) {
                         break; // Interrupted
                     }
 
-                    if (items.pollin(0)) {
+                    if (items.pollin(0) && requests.size() < MAX_QUEUED_REQUESTS) {
                         ZMsg msg = ZMsg.recvMsg(workerSocket);
                         if (msg == null)
                             break; // Interrupted
@@ -120,10 +146,17 @@ public class ServerCommController implements DestroyableCallback {
                         if (MDP.S_REQUEST.frameEquals(command)) {
                             // We should pop and save as many addresses as there are
                             // up to a null part, but for now, just save one
-                            replyTo = msg.unwrap();
-                            if( replyTo != null && !replyTo.toString().isEmpty() ) replyToBackup = replyTo.duplicate();
+                            ZFrame client = msg.unwrap();
+                            ZFrame requestId = popRequestId(msg);
+                            MessagePriority priority = MessagePriority.pop(msg);
                             command.destroy();
-                            return new ZMsgWrapper(msg, replyTo); // We have a request to process
+                            requests.offer( new ZMsgWrapper(msg, client, requestId), priority,
+                                    new FrameKey(client.getData()) );
+                            continue;
+                        } else if (MDP.S_CREDIT.frameEquals(command)) {
+                            credits.grant( CreditWindow.parse(msg.peekFirst()) );
+                            pendingSince = System.currentTimeMillis();
+                            sendPendingReplies(false);
                         } else if (MDP.S_HEARTBEAT.frameEquals(command)) {
                             // Do nothing for heartbeats
                         } else if (MDP.S_DISCONNECT.frameEquals(command)) {
@@ -134,12 +167,15 @@ public class ServerCommController implements DestroyableCallback {
                         }
                         command.destroy();
                         msg.destroy();
+                    } else if (!requests.isEmpty()) {
+                        return nextRequest(); // We have a request to process
                     } else if (--liveness == 0) {
                         boolean result = CommonUtils.sleep(reconnect);
                         if( !result )
                             break;
                         reconnectToBroker();
                     }
+                    sendOverdueReplies();
                     // Send HEARTBEAT if it's time
                     if (System.currentTimeMillis() > heartbeatAt) {
                         sendToBroker(MDP.S_HEARTBEAT, null, null);
@@ -172,19 +208,60 @@ public class ServerCommController implements DestroyableCallback {
         }
     }
 
+    /**
+     * @param msg a request, right after its return address
+     * @return the journal id of the request (see MDP.S_DONE), or null if the broker does not journal it
+     */
+    private static ZFrame popRequestId(ZMsg msg){
+        if( msg.size() >= 3 && MDP.S_DONE.frameEquals(msg.peekFirst()) ){
+            msg.pop().destroy();
+            return msg.pop();
+        }
+        return null;
+    }
+
+    /**
+     * Tells the broker that the last request returned by receive has been processed, so it is not delivered again
+     */
+    private void sendDone() throws Throwable{
+        ZFrame requestId = processing;
+        processing = null;
+        if( requestId != null ){
+            ZMsg msg = new ZMsg();
+            msg.add(requestId);
+            sendToBroker(MDP.S_DONE, null, msg);
+        }
+    }
+
+    /**
+     * Takes the next request to process, and grants a credit for it (not when it is received, so the queued ones
+     * still count as in flight for the client)
+     */
+    private ZMsgWrapper nextRequest() throws Throwable{
+        ZMsgWrapper request = requests.poll();
+        processing = request.getRequestId();
+        replyTo = request.getReplyTo();
+        if( replyTo != null && !replyTo.toString().isEmpty() ) replyToBackup = replyTo.duplicate();
+        sendCredits( credits.consumed(), replyTo );
+        return request;
+    }
+
     /*******************************************************************************************/
     /**********************************   SEND  ************************************************/
     /*******************************************************************************************/
 
+    /**
+     * Tells the broker that this worker is leaving for good (its session is closed), so it drops the requests of the
+     * session that have not been processed yet
+     */
     public void disconnect() throws Throwable{
         SessionMessage sessionMessage = new SessionMessage();
         sessionMessage.setRequestType(Constants.REQUEST_DISCONNECT);
         sessionMessage.setSessionId(service);
         ZMsg msg = new ZMsg();
         msg.addFirst(new ZFrame( CommonUtils.toJson(sessionMessage) ));
-        msg.wrap(msgTemplate.getReplyTo());
+        if( msgTemplate.getReplyTo() != null ) msg.wrap(msgTemplate.getReplyTo().duplicate());
         sendToBroker(MDP.S_DISCONNECT, null, msg);
-        msg.destroy();
     }
 
 
@@ -218,7 +295,12 @@ public class ServerCommController implements DestroyableCallback {
                 } else {
                     reply.getMsg().addLast(CommonUtils.toJson(message));
                 }
-                sendToBroker(command, null, reply.getMsg());
+                if( MDP.S_REPLY.equals(command) ) {
+                    sendReply(reply.getMsg().duplicate());
+                }else{
+                    sendPendingReplies(true);
+                    sendToBroker(command, null, reply.getMsg().duplicate());
+                }
                 reply.destroy();
             }else{
                 ExceptionHandler.handle( new MultiuserException(ErrorMessages.ANY_ELEMENT_IS_NULL,
@@ -248,7 +330,61 @@ public class ServerCommController implements DestroyableCallback {
     }
 
     /**
-     * Send message to broker If no msg is provided, creates one internally
+     * Sends a reply if the client has granted credits for it, otherwise it is queued (in order) until it does
+     */
+    private void sendReply(ZMsg msg) throws Throwable{
+        synchronized (pendingReplies) {
+            if( pendingReplies.isEmpty() && credits.tryAcquire() ){
+                sendToBroker(MDP.S_REPLY, null, msg);
+            }else{
+                if( pendingReplies.isEmpty() ) pendingSince = System.currentTimeMillis();
+                pendingReplies.add(msg);
+            }
+        }
+    }
+
+    /**
+     * Sends the pending replies anyway if the client has not granted credits for timeout (e.g., it stopped granting
+     * them or it lost a grant)
+     */
+    private void sendOverdueReplies() throws Throwable{
+        synchronized (pendingReplies) {
+            if( !pendingReplies.isEmpty() && System.currentTimeMillis() - pendingSince >= timeout ){
+                Log4J.warn(this, "The client has not granted credits to " + service + ", sending "
+                        + pendingReplies.size() + " replies anyway");
+                sendPendingReplies(true);
+            }
+        }
+    }
+
+    /**
+     * Sends the queued replies the client has granted credits for
+     * @param force sends all of them, no matter the credits (e.g., before shutting down)
+     */
+    private void sendPendingReplies(boolean force) throws Throwable{
+        synchronized (pendingReplies) {
+            while( !pendingReplies.isEmpty() && (force || credits.tryAcquire()) ){
+                sendToBroker(MDP.S_REPLY, null, pendingReplies.poll());
+            }
+        }
+    }
+
+    /**
+     * Grants credits to the client, so it can send more requests
+     */
+    private void sendCredits(int granted, ZFrame client) throws Throwable{
+        if( granted == 0 || client == null ){
+            return;
+        }
+        ZMsg msg = new ZMsg();
+        msg.add( CreditWindow.newFrame(granted) );
+        msg.wrap( client.duplicate() );
+        sendToBroker(MDP.S_CREDIT, null, msg);
+    }
+
+    /**
+     * Send message to broker If no msg is provided, creates one internally. A provided msg is owned by this method:
+     * its frames are sent as they are (not duplicated) and it is destroyed once sent.
      *
      * @param command
      * @param option
@@ -257,7 +393,7 @@ public class ServerCommController implements DestroyableCallback {
     void sendToBroker(MDP command, String option, ZMsg msg) throws Throwable{
         if( !Thread.currentThread().isInterrupted() && Thread.currentThread().isAlive() ) {
             try {
-                msg = msg != null ? msg.duplicate() : new ZMsg();
+                msg = msg != null ? msg : new ZMsg();
                 // Stack protocol envelope to start of message
                 if (option != null)
                     msg.addFirst(new ZFrame(option));
@@ -279,6 +415,7 @@ public class ServerCommController implements DestroyableCallback {
     /*******************************************************************************************/
 
     public void close(DestroyableCallback callback) throws Throwable{
+        sendDone();
         sendShutdown();
         this.callback = callback;
         stop.getAndSet(true);
@@ -299,6 +436,11 @@ public class ServerCommController implements DestroyableCallback {
                     items.close();
                 if (msgTemplate != null) msgTemplate.destroy();
                 if (replyTo != null) replyTo.destroy();
+                // the broker drops them too if this worker has disconnected (see disconnect), otherwise it delivers
+                // the journaled ones again
+                for (ZMsgWrapper request : requests.clear()) {
+                    request.destroy();
+                }
                 ctx = null;
                 Log4J.info(this, "Gracefully destroying...");
             }
@@ -311,12 +453,24 @@ public class ServerCommController implements DestroyableCallback {
 
 
     // ==============   getters and setters =================
+    /**
+     * @return counters of the requests this worker has received and not processed yet, per priority class
+     */
+    public PriorityLaneStats getRequestStats() {
+        return requestStats;
+    }
+
     public int getHeartbeat() {
         return heartbeat;
     }
 
+    /**
+     * @param heartbeat how often a heartbeat is sent to the broker, and how long the worker waits for a message
+     *                  from it before counting a missed heartbeat (msecs)
+     */
     public void setHeartbeat(int heartbeat) {
         this.heartbeat = heartbeat;
+        this.timeout = heartbeat;
     }
 
     public int getReconnect() {
@@ -330,4 +484,13 @@ public class ServerCommController implements DestroyableCallback {
     public void setDebugMode(boolean isDebugMode){
         DEBUG_MODE = isDebugMode;
     }
+
+    /**
+     * @param credits requests the client can send before this worker grants it more (see CreditWindow), 0 means
+     *                that the client is not limited
+     */
+    public void setCredits(int credits) {
+        // replies are only limited once the client grants credits, older clients never do
+        this.credits = new CreditWindow(credits, true);
+    }
 }
@@ -0,0 +1,195 @@
+package edu.cmu.inmind.multiuser.controller.communication;
+
+import edu.cmu.inmind.multiuser.controller.common.CommonUtils;
+import edu.cmu.inmind.multiuser.controller.exceptions.ExceptionHandler;
+import edu.cmu.inmind.multiuser.controller.log.Log4J;
+import edu.cmu.inmind.multiuser.controller.resources.CommonsResourceLocator;
+import org.zeromq.ZContext;
+import org.zeromq.ZFrame;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMsg;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Majordomo broker that spreads its services (i.e., sessions) over several Broker threads. It owns the public ROUTER
+ * socket and only routes: each message is forwarded, as is, to the shard of its service (hash of the service name)
+ * through an inproc pipe, and whatever a shard sends is written back to the ROUTER. The MDP work (services, workers,
+ * queues, heartbeats) happens on the shards, in parallel, while clients and workers keep a single endpoint.
+ *
+ * Client requests carry their service name (MMI lookups carry the service they ask about, which is only known by its
+ * shard). Workers only send it in READY, so the shard of each worker is
+ * remembered from its READY message (messages of unknown workers go to the first shard, which disconnects them just
+ * like a single broker would). A shard tells the router when it deletes a worker (e.g., it expired or it reconnected
+ * with a new identity) with a message that only has the worker's identity, so the router forgets it too.
+ */
+public class ShardedBroker implements CommonUtils.NamedRunnable, DestroyableCallback {
+    private static final int POLL_TIMEOUT = 2500; // msecs
+    private static final FrameKey MMI_SERVICE = new FrameKey("mmi.service".getBytes(ZMQ.CHARSET));
+    private final int port;
+    private final Broker[] shards;
+    private final ZMQ.Socket[] pipes;
+    private final ConcurrentHashMap<FrameKey, Integer> workerShards = new ConcurrentHashMap<>();
+    /** points at the frame being hashed or looked up, so routing does not allocate (router thread only) **/
+    private final FrameKey lookupKey = new FrameKey();
+    private final AtomicBoolean isDestroyed = new AtomicBoolean(false);
+    private ZContext ctx;
+    private ZMQ.Socket socket;
+    private ZMQ.Poller items;
+    private DestroyableCallback callback;
+
+    public ShardedBroker(int port, int numOfShards) {
+        this(port, numOfShards, Broker.DEFAULT_HEARTBEAT_INTERVAL, Broker.DEFAULT_HEARTBEAT_LIVENESS);
+    }
+
+    public ShardedBroker(int port, int numOfShards, long heartbeatInterval, int heartbeatLiveness) {
+        this.port = port;
+        this.ctx = CommonsResourceLocator.getContext(this);
+        this.socket = CommonsResourceLocator.createSocket(ctx, ZMQ.ROUTER);
+        this.shards = new Broker[numOfShards];
+        this.pipes = new ZMQ.Socket[numOfShards];
+        this.items = ctx.createPoller(numOfShards + 1);
+        this.items.register(socket, ZMQ.Poller.POLLIN);
+        for( int i = 0; i < numOfShards; i++ ){
+            String endpoint = String.format("inproc://broker-%s-%s", port, i);
+            pipes[i] = CommonsResourceLocator.createSocket(ctx, ZMQ.PAIR);
+            pipes[i].setSndHWM(0);
+            pipes[i].setRcvHWM(0);
+            pipes[i].bind(endpoint);
+            items.register(pipes[i], ZMQ.Poller.POLLIN);
+            shards[i] = new Broker(port, i, endpoint, heartbeatInterval, heartbeatLiveness);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "sharded-broker-" + port;
+    }
+
+    @Override
+    public void run() {
+        try {
+            socket.bind("tcp://*:" + port);
+            for( Broker shard : shards ){
+                CommonUtils.execute(shard);
+            }
+            route();
+        }catch (Throwable e){
+            ExceptionHandler.handle( e );
+        }
+    }
+
+    private void route(){
+        while (!isDestroyed.get()) {
+            try {
+                if (items.poll(POLL_TIMEOUT) == -1)
+                    break; // Interrupted
+                if (items.pollin(0)) {
+                    ZMsg msg = ZMsg.recvMsg(socket);
+                    if (msg == null) {
+                        break; // Interrupted
+                    }
+                    msg.send( pipes[ shardOf(msg) ] );
+                }
+                for( int i = 0; i < pipes.length; i++ ){
+                    if (items.pollin(i + 1)) {
+                        ZMsg msg = ZMsg.recvMsg(pipes[i]);
+                        if (msg == null) continue;
+                        if (msg.size() == 1) {
+                            forget(msg.getFirst(), i);
+                            msg.destroy();
+                        } else {
+                            msg.send(socket);
+                        }
+                    }
+                }
+            }catch (Throwable e){
+                try {
+                    if( CommonUtils.isZMQException(e) ) {
+                        destroyInCascade(this); // interrupted
+                    }else{
+                        ExceptionHandler.handle(e);
+                    }
+                }catch (Throwable t){
+                }
+            }
+        }
+    }
+
+    /**
+     * The shard has deleted this worker, so it is forgotten, unless it has moved to another shard since then
+     */
+    void forget(ZFrame worker, int shard){
+        workerShards.remove(lookupKey.set(worker), shard);
+    }
+
+    /**
+     * @param msg sender, empty, header and then the MDP frames
+     * @return the shard msg is forwarded to
+     */
+    int shardOf(ZMsg msg){
+        Iterator<ZFrame> frames = msg.iterator();
+        ZFrame sender = frames.hasNext()? frames.next() : null;
+        ZFrame empty = frames.hasNext()? frames.next() : null;
+        ZFrame header = frames.hasNext()? frames.next() : null;
+        ZFrame frame = frames.hasNext()? frames.next() : null;
+        if( sender == null || empty == null || header == null || frame == null ){
+            return 0;
+        }
+        if( MDP.C_CLIENT.frameEquals(header) ){
+            // frame is the service name. MMI lookups go to the shard of the service they ask about (the last frame)
+            if( lookupKey.set(frame).equals(MMI_SERVICE) && frames.hasNext() ){
+                lookupKey.set(msg.peekLast());
+            }
+            return shardOf(lookupKey);
+        }
+        // frame is the worker command
+        if( MDP.S_READY.frameEquals(frame) && frames.hasNext() ){
+            int shard = shardOf( lookupKey.set(frames.next()) );
+            workerShards.put(lookupKey.set(sender).copy(), shard);
+            return shard;
+        }
+        lookupKey.set(sender);
+        Integer shard = MDP.S_DISCONNECT.frameEquals(frame)? workerShards.remove(lookupKey)
+                : workerShards.get(lookupKey);
+        return shard == null? 0 : shard;
+    }
+
+    private int shardOf(FrameKey serviceName){
+        return (serviceName.hashCode() & Integer.MAX_VALUE) % shards.length;
+    }
+
+    /**
+     * Makes the requests of every shard durable (see Broker.setJournal). The journal of a shard only has the
+     * services that hash to it, so the number of shards must not change between restarts
+     */
+    public void setJournal(String directory) {
+        for( Broker shard : shards ){
+            shard.setJournal(directory);
+        }
+    }
+
+    public void close(DestroyableCallback callback) throws Throwable{
+        this.callback = callback;
+        for( Broker shard : shards ){
+            shard.close(this);
+        }
+        destroyInCascade(this);
+    }
+
+    @Override
+    public void destroyInCascade(DestroyableCallback destroyedObj) throws Throwable {
+        if( destroyedObj != this ){
+            return; // one of the shards
+        }
+        if ( !isDestroyed.getAndSet(true) ) {
+            workerShards.clear();
+            ctx = null;
+            Log4J.info(this, "Gracefully destroying...");
+        }
+        CommonsResourceLocator.setIamDone(this);
+        if(callback != null) callback.destroyInCascade(this);
+    }
+}
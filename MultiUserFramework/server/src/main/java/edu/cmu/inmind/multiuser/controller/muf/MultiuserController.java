@@ -2,6 +2,9 @@ package edu.cmu.inmind.multiuser.controller.muf;
 
 
 import edu.cmu.inmind.multiuser.communication.ClientCommController;
+import edu.cmu.inmind.multiuser.controller.blackboard.BlackboardMetrics;
+import edu.cmu.inmind.multiuser.controller.blackboard.EventDispatchers;
+import edu.cmu.inmind.multiuser.controller.blackboard.SpillStore;
 import edu.cmu.inmind.multiuser.controller.common.CommonUtils;
 import edu.cmu.inmind.multiuser.controller.communication.DestroyableCallback;
 import edu.cmu.inmind.multiuser.controller.exceptions.ErrorMessages;
@@ -39,6 +42,9 @@ public class MultiuserController implements DestroyableCallback {
     MultiuserController(String id, PluginModule[] modules, Config config, ServiceInfo serviceInfo) throws MultiuserException{
         ClassLoader.getSystemClassLoader().setPackageAssertionStatus("zmq",false);
         CommonUtils.initThreadExecutor( config.getCorePoolSize() );
+        EventDispatchers.initSharedPool( config.getBlackboardPoolSize(), config.getBlackboardQueueCapacity() );
+        SpillStore.setGlobalBudget( config.getBlackboardGlobalBudget() );
+        BlackboardMetrics.setEnabled( config.isBlackboardMetricsOn() );
         this.id = id;
         this.config = config;
 
@@ -144,8 +144,7 @@ public abstract class ProcessOrchestratorImpl implements ProcessOrchestrator, De
         try {
             for(OrchestratorListener listener : orchestratorListeners){
                 try {
-                    // we need a delay in order to avoid consecutive messages to block the sender socket
-                    CommonUtils.sleep( CommonUtils.getProperty("orchestrator.send.response.delay", 5L));
+                    // no delay is needed between consecutive messages, the session queues them until the client grants credits
                     listener.processOutput(output);
                 } catch (Throwable throwable) {
                     ExceptionHandler.handle(throwable);
@@ -184,6 +183,13 @@ public abstract class ProcessOrchestratorImpl implements ProcessOrchestrator, De
                         .build() );
             }
         }
+        blackboard.setDispatcher( EventDispatchers.create( config.getBlackboardDispatchMode(),
+                config.getBlackboardMailboxCapacity(), config.getBlackboardOverflowPolicy() ) );
+        blackboard.setVerifyImmutability( config.isDebugMode() );
+        blackboard.setMemoryBudget( config.getBlackboardSessionBudget() );
+        if( config.getPathBlackboardJournal() != null ){
+            blackboard.setJournal( new BlackboardJournal( config.getPathBlackboardJournal(), sessionId ) );
+        }
         blackboard.setComponents( components, sessionId );
         blackboard.subscribe( this );
         for( Pluggable component : components ){
@@ -270,6 +276,12 @@ public abstract class ProcessOrchestratorImpl implements ProcessOrchestrator, De
             if (blackboard != null) {
                 blackboard.remove(this, Constants.REMOVE_ALL);
                 blackboard.reset();
+                // releases the subscriptions of the components to the global blackboard
+                for( BlackboardListener subscriber : blackboard.getSubscribers() ){
+                    blackboard.unsubscribe(subscriber);
+                }
+                blackboard.getDispatcher().close();
+                if( blackboard.getJournal() != null ) blackboard.getJournal().close();
             }
             blackboard = null;
             statefullServManager = null;
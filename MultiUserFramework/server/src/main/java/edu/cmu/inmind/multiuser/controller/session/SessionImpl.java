@@ -112,6 +112,8 @@ public class SessionImpl implements Session, CommonUtils.NamedRunnable, Orchestr
             if(msg != null) {
                 this.sessionCommController = new ServerCommController(fullAddress, id, msg);
                 this.sessionCommController.setDebugMode( config.isDebugMode() );
+                this.sessionCommController.setHeartbeat( (int) config.getHeartbeatInterval() );
+                this.sessionCommController.setCredits( config.getFlowControlCredits() );
                 closeableObjects.add( sessionCommController );
             }
         }
@@ -2,8 +2,10 @@ package edu.cmu.inmind.multiuser.controller.session;
 
 import com.google.common.util.concurrent.ServiceManager;
 import edu.cmu.inmind.multiuser.communication.ClientCommController;
+import edu.cmu.inmind.multiuser.controller.blackboard.EventDispatchers;
 import edu.cmu.inmind.multiuser.controller.common.CommonUtils;
 import edu.cmu.inmind.multiuser.controller.common.Constants;
+import edu.cmu.inmind.multiuser.controller.common.HashedWheelTimer;
 import edu.cmu.inmind.multiuser.controller.communication.DestroyableCallback;
 import edu.cmu.inmind.multiuser.controller.exceptions.ErrorMessages;
 import edu.cmu.inmind.multiuser.controller.communication.*;
@@ -49,6 +51,7 @@ public class SessionManager implements CommonUtils.NamedRunnable, SessionImpl.Se
 
     private Broker[] brokers;
     private Broker managerBroker;
+    private ShardedBroker shardedBroker;
     private AtomicLong portIncrease = new AtomicLong(0);
 
     private int numOfPorts;
@@ -86,6 +89,7 @@ public class SessionManager implements CommonUtils.NamedRunnable, SessionImpl.Se
         if( config.isTCPon() ) {
             initializeBrokers();
             serverCommController = new ServerCommController(fullAddress, serviceId, null);
+            serverCommController.setHeartbeat( (int) config.getHeartbeatInterval() );
             serverCommController.setDebugMode( config.isDebugMode() );
             closeableObjects.add(serverCommController);
         }
@@ -115,17 +119,37 @@ public class SessionManager implements CommonUtils.NamedRunnable, SessionImpl.Se
      */
     public void initializeBrokers(){
         numOfPorts = config.getNumOfSockets();
+        if( config.getNumOfBrokerShards() > 1 ){
+            // one public port, the sessions are spread over the broker threads by the sharded broker
+            numOfPorts = 1;
+            shardedBroker = new ShardedBroker(sessionMngPort, config.getNumOfBrokerShards(),
+                    config.getHeartbeatInterval(), config.getHeartbeatLiveness());
+            if( config.getRequestJournalPath() != null ) {
+                shardedBroker.setJournal(config.getRequestJournalPath());
+            }
+            CommonUtils.execute( shardedBroker );
+            closeableObjects.add(shardedBroker);
+            return;
+        }
         //if numOfPorts is <= 1, use always managerBroker
         if( numOfPorts > 1 ) {
             brokers = new Broker[numOfPorts];
             for (int i = 0; i < numOfPorts; i++) {
                 // Can be called multiple times with different endpoints
-                brokers[i] = new Broker(config.getServerAddress(), sessionMngPort + (i + 1));
+                brokers[i] = new Broker(config.getServerAddress(), sessionMngPort + (i + 1),
+                        config.getHeartbeatInterval(), config.getHeartbeatLiveness());
+                if( config.getRequestJournalPath() != null ) {
+                    brokers[i].setJournal(config.getRequestJournalPath());
+                }
                 CommonUtils.execute(brokers[i]);
                 closeableObjects.add(brokers[i]);
             }
         }
-        managerBroker = new Broker(config.getServerAddress(), sessionMngPort);
+        managerBroker = new Broker(config.getServerAddress(), sessionMngPort, config.getHeartbeatInterval(),
+                config.getHeartbeatLiveness());
+        if( config.getRequestJournalPath() != null ) {
+            managerBroker.setJournal(config.getRequestJournalPath());
+        }
         CommonUtils.execute( managerBroker );
         closeableObjects.add(managerBroker);
     }
@@ -414,7 +438,11 @@ public class SessionManager implements CommonUtils.NamedRunnable, SessionImpl.Se
                     broker.close(this);
                 }
             }
-            managerBroker.close(this);
+            if( shardedBroker != null ) {
+                shardedBroker.close(this);
+            }else {
+                managerBroker.close(this);
+            }
         }
     }
 
@@ -424,6 +452,8 @@ public class SessionManager implements CommonUtils.NamedRunnable, SessionImpl.Se
         if (closeableObjects.isEmpty()) {
             ResourceLocator.stopStatlessComp();
             CommonUtils.shutdownThreadExecutor();
+            EventDispatchers.shutdownSharedPool();
+            HashedWheelTimer.stopShared();
             ResourceLocator.setIamDone(this);
             if(DependencyManager.getInstance() != null)
                 DependencyManager.getInstance().release();
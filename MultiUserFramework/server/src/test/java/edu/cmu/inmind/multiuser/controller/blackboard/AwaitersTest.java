@@ -0,0 +1,108 @@
+package edu.cmu.inmind.multiuser.controller.blackboard;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+public class AwaitersTest {
+
+    private static final long TIMEOUT = 5000;
+
+    private Awaiters awaiters;
+    // plays the role of the blackboard model
+    private Map<String, Object> model;
+    private Function<String, Object> lookup;
+
+    @Before
+    public void setUp() {
+        awaiters = new Awaiters();
+        model = new HashMap<>();
+        lookup = new Function<String, Object>() {
+            @Override
+            public Object apply(String key) {
+                return model.get(key);
+            }
+        };
+    }
+
+    @Test
+    public void testPostCompletesTheWaiter() throws Exception {
+        CompletableFuture<Object> future = awaiters.await("key", new Predicate<Object>() {
+            @Override
+            public boolean test(Object element) {
+                return (Integer) element > 1;
+            }
+        }, 0, lookup);
+        Assert.assertEquals(1, awaiters.size());
+        awaiters.onPost("other", 2, null);
+        awaiters.onPost("key", 1, null);
+        Assert.assertFalse(future.isDone());
+        awaiters.onPost("key", 2, null);
+        Assert.assertEquals(2, future.get(TIMEOUT, TimeUnit.MILLISECONDS));
+        Assert.assertTrue(awaiters.isEmpty());
+    }
+
+    @Test
+    public void testExistingValueCompletesTheWaiter() throws Exception {
+        model.put("key", "value");
+        CompletableFuture<Object> future = awaiters.await("key", null, 0, lookup);
+        Assert.assertTrue(future.isDone());
+        Assert.assertEquals("value", future.get());
+        Assert.assertTrue(awaiters.isEmpty());
+    }
+
+    @Test
+    public void testTimeoutIsCompletedOnTheDispatcherPool() throws Exception {
+        // long enough for the callback below to be added before the timeout (it would run on this thread otherwise)
+        CompletableFuture<Object> future = awaiters.await("key", null, 500, lookup);
+        final AtomicReference<String> thread = new AtomicReference<>();
+        final CountDownLatch completed = new CountDownLatch(1);
+        future.whenComplete(new BiConsumer<Object, Throwable>() {
+            @Override
+            public void accept(Object result, Throwable error) {
+                thread.set(Thread.currentThread().getName());
+                completed.countDown();
+            }
+        });
+        try {
+            future.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            Assert.fail("it should have timed out");
+        }catch (ExecutionException e){
+            Assert.assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        Assert.assertTrue(completed.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        // the callbacks do not run on the timer thread
+        Assert.assertTrue(thread.get(), thread.get().startsWith("blackboard-dispatcher-"));
+        // the callbacks of a future run in reverse order, so the waiter is unlinked after the one above
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while( !awaiters.isEmpty() && System.currentTimeMillis() < deadline ){
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(awaiters.isEmpty());
+    }
+
+    @Test
+    public void testCancelUnlinksTheWaiter() {
+        CompletableFuture<Object> future = awaiters.await("key", null, TIMEOUT, lookup);
+        CompletableFuture<Object> other = awaiters.await("key", null, 0, lookup);
+        Assert.assertEquals(2, awaiters.size());
+        future.cancel(false);
+        Assert.assertEquals(1, awaiters.size());
+        awaiters.onPost("key", "value", null);
+        Assert.assertTrue(future.isCancelled());
+        Assert.assertEquals("value", other.join());
+        Assert.assertTrue(awaiters.isEmpty());
+    }
+}
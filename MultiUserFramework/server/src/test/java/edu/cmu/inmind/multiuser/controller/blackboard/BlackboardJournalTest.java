@@ -0,0 +1,153 @@
+package edu.cmu.inmind.multiuser.controller.blackboard;
+
+import edu.cmu.inmind.multiuser.controller.log.MessageLog;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class BlackboardJournalTest {
+
+    private static final String SESSION = "session";
+    /** small enough for a few records to fill a segment **/
+    private static final int SEGMENT_SIZE = 256;
+    private static final int NUM_OF_POSTS = 20;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String directory;
+    private BlackboardJournal journal;
+    private BlackboardImpl blackboard;
+
+    /** it is not Serializable, so it is journaled as JSON **/
+    static class Position {
+        String name;
+        int x;
+
+        Position() {}
+
+        Position(String name, int x) {
+            this.name = name;
+            this.x = x;
+        }
+    }
+
+    @Before
+    public void setUp() throws Throwable {
+        directory = folder.newFolder("journal").getPath();
+        journal = new BlackboardJournal(directory, SESSION, SEGMENT_SIZE);
+        blackboard = new BlackboardImpl((MessageLog) null);
+        blackboard.setLoggerOn(false);
+        // the replayed session has no components, the test reads its model
+        blackboard.setNotifySubscribers(false);
+        blackboard.setKeepModel(true);
+    }
+
+    @After
+    public void tearDown() {
+        journal.close();
+        blackboard.getDispatcher().close();
+    }
+
+    @Test
+    public void testRecordsRoundTripAcrossSegments() throws Throwable {
+        for( int i = 0; i < NUM_OF_POSTS; i++ ){
+            journal.append(BlackboardJournal.POST, i, "sender", "key" + i, BlackboardJournal.encode("value-" + i));
+        }
+        journal.append(BlackboardJournal.POST, NUM_OF_POSTS, "sender", "position",
+                BlackboardJournal.encode(new Position("p", 7)));
+        journal.append(BlackboardJournal.REMOVE, NUM_OF_POSTS + 1, "sender", "key0", BlackboardJournal.encode(null));
+        journal.close();
+        Assert.assertTrue(numOfSegments() > 2);
+
+        List<JournalReader.JournalRecord> records = new JournalReader(directory, SESSION).read();
+        Assert.assertEquals(NUM_OF_POSTS + 2, records.size());
+        for( int i = 0; i < NUM_OF_POSTS; i++ ){
+            JournalReader.JournalRecord record = records.get(i);
+            Assert.assertEquals(BlackboardJournal.POST, record.getType());
+            Assert.assertEquals(i, record.getVersion());
+            Assert.assertEquals("sender", record.getSender());
+            Assert.assertEquals("key" + i, record.getKey());
+            Assert.assertEquals("value-" + i, record.getValue());
+        }
+        Position position = (Position) records.get(NUM_OF_POSTS).getValue();
+        Assert.assertEquals("p", position.name);
+        Assert.assertEquals(7, position.x);
+        Assert.assertEquals(BlackboardJournal.REMOVE, records.get(NUM_OF_POSTS + 1).getType());
+        Assert.assertNull(records.get(NUM_OF_POSTS + 1).getValue());
+
+        Assert.assertEquals(NUM_OF_POSTS + 2, new JournalReader(directory, SESSION).replay(blackboard));
+        Assert.assertNull(blackboard.get("key0"));
+        Assert.assertEquals("value-1", blackboard.get("key1"));
+        Assert.assertEquals("value-" + (NUM_OF_POSTS - 1), blackboard.get("key" + (NUM_OF_POSTS - 1)));
+        Assert.assertEquals(7, ((Position) blackboard.get("position")).x);
+    }
+
+    @Test
+    public void testReopenedJournalAppendsAfterItsSegments() throws Throwable {
+        journal.append(BlackboardJournal.POST, 1, "sender", "key", BlackboardJournal.encode("first"));
+        journal.close();
+        journal = new BlackboardJournal(directory, SESSION, SEGMENT_SIZE);
+        journal.append(BlackboardJournal.POST, 2, "sender", "key", BlackboardJournal.encode("second"));
+        journal.close();
+
+        List<Object> values = new ArrayList<>();
+        for( JournalReader.JournalRecord record : new JournalReader(directory, SESSION) ){
+            values.add(record.getValue());
+        }
+        Assert.assertEquals(2, values.size());
+        Assert.assertEquals("first", values.get(0));
+        Assert.assertEquals("second", values.get(1));
+    }
+
+    @Test
+    public void testCorruptedRecordEndsItsSegment() throws Throwable {
+        journal.append(BlackboardJournal.POST, 1, "sender", "key1", BlackboardJournal.encode("value-1"));
+        journal.append(BlackboardJournal.POST, 2, "sender", "corrupted", BlackboardJournal.encode("value-2"));
+        journal.append(BlackboardJournal.POST, 3, "sender", "key3", BlackboardJournal.encode("value-3"));
+        journal.close();
+        Assert.assertEquals(1, numOfSegments());
+        corrupt(new File(directory, BlackboardJournal.segmentName(SESSION, 0)), "corrupted");
+
+        List<JournalReader.JournalRecord> records = new JournalReader(directory, SESSION).read();
+        Assert.assertEquals(1, records.size());
+        Assert.assertEquals("key1", records.get(0).getKey());
+    }
+
+    private int numOfSegments(){
+        File[] files = new File(directory).listFiles();
+        return files == null? 0 : files.length;
+    }
+
+    /**
+     * Overwrites the first byte of text in file
+     */
+    private static void corrupt(File file, String text) throws Exception {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            byte[] data = new byte[(int) randomAccessFile.length()];
+            randomAccessFile.readFully(data);
+            byte[] pattern = text.getBytes(StandardCharsets.UTF_8);
+            for( int i = 0; i + pattern.length <= data.length; i++ ){
+                boolean isMatch = true;
+                for( int j = 0; j < pattern.length && isMatch; j++ ){
+                    isMatch = data[i + j] == pattern[j];
+                }
+                if( isMatch ){
+                    randomAccessFile.seek(i);
+                    randomAccessFile.write(pattern[0] ^ 0xFF);
+                    return;
+                }
+            }
+        }
+        Assert.fail(text + " is not in " + file);
+    }
+}
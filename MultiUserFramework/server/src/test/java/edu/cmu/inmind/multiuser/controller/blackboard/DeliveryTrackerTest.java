@@ -0,0 +1,168 @@
+package edu.cmu.inmind.multiuser.controller.blackboard;
+
+import edu.cmu.inmind.multiuser.controller.common.Constants;
+import edu.cmu.inmind.multiuser.controller.exceptions.MultiuserException;
+import edu.cmu.inmind.multiuser.controller.log.MessageLog;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class DeliveryTrackerTest {
+
+    private static final long TIMEOUT = 5000;
+
+    private BlackboardImpl blackboard;
+    private RecordingListener sender;
+    private Subscriber first;
+    private Subscriber second;
+
+    @BlackboardSubscription(messages = {"key", "block"})
+    static class Subscriber extends RecordingListener {
+        Subscriber() {
+            super("session");
+        }
+    }
+
+    @Before
+    public void setUp() {
+        blackboard = new BlackboardImpl((MessageLog) null);
+        blackboard.setLoggerOn(false);
+        sender = new RecordingListener("session");
+        first = new Subscriber();
+        second = new Subscriber();
+    }
+
+    @After
+    public void tearDown() {
+        first.release();
+        second.release();
+        blackboard.getDispatcher().close();
+    }
+
+    @Test
+    public void testEverySubscriberIsReported() throws Throwable {
+        blackboard.subscribe(first);
+        blackboard.subscribe(second);
+
+        DeliveryReport report = blackboard.postAndTrack(sender, "key", "value").get(TIMEOUT, TimeUnit.MILLISECONDS);
+        Assert.assertEquals("key", report.getKey());
+        Assert.assertTrue(report.isSuccessful());
+        Map<BlackboardListener, DeliveryReport.SubscriberDelivery> deliveries = bySubscriber(report);
+        Assert.assertEquals(2, deliveries.size());
+        for( Subscriber subscriber : new Subscriber[]{ first, second } ){
+            DeliveryReport.SubscriberDelivery delivery = deliveries.get(subscriber);
+            Assert.assertNotNull(delivery);
+            Assert.assertFalse(delivery.isDiscarded());
+            Assert.assertNull(delivery.getError());
+            Assert.assertTrue(delivery.getDuration() >= 0);
+            // the event had been delivered when the future was completed
+            Assert.assertEquals(1, subscriber.getNumOfEvents());
+        }
+        Assert.assertTrue(report.getElapsed() >= 0);
+    }
+
+    @Test
+    public void testErrorOfOneSubscriberIsReported() throws Throwable {
+        RuntimeException error = new RuntimeException("test");
+        first.failWith(error);
+        blackboard.subscribe(first);
+        blackboard.subscribe(second);
+
+        DeliveryReport report = blackboard.postAndTrack(sender, "key", "value").get(TIMEOUT, TimeUnit.MILLISECONDS);
+        Assert.assertFalse(report.isSuccessful());
+        Map<BlackboardListener, DeliveryReport.SubscriberDelivery> deliveries = bySubscriber(report);
+        Assert.assertEquals(2, deliveries.size());
+        Assert.assertSame(error, deliveries.get(first).getError());
+        Assert.assertFalse(deliveries.get(first).isDiscarded());
+        // the other subscriber still got the event
+        Assert.assertNull(deliveries.get(second).getError());
+        Assert.assertEquals("value", second.next(TIMEOUT).getElement());
+    }
+
+    @Test
+    public void testDroppedDeliveryIsReported() throws Throwable {
+        blackboard.setDispatcher(new MailboxDispatcher(new DispatcherStats(), 1, Constants.OVERFLOW_DROP_NEWEST));
+        blackboard.subscribe(first.blockOn("block"));
+
+        // the subscriber is busy and its only slot is taken
+        blackboard.post(sender, "block", "b");
+        Assert.assertTrue(first.awaitBlocked());
+        blackboard.post(sender, "key", "queued");
+        DeliveryReport report = blackboard.postAndTrack(sender, "key", "dropped").get(TIMEOUT,
+                TimeUnit.MILLISECONDS);
+        Assert.assertFalse(report.isSuccessful());
+        Assert.assertEquals(1, report.getDeliveries().size());
+        Assert.assertTrue(report.getDeliveries().get(0).isDiscarded());
+        Assert.assertSame(first, report.getDeliveries().get(0).getSubscriber());
+
+        first.release();
+        Assert.assertEquals("b", first.next(TIMEOUT).getElement());
+        Assert.assertEquals("queued", first.next(TIMEOUT).getElement());
+        Assert.assertNull(first.next(100));
+    }
+
+    @Test
+    public void testRejectedDeliveryIsReported() throws Throwable {
+        blackboard.setDispatcher(new MailboxDispatcher(new DispatcherStats(), 1, Constants.OVERFLOW_FAIL));
+        blackboard.subscribe(first.blockOn("block"));
+        blackboard.subscribe(second);
+
+        blackboard.post(sender, "block", "b");
+        Assert.assertTrue(first.awaitBlocked());
+        blackboard.post(sender, "key", "queued");
+        CompletableFuture<DeliveryReport> future = blackboard.postAndTrack(sender, "key", "rejected");
+        // the post fails, since a mailbox rejected the event
+        try {
+            future.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            Assert.fail("the post should have failed");
+        }catch (ExecutionException e){
+            Assert.assertTrue(e.getCause() instanceof MultiuserException);
+        }
+
+        // when errors are not thrown, the rejection is in the report
+        blackboard.setShouldThrowException(false);
+        DeliveryReport report = blackboard.postAndTrack(sender, "key", "rejected").get(TIMEOUT,
+                TimeUnit.MILLISECONDS);
+        Assert.assertFalse(report.isSuccessful());
+        Map<BlackboardListener, DeliveryReport.SubscriberDelivery> deliveries = bySubscriber(report);
+        Assert.assertTrue(deliveries.get(first).isDiscarded());
+        Assert.assertFalse(deliveries.get(second).isDiscarded());
+    }
+
+    @Test
+    public void testFutureIsCompletedOnceEveryDeliveryIsDone() throws Throwable {
+        DeliveryTracker tracker = new DeliveryTracker("key");
+        Runnable delivery = tracker.track(first, new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        tracker.seal();
+        Assert.assertFalse(tracker.getFuture().isDone());
+        // a delivery that is discarded more than once is only reported once
+        DeliveryTracker.discard(delivery);
+        DeliveryTracker.discard(delivery);
+        DeliveryReport report = tracker.getFuture().getNow(null);
+        Assert.assertNotNull(report);
+        Assert.assertEquals(1, report.getDeliveries().size());
+
+        tracker = new DeliveryTracker("key");
+        tracker.seal();
+        Assert.assertTrue(tracker.getFuture().getNow(null).getDeliveries().isEmpty());
+    }
+
+    private static Map<BlackboardListener, DeliveryReport.SubscriberDelivery> bySubscriber(DeliveryReport report){
+        Map<BlackboardListener, DeliveryReport.SubscriberDelivery> deliveries = new HashMap<>();
+        for( DeliveryReport.SubscriberDelivery delivery : report.getDeliveries() ){
+            deliveries.put(delivery.getSubscriber(), delivery);
+        }
+        return deliveries;
+    }
+}
@@ -0,0 +1,102 @@
+package edu.cmu.inmind.multiuser.controller.blackboard;
+
+import edu.cmu.inmind.multiuser.controller.log.MessageLog;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+public class GlobalBlackboardTest {
+
+    private static final long TIMEOUT = 5000;
+    private static final String FLAG = "global/FLAGS.test";
+
+    private BlackboardImpl session1;
+    private BlackboardImpl session2;
+    private RecordingListener sender1;
+
+    @BlackboardSubscription(messages = {FLAG})
+    static class Subscriber extends RecordingListener {
+        Subscriber() {
+            super("session2");
+        }
+    }
+
+    @Before
+    public void setUp() {
+        GlobalBlackboard.getInstance().reset();
+        session1 = newBlackboard();
+        session2 = newBlackboard();
+        sender1 = new RecordingListener("session1");
+    }
+
+    @After
+    public void tearDown() {
+        GlobalBlackboard.getInstance().reset();
+    }
+
+    @Test
+    public void testAwaitCompletesWhenAnotherSessionPosts() throws Throwable {
+        CompletableFuture<Object> future = session2.await(FLAG, 0);
+        Assert.assertFalse(future.isDone());
+        session1.post(sender1, FLAG, "on");
+        Assert.assertEquals("on", future.get(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        // the current value completes a new await right away, even if the model of the session is not kept
+        Assert.assertFalse(session2.isModelKept());
+        Assert.assertEquals("on", session2.await(FLAG, 0).getNow(null));
+    }
+
+    @Test
+    public void testAwaitWithAConditionOnAGlobalKey() throws Throwable {
+        CompletableFuture<Object> future = session2.await(FLAG, new Predicate<Object>() {
+            @Override
+            public boolean test(Object element) {
+                return "off".equals(element);
+            }
+        }, 0);
+        session1.post(sender1, FLAG, "on");
+        Assert.assertFalse(future.isDone());
+        session1.post(sender1, FLAG, "off");
+        Assert.assertEquals("off", future.get(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testConditionWaitersOfTheDeliveringBlackboard() throws Throwable {
+        Subscriber subscriber = new Subscriber();
+        session2.subscribe(subscriber);
+        CompletableFuture<Void> future = session2.await(new Predicate<Blackboard>() {
+            @Override
+            public boolean test(Blackboard blackboard) {
+                try {
+                    return "on".equals(blackboard.get(FLAG));
+                }catch (Throwable e){
+                    return false;
+                }
+            }
+        }, 0);
+        Assert.assertFalse(future.isDone());
+        session1.post(sender1, FLAG, "on");
+        future.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        Assert.assertEquals("on", subscriber.next(TIMEOUT).getElement());
+    }
+
+    @Test
+    public void testResetCancelsTheGlobalAwaitsOfTheSession() throws Throwable {
+        CompletableFuture<Object> future = session2.await(FLAG, 0);
+        session2.reset();
+        Assert.assertTrue(future.isCancelled());
+        session1.post(sender1, FLAG, "on");
+        Assert.assertEquals("on", session2.get(FLAG));
+    }
+
+    private static BlackboardImpl newBlackboard(){
+        BlackboardImpl blackboard = new BlackboardImpl((MessageLog) null);
+        blackboard.setLoggerOn(false);
+        return blackboard;
+    }
+}
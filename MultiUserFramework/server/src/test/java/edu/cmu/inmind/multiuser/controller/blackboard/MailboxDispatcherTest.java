@@ -0,0 +1,88 @@
+package edu.cmu.inmind.multiuser.controller.blackboard;
+
+import edu.cmu.inmind.multiuser.controller.common.Constants;
+import edu.cmu.inmind.multiuser.controller.log.MessageLog;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class MailboxDispatcherTest {
+
+    private static final long TIMEOUT = 5000;
+
+    private BlackboardImpl blackboard;
+    private RecordingListener sender;
+    private Subscriber subscriber;
+
+    @BlackboardSubscription(messages = {"block", "other", "conflated"})
+    static class Subscriber extends RecordingListener {
+        Subscriber() {
+            super("session");
+        }
+    }
+
+    @Before
+    public void setUp() throws Throwable {
+        blackboard = new BlackboardImpl((MessageLog) null);
+        blackboard.setLoggerOn(false);
+        sender = new RecordingListener("session");
+        subscriber = new Subscriber();
+        subscriber.blockOn("block");
+    }
+
+    @After
+    public void tearDown() {
+        subscriber.release();
+        blackboard.getDispatcher().close();
+    }
+
+    @Test
+    public void testDroppedConflatedEventDoesNotStopTheKey() throws Throwable {
+        blackboard.setDispatcher(new MailboxDispatcher(new DispatcherStats(), 1, Constants.OVERFLOW_DROP_NEWEST));
+        blackboard.registerConflatedKey("conflated");
+        blackboard.subscribe(subscriber);
+
+        // the subscriber is busy and its only slot is taken, so the conflated event is dropped
+        blackboard.post(sender, "block", "b");
+        Assert.assertTrue(subscriber.awaitBlocked());
+        blackboard.post(sender, "other", "o");
+        CompletableFuture<DeliveryReport> dropped = blackboard.postAndTrack(sender, "conflated", "v1");
+        DeliveryReport report = dropped.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(report.getDeliveries().get(0).isDiscarded());
+        Assert.assertEquals(1, ((MailboxDispatcher) blackboard.getDispatcher()).getDropped(subscriber));
+
+        subscriber.release();
+        Assert.assertEquals("block", subscriber.next(TIMEOUT).getId());
+        Assert.assertEquals("other", subscriber.next(TIMEOUT).getId());
+
+        // the next posts of the key are delivered again
+        report = blackboard.postAndTrack(sender, "conflated", "v2").get(TIMEOUT, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(report.isSuccessful());
+        BlackboardEvent event = subscriber.next(TIMEOUT);
+        Assert.assertNotNull(event);
+        Assert.assertEquals("v2", event.getElement());
+    }
+
+    @Test
+    public void testConflatedEventsKeepTheLatestValue() throws Throwable {
+        blackboard.setDispatcher(new MailboxDispatcher(new DispatcherStats(), 10, Constants.OVERFLOW_DROP_NEWEST));
+        blackboard.registerConflatedKey("conflated");
+        blackboard.subscribe(subscriber);
+
+        blackboard.post(sender, "block", "b");
+        Assert.assertTrue(subscriber.awaitBlocked());
+        CompletableFuture<DeliveryReport> replaced = blackboard.postAndTrack(sender, "conflated", "v1");
+        blackboard.post(sender, "conflated", "v2");
+        blackboard.post(sender, "conflated", "v3");
+        Assert.assertTrue(replaced.get(TIMEOUT, TimeUnit.MILLISECONDS).getDeliveries().get(0).isDiscarded());
+
+        subscriber.release();
+        Assert.assertEquals("block", subscriber.next(TIMEOUT).getId());
+        Assert.assertEquals("v3", subscriber.next(TIMEOUT).getElement());
+        Assert.assertNull(subscriber.next(100));
+    }
+}
@@ -0,0 +1,129 @@
+package edu.cmu.inmind.multiuser.controller.blackboard;
+
+import edu.cmu.inmind.multiuser.controller.common.Constants;
+import edu.cmu.inmind.multiuser.controller.exceptions.MultiuserException;
+import edu.cmu.inmind.multiuser.controller.log.MessageLog;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class PostAllTest {
+
+    private static final long TIMEOUT = 5000;
+    private static final String FLAG = "global/FLAGS.test";
+
+    private BlackboardImpl blackboard;
+    private RecordingListener sender;
+
+    @BlackboardSubscription(messages = {"a", "b"})
+    static class BothKeys extends RecordingListener {
+        BothKeys() {
+            super("session");
+        }
+    }
+
+    @BlackboardSubscription(messages = {"b"})
+    static class OneKey extends RecordingListener {
+        OneKey() {
+            super("session");
+        }
+    }
+
+    @BlackboardSubscription(messages = {FLAG})
+    static class GlobalSubscriber extends RecordingListener {
+        GlobalSubscriber() {
+            super("other");
+        }
+    }
+
+    @Before
+    public void setUp() {
+        GlobalBlackboard.getInstance().reset();
+        blackboard = new BlackboardImpl((MessageLog) null);
+        blackboard.setLoggerOn(false);
+        blackboard.setKeepModel(true);
+        sender = new RecordingListener("session");
+    }
+
+    @After
+    public void tearDown() {
+        GlobalBlackboard.getInstance().reset();
+        blackboard.getDispatcher().close();
+    }
+
+    @Test
+    public void testEachSubscriberGetsOneEvent() throws Throwable {
+        BothKeys both = new BothKeys();
+        OneKey one = new OneKey();
+        blackboard.subscribe(both);
+        blackboard.subscribe(one);
+
+        Map<String, Object> elements = new LinkedHashMap<>();
+        elements.put("a", "1");
+        elements.put("b", "2");
+        elements.put("c", "3");
+        blackboard.postAll(sender, elements);
+
+        BlackboardEvent event = both.next(TIMEOUT);
+        Assert.assertNotNull(event);
+        Assert.assertEquals(Constants.ELEMENTS_ADDED, event.getStatus());
+        Assert.assertEquals("a" + Constants.KEY_SEPARATOR + "b", event.getId());
+        Map<?, ?> received = (Map<?, ?>) event.getElement();
+        Assert.assertEquals(2, received.size());
+        Assert.assertEquals("1", received.get("a"));
+        Assert.assertEquals("2", received.get("b"));
+
+        // only one of its keys was posted, so it gets a regular event
+        event = one.next(TIMEOUT);
+        Assert.assertNotNull(event);
+        Assert.assertEquals(Constants.ELEMENT_ADDED, event.getStatus());
+        Assert.assertEquals("b", event.getId());
+        Assert.assertEquals("2", event.getElement());
+
+        Assert.assertNull(both.next(100));
+        Assert.assertNull(one.next(0));
+        Assert.assertEquals("3", blackboard.get("c"));
+    }
+
+    @Test
+    public void testGlobalAndLocalKeysInOneBatch() throws Throwable {
+        BothKeys local = new BothKeys();
+        blackboard.subscribe(local);
+        BlackboardImpl other = new BlackboardImpl((MessageLog) null);
+        other.setLoggerOn(false);
+        GlobalSubscriber global = new GlobalSubscriber();
+        other.subscribe(global);
+
+        Map<String, Object> elements = new LinkedHashMap<>();
+        elements.put(FLAG, "on");
+        elements.put("a", "1");
+        elements.put("b", "2");
+        blackboard.postAll(sender, elements);
+
+        // the global key goes to the subscribers of every session, the local ones are still coalesced
+        BlackboardEvent event = global.next(TIMEOUT);
+        Assert.assertNotNull(event);
+        Assert.assertEquals(FLAG, event.getId());
+        Assert.assertEquals("on", event.getElement());
+        event = local.next(TIMEOUT);
+        Assert.assertNotNull(event);
+        Assert.assertEquals(Constants.ELEMENTS_ADDED, event.getStatus());
+        Assert.assertEquals(2, ((Map<?, ?>) event.getElement()).size());
+        Assert.assertNull(local.next(100));
+
+        Assert.assertEquals("on", blackboard.get(FLAG));
+        Assert.assertEquals("on", other.get(FLAG));
+        Assert.assertEquals("1", blackboard.get("a"));
+        Assert.assertNull(other.get("a"));
+        other.getDispatcher().close();
+    }
+
+    @Test(expected = MultiuserException.class)
+    public void testErrorsAreThrown() throws Throwable {
+        blackboard.postAll(sender, new LinkedHashMap<String, Object>());
+    }
+}
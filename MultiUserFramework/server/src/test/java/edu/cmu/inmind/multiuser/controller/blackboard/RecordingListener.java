@@ -0,0 +1,86 @@
+package edu.cmu.inmind.multiuser.controller.blackboard;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Subscriber (and sender) for the blackboard tests: it keeps the events it receives, and the ones of key blockingKey
+ * wait until release is called
+ */
+class RecordingListener implements BlackboardListener {
+    private final String sessionId;
+    private final LinkedBlockingQueue<BlackboardEvent> events = new LinkedBlockingQueue<>();
+    private final CountDownLatch released = new CountDownLatch(1);
+    private final CountDownLatch blocked = new CountDownLatch(1);
+    private String blockingKey;
+    private RuntimeException error;
+
+    RecordingListener(String sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    /**
+     * The events of key wait in onEvent until release is called
+     */
+    RecordingListener blockOn(String key){
+        this.blockingKey = key;
+        return this;
+    }
+
+    /**
+     * onEvent throws error (after recording the event)
+     */
+    RecordingListener failWith(RuntimeException error){
+        this.error = error;
+        return this;
+    }
+
+    void release(){
+        released.countDown();
+    }
+
+    /**
+     * Waits until an event of the blocking key is being processed
+     */
+    boolean awaitBlocked() throws InterruptedException {
+        return blocked.await(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return the next event, or null if none arrives within timeout msecs
+     */
+    BlackboardEvent next(long timeout) throws InterruptedException {
+        return events.poll(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    int getNumOfEvents(){
+        return events.size();
+    }
+
+    @Override
+    public void onEvent(Blackboard blackboard, BlackboardEvent event) throws Throwable {
+        if( event.getId().equals(blockingKey) ){
+            blocked.countDown();
+            released.await(5, TimeUnit.SECONDS);
+        }
+        events.add(event);
+        if( error != null ){
+            throw error;
+        }
+    }
+
+    @Override
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    @Override
+    public boolean isClosing() {
+        return false;
+    }
+
+    @Override
+    public void addBlackboard(String sessionId, Blackboard blackboard) {
+    }
+}
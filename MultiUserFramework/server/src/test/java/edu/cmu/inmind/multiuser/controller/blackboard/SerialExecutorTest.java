@@ -0,0 +1,76 @@
+package edu.cmu.inmind.multiuser.controller.blackboard;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SerialExecutorTest {
+
+    @Test
+    public void testTasksAreDiscardedWhenThePoolIsShutDown() {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(1), new EventDispatchers.CallerRunsHandler());
+        pool.shutdown();
+        SerialExecutor executor = new SerialExecutor(pool);
+        final AtomicBoolean idle = new AtomicBoolean();
+        executor.setOnIdle(new Runnable() {
+            @Override
+            public void run() {
+                idle.set(true);
+            }
+        });
+
+        DeliveryTracker tracker = new DeliveryTracker("key");
+        executor.execute(tracker.track(new RecordingListener("session"), new Runnable() {
+            @Override
+            public void run() {
+                Assert.fail("the pool is shut down");
+            }
+        }));
+        tracker.seal();
+        DeliveryReport report = tracker.getFuture().getNow(null);
+        Assert.assertNotNull(report);
+        Assert.assertTrue(report.getDeliveries().get(0).isDiscarded());
+        // it is not left scheduled, waiting for a drain task that will never run
+        Assert.assertTrue(executor.isIdle());
+        Assert.assertEquals(0, executor.getDepth());
+        Assert.assertTrue(idle.get());
+    }
+
+    @Test
+    public void testRejectedDrainDoesNotStopTheExecutor() {
+        final AtomicBoolean reject = new AtomicBoolean(true);
+        SerialExecutor executor = new SerialExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                if( reject.get() ){
+                    throw new RejectedExecutionException("test");
+                }
+                command.run();
+            }
+        });
+        final AtomicInteger runs = new AtomicInteger();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        };
+        executor.execute(task);
+        Assert.assertEquals(0, runs.get());
+        Assert.assertTrue(executor.isIdle());
+
+        // the next task schedules a new drain
+        reject.set(false);
+        executor.execute(task);
+        Assert.assertEquals(1, runs.get());
+        Assert.assertTrue(executor.isIdle());
+    }
+}
@@ -0,0 +1,183 @@
+package edu.cmu.inmind.multiuser.controller.blackboard;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class SpillStoreTest {
+
+    private static final int VALUE_SIZE = 200;
+
+    private SpillStore store;
+    // plays the role of the blackboard model: values on the heap
+    private Map<String, Object> model;
+
+    @Before
+    public void setUp() {
+        model = new HashMap<>();
+        store = newStore(0);
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+        SpillStore.setGlobalBudget(0);
+    }
+
+    @Test
+    public void testSpillAndReload() throws Throwable {
+        // budget for two values: the third put spills the least recently used one
+        store.setSessionBudget( 2 * sizeOf(newValue("k0")) + 10 );
+        put("k0"); put("k1"); put("k2");
+        Assert.assertNotNull(store.getSpilled("k0"));
+        Assert.assertNull(store.getSpilled("k1"));
+        Assert.assertFalse(model.containsKey("k0"));
+        Assert.assertEquals(1, store.getSpills());
+
+        // the disk copy is equal to the posted value and it goes back to the heap when it is loaded
+        SpillStore.Ref ref = store.getSpilled("k0");
+        Object loaded = ref.load();
+        Assert.assertEquals(newValue("k0"), loaded);
+        model.put("k0", loaded);
+        store.onLoad("k0", loaded, ref);
+        Assert.assertNull(store.getSpilled("k0"));
+        Assert.assertEquals(1, store.getLoads());
+        // now k1 is the least recently used one
+        Assert.assertNotNull(store.getSpilled("k1"));
+    }
+
+    @Test
+    public void testReadsKeepValuesOnTheHeap() {
+        store.setSessionBudget( 2 * sizeOf(newValue("k0")) + 10 );
+        put("k0"); put("k1");
+        // k0 is read, so k1 is the least recently used one
+        store.onRead("k0");
+        put("k2");
+        Assert.assertNull(store.getSpilled("k0"));
+        Assert.assertNotNull(store.getSpilled("k1"));
+    }
+
+    @Test
+    public void testDiskCopyIsPublishedBeforeTheValueLeavesTheHeap() {
+        final List<SpillStore.Ref> seen = new ArrayList<>();
+        final SpillStore[] evicting = new SpillStore[1];
+        evicting[0] = new SpillStore(1, new SpillStore.Evictor() {
+            @Override
+            public boolean evict(String key, Object value, SpillStore.Ref ref) {
+                // a reader that does not find the value on the heap from now on finds its disk copy
+                seen.add(evicting[0].getSpilled(key));
+                return !key.equals("rejected");
+            }
+        });
+        try {
+            evicting[0].onPut("k0", newValue("k0"), SpillStore.serialize(newValue("k0")));
+            evicting[0].onPut("rejected", newValue("r"), SpillStore.serialize(newValue("r")));
+            Assert.assertEquals(2, seen.size());
+            Assert.assertNotNull(seen.get(0));
+            Assert.assertNotNull(seen.get(1));
+            Assert.assertNotNull(evicting[0].getSpilled("k0"));
+            // a value that is not evicted has no disk copy
+            Assert.assertNull(evicting[0].getSpilled("rejected"));
+            Assert.assertEquals(1, evicting[0].getSpills());
+        }finally {
+            evicting[0].close();
+        }
+    }
+
+    @Test
+    public void testClearKeepsReferencedCopiesReadable() throws Throwable {
+        store.setSessionBudget(1);
+        put("k0"); put("k1");
+        SpillStore.Ref ref = store.getSpilled("k0");
+        Assert.assertNotNull(ref);
+
+        // e.g., an open snapshot still holds the disk copy of k0
+        store.clear();
+        Assert.assertEquals(0, store.getNumOfSpilledKeys());
+        Assert.assertEquals(0, store.getHotBytes());
+        Assert.assertEquals(0, store.getFileSize());
+        Assert.assertEquals(newValue("k0"), ref.load());
+
+        // and the store can still be used
+        put("k2"); put("k3");
+        Assert.assertEquals(newValue("k2"), store.getSpilled("k2").load());
+    }
+
+    @Test
+    public void testCompactionKeepsLiveCopies() throws Throwable {
+        store.setSessionBudget(1);
+        // overwriting the same keys turns most of the file into garbage
+        for( int round = 0; round < 200; round++ ){
+            for( int key = 0; key < 10; key++ ){
+                put("k" + key, newValue("r" + round + "k" + key));
+            }
+        }
+        Assert.assertTrue(store.getCompactions() > 0);
+        Assert.assertTrue(store.getSpilledBytes() < store.getFileSize());
+        for( int key = 0; key < 9; key++ ){
+            Assert.assertEquals(newValue("r199k" + key), store.getSpilled("k" + key).load());
+        }
+    }
+
+    @Test
+    public void testGlobalBudgetEvictsFromTheBiggestStore() throws Throwable {
+        SpillStore small = newStore(0);
+        try {
+            int size = sizeOf(newValue("k0"));
+            SpillStore.setGlobalBudget( SpillStore.getGlobalHotBytes() + 5 * size + size / 2 );
+            for (int i = 0; i < 5; i++) {
+                put("k" + i);
+            }
+            small.onPut("s0", newValue("s0"), SpillStore.serialize(newValue("s0")));
+            Assert.assertEquals(1, store.getNumOfSpilledKeys());
+            Assert.assertEquals(0, small.getNumOfSpilledKeys());
+        }finally {
+            small.close();
+        }
+    }
+
+    @Test
+    public void testNotSerializableValuesStayOnTheHeap() {
+        Assert.assertNull(SpillStore.serialize(new Object()));
+        store.setSessionBudget(1);
+        store.onPut("k0", new Object(), null);
+        Assert.assertEquals(0, store.getHotBytes());
+        Assert.assertEquals(0, store.getSpills());
+    }
+
+    private SpillStore newStore(long budget){
+        return new SpillStore(budget, new SpillStore.Evictor() {
+            @Override
+            public boolean evict(String key, Object value, SpillStore.Ref ref) {
+                return model.remove(key) != null;
+            }
+        });
+    }
+
+    private void put(String key){
+        put(key, newValue(key));
+    }
+
+    private void put(String key, ArrayList<String> value){
+        model.put(key, value);
+        store.onPut(key, value, SpillStore.serialize(value));
+    }
+
+    private static ArrayList<String> newValue(String prefix){
+        ArrayList<String> value = new ArrayList<>();
+        for( int i = 0; i < VALUE_SIZE; i++ ){
+            value.add(prefix + "-" + i);
+        }
+        return value;
+    }
+
+    private static int sizeOf(Object value){
+        return SpillStore.serialize(value).length;
+    }
+}
@@ -0,0 +1,132 @@
+package edu.cmu.inmind.multiuser.controller.communication;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMsg;
+
+import java.io.File;
+import java.net.ServerSocket;
+
+public class BrokerJournalTest {
+
+    private static final String SERVICE = "session";
+    private static final long TIMEOUT = 20000;
+    /** time the broker needs to process what it has received before it is stopped **/
+    private static final long SETTLE_TIME = 500;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private ZContext ctx;
+    private Broker broker;
+    private String address;
+    private ZMQ.Socket client;
+
+    @Before
+    public void setUp() throws Throwable {
+        directory = folder.newFolder("journal");
+        ctx = new ZContext();
+        start();
+    }
+
+    @After
+    public void tearDown() throws Throwable {
+        broker.close(null);
+        ctx.destroy();
+    }
+
+    @Test(timeout = TIMEOUT)
+    public void testRequestsThatAreNotDoneAreDeliveredAgain() throws Throwable {
+        ServerCommController worker = newWorker();
+        for( int i = 0; i < 3; i++ ){
+            request("req-" + i);
+        }
+        Assert.assertEquals("req-0", body(worker.receive(null)));
+        // asking for the next request sends the S_DONE of req-0
+        Assert.assertEquals("req-1", body(worker.receive(null)));
+        // the worker dies while it processes req-1
+        worker.destroyInCascade(worker);
+        restart();
+
+        worker = newWorker();
+        request("new");
+        // the recovered requests go first, to the client that is back
+        Assert.assertEquals("req-1", body(worker.receive(null)));
+        Assert.assertEquals("req-2", body(worker.receive(null)));
+        Assert.assertEquals("new", body(worker.receive(null)));
+        worker.destroyInCascade(worker);
+    }
+
+    @Test(timeout = TIMEOUT)
+    public void testRequestsOfAClosedSessionAreDropped() throws Throwable {
+        ServerCommController worker = newWorker();
+        for( int i = 0; i < 3; i++ ){
+            request("req-" + i);
+        }
+        Assert.assertEquals("req-0", body(worker.receive(null)));
+        // the session is closed before it processes req-1 and req-2, so nobody would ever process them
+        worker.disconnect();
+        worker.close(null);
+        restart();
+
+        worker = newWorker();
+        request("new");
+        Assert.assertEquals("new", body(worker.receive(null)));
+        worker.destroyInCascade(worker);
+    }
+
+    /**
+     * Starts a broker on a new port, with the journal of the previous one (if any)
+     */
+    private void start() throws Throwable {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        String previous = broker == null? null : broker.getName();
+        broker = new Broker("127.0.0.1", port);
+        if( previous != null ){
+            Assert.assertTrue(new File(directory, previous).renameTo(new File(directory, broker.getName())));
+        }
+        broker.setJournal(directory.getPath());
+        new Thread(broker).start();
+        address = "tcp://127.0.0.1:" + port;
+        client = ctx.createSocket(ZMQ.DEALER);
+        client.setIdentity("client".getBytes(ZMQ.CHARSET));
+        client.connect(address);
+    }
+
+    private void restart() throws Throwable {
+        Thread.sleep(SETTLE_TIME);
+        broker.close(null);
+        // the broker thread closes the journal when it stops
+        Thread.sleep(SETTLE_TIME);
+        ctx.destroySocket(client);
+        start();
+    }
+
+    private ServerCommController newWorker() {
+        return new ServerCommController(address, SERVICE, new ZMsgWrapper(new ZMsg(), null));
+    }
+
+    private void request(String body) {
+        ZMsg msg = new ZMsg();
+        msg.add(new byte[0]);
+        msg.add(MDP.C_CLIENT.newFrame());
+        msg.add(SERVICE);
+        msg.add(body);
+        msg.send(client);
+    }
+
+    private static String body(ZMsgWrapper request) {
+        Assert.assertNotNull(request);
+        return request.getMsg().peekLast().toString();
+    }
+}
@@ -0,0 +1,59 @@
+package edu.cmu.inmind.multiuser.controller.communication;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.zeromq.ZFrame;
+import org.zeromq.ZMQ;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class FrameKeyTest {
+
+    @Test
+    public void testLookupKeyFollowsSet() {
+        FrameKey lookupKey = new FrameKey();
+        FrameKey stored = new FrameKey(bytes("worker-1"));
+        Assert.assertEquals(stored, lookupKey.set(bytes("worker-1")));
+        Assert.assertEquals(stored.hashCode(), lookupKey.hashCode());
+        Assert.assertNotEquals(stored, lookupKey.set(bytes("worker-2")));
+        Assert.assertEquals(new FrameKey(bytes("worker-2")).hashCode(), lookupKey.hashCode());
+        // a frame is looked up by its bytes
+        Assert.assertEquals(stored, lookupKey.set(new ZFrame("worker-1")));
+        // null and empty frames are the same key
+        Assert.assertEquals(new FrameKey(new byte[0]), lookupKey.set((ZFrame) null));
+    }
+
+    @Test
+    public void testCopyDoesNotChangeWithTheLookupKey() {
+        byte[] data = bytes("worker-1");
+        FrameKey lookupKey = new FrameKey().set(data);
+        FrameKey copy = lookupKey.copy();
+        Assert.assertEquals(lookupKey, copy);
+        Assert.assertNotSame(data, copy.getData());
+
+        Map<FrameKey, String> map = new HashMap<>();
+        map.put(copy, "value");
+        // the lookup key is pointed at other frames, and the buffer it pointed at is reused
+        lookupKey.set(bytes("worker-2"));
+        data[data.length - 1] = '9';
+        Assert.assertNull(map.get(lookupKey));
+        Assert.assertEquals("value", map.get(lookupKey.set(bytes("worker-1"))));
+        Assert.assertEquals("worker-1", copy.toString());
+    }
+
+    @Test
+    public void testStartsWith() {
+        FrameKey key = new FrameKey(bytes("mmi.service"));
+        Assert.assertTrue(key.startsWith(bytes("mmi.")));
+        Assert.assertTrue(key.startsWith(bytes("mmi.service")));
+        Assert.assertTrue(key.startsWith(new byte[0]));
+        Assert.assertFalse(key.startsWith(bytes("mmi.service.x")));
+        Assert.assertFalse(key.startsWith(bytes("mmx")));
+        Assert.assertFalse(key.set(bytes("mm")).startsWith(bytes("mmi.")));
+    }
+
+    private static byte[] bytes(String text){
+        return text.getBytes(ZMQ.CHARSET);
+    }
+}
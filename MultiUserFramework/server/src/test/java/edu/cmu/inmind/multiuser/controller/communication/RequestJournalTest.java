@@ -0,0 +1,207 @@
+package edu.cmu.inmind.multiuser.controller.communication;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMsg;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+public class RequestJournalTest {
+
+    private static final byte[] SERVICE = "service".getBytes(ZMQ.CHARSET);
+    private static final int SEGMENT_SIZE = 512;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private RequestJournal journal;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = folder.newFolder("journal");
+        journal = open();
+    }
+
+    @After
+    public void tearDown() {
+        journal.close();
+    }
+
+    @Test
+    public void testRecoveryKeepsTheRequestsThatAreNotDone() throws Exception {
+        long[] ids = new long[5];
+        for( int i = 0; i < ids.length; i++ ){
+            ids[i] = journal.append(SERVICE, MessagePriority.values()[i % MessagePriority.values().length],
+                    newRequest("req-" + i));
+        }
+        journal.done(ids[1]);
+        journal.done(ids[3]);
+        Assert.assertNull(journal.read(ids[1]));
+        Assert.assertEquals("req-2", journal.read(ids[2]).msg.getLast().toString());
+        Assert.assertEquals(3, journal.getNumOfPending());
+        journal.close();
+
+        journal = open();
+        List<RequestJournal.Request> recovered = journal.getRecovered();
+        Assert.assertEquals(3, recovered.size());
+        int[] expected = {0, 2, 4};
+        for( int i = 0; i < expected.length; i++ ){
+            RequestJournal.Request request = recovered.get(i);
+            Assert.assertEquals(ids[expected[i]], request.id);
+            Assert.assertArrayEquals(SERVICE, request.service);
+            Assert.assertEquals(MessagePriority.values()[expected[i] % MessagePriority.values().length],
+                    request.priority);
+            // the return address, its delimiter and the body
+            Assert.assertEquals(3, request.msg.size());
+            Assert.assertEquals("client", request.msg.getFirst().toString());
+            Assert.assertEquals("req-" + expected[i], request.msg.getLast().toString());
+        }
+        Assert.assertEquals(3, journal.getNumOfPending());
+        // the ids go on after the recovered ones, and recovered requests can be marked as done
+        Assert.assertTrue(journal.append(SERVICE, MessagePriority.DEFAULT, newRequest("new")) > ids[4]);
+        journal.done(ids[0]);
+        Assert.assertNull(journal.read(ids[0]));
+        Assert.assertEquals(3, journal.getNumOfPending());
+    }
+
+    @Test
+    public void testTornRecordIsIgnored() throws Exception {
+        journal.append(SERVICE, MessagePriority.DEFAULT, newRequest("req-0"));
+        journal.append(SERVICE, MessagePriority.DEFAULT, newRequest("req-1"));
+        journal.append(SERVICE, MessagePriority.DEFAULT, newRequest("torn"));
+        journal.close();
+        // e.g., the process died while the last record was being written
+        corrupt(firstSegment(), "torn");
+
+        journal = open();
+        List<RequestJournal.Request> recovered = journal.getRecovered();
+        Assert.assertEquals(2, recovered.size());
+        Assert.assertEquals("req-0", recovered.get(0).msg.getLast().toString());
+        Assert.assertEquals("req-1", recovered.get(1).msg.getLast().toString());
+        // and the journal can still be used
+        long id = journal.append(SERVICE, MessagePriority.DEFAULT, newRequest("req-2"));
+        Assert.assertEquals("req-2", journal.read(id).msg.getLast().toString());
+    }
+
+    @Test
+    public void testRecordsAfterACorruptedOneAreIgnored() throws Exception {
+        long first = journal.append(SERVICE, MessagePriority.DEFAULT, newRequest("corrupted"));
+        journal.append(SERVICE, MessagePriority.DEFAULT, newRequest("req-1"));
+        journal.done(first);
+        journal.close();
+        corrupt(firstSegment(), "corrupted");
+
+        journal = open();
+        Assert.assertTrue(journal.getRecovered().isEmpty());
+        Assert.assertEquals(0, journal.getNumOfPending());
+    }
+
+    @Test
+    public void testSegmentsAreDeletedWhenTheirRequestsAreDone() throws Exception {
+        long[] ids = new long[50];
+        for( int i = 0; i < ids.length; i++ ){
+            ids[i] = journal.append(SERVICE, MessagePriority.DEFAULT, newRequest("req-" + i));
+        }
+        Assert.assertTrue(numOfSegments() > 2);
+        // the oldest request does not keep every segment after it, it is copied forward
+        for( int i = 1; i < ids.length; i++ ){
+            journal.done(ids[i]);
+        }
+        Assert.assertEquals(1, journal.getNumOfPending());
+        Assert.assertTrue(numOfSegments() <= 2);
+        Assert.assertEquals("req-0", journal.read(ids[0]).msg.getLast().toString());
+        journal.close();
+
+        journal = open();
+        List<RequestJournal.Request> recovered = journal.getRecovered();
+        Assert.assertEquals(1, recovered.size());
+        Assert.assertEquals(ids[0], recovered.get(0).id);
+        Assert.assertEquals("req-0", recovered.get(0).msg.getLast().toString());
+        journal.done(ids[0]);
+        Assert.assertEquals(0, journal.getNumOfPending());
+        Assert.assertEquals(1, numOfSegments());
+        journal.close();
+
+        journal = open();
+        Assert.assertTrue(journal.getRecovered().isEmpty());
+    }
+
+    @Test
+    public void testCompactionKeepsTheOrderOfThePendingRequests() throws Exception {
+        long[] ids = new long[60];
+        for( int i = 0; i < ids.length; i++ ){
+            ids[i] = journal.append(SERVICE, MessagePriority.DEFAULT, newRequest("req-" + i));
+            // one request in ten is never done
+            if( i % 10 != 0 ) journal.done(ids[i]);
+        }
+        Assert.assertEquals(6, journal.getNumOfPending());
+        // without compaction, the first pending request would keep every segment written after it
+        Assert.assertTrue(numOfSegments() <= 4);
+        journal.close();
+
+        journal = open();
+        List<RequestJournal.Request> recovered = journal.getRecovered();
+        Assert.assertEquals(6, recovered.size());
+        for( int i = 0; i < recovered.size(); i++ ){
+            Assert.assertEquals(ids[i * 10], recovered.get(i).id);
+            Assert.assertEquals("req-" + i * 10, recovered.get(i).msg.getLast().toString());
+        }
+        Assert.assertEquals(6, journal.getNumOfPending());
+    }
+
+    private RequestJournal open() throws Exception {
+        return new RequestJournal(directory, SEGMENT_SIZE, 1, 0);
+    }
+
+    private static ZMsg newRequest(String body){
+        ZMsg msg = new ZMsg();
+        msg.add("client");
+        msg.add(new byte[0]);
+        msg.add(body);
+        return msg;
+    }
+
+    private File firstSegment(){
+        File[] files = directory.listFiles();
+        Assert.assertNotNull(files);
+        Arrays.sort(files);
+        return files[0];
+    }
+
+    private int numOfSegments(){
+        File[] files = directory.listFiles();
+        return files == null? 0 : files.length;
+    }
+
+    /**
+     * Overwrites the first byte of text in file
+     */
+    private static void corrupt(File file, String text) throws Exception {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            byte[] data = new byte[(int) randomAccessFile.length()];
+            randomAccessFile.readFully(data);
+            byte[] pattern = text.getBytes(ZMQ.CHARSET);
+            for( int i = 0; i + pattern.length <= data.length; i++ ){
+                boolean isMatch = true;
+                for( int j = 0; j < pattern.length && isMatch; j++ ){
+                    isMatch = data[i + j] == pattern[j];
+                }
+                if( isMatch ){
+                    randomAccessFile.seek(i);
+                    randomAccessFile.write(pattern[0] ^ 0xFF);
+                    return;
+                }
+            }
+        }
+        Assert.fail(text + " is not in " + file);
+    }
+}
@@ -0,0 +1,89 @@
+package edu.cmu.inmind.multiuser.controller.communication;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zeromq.ZFrame;
+import org.zeromq.ZMsg;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ShardedBrokerTest {
+
+    private static final int NUM_OF_SHARDS = 4;
+    /** the port only names the inproc pipes of the shards, the broker is not run **/
+    private static final AtomicInteger nextPort = new AtomicInteger(47000);
+
+    private ShardedBroker broker;
+    private String service;
+    private int shard;
+
+    @Before
+    public void setUp() {
+        broker = new ShardedBroker(nextPort.getAndIncrement(), NUM_OF_SHARDS);
+        // a service that is not on the first shard, so that it can be told apart from an unknown worker
+        for( int i = 0; shard == 0; i++ ){
+            service = "service" + i;
+            shard = broker.shardOf(request("client", service, "body"));
+        }
+    }
+
+    @After
+    public void tearDown() throws Throwable {
+        broker.close(null);
+    }
+
+    @Test
+    public void testReadyLearnsTheShardOfTheWorker() {
+        Assert.assertEquals(0, broker.shardOf(fromWorker("worker", MDP.S_HEARTBEAT)));
+        Assert.assertEquals(shard, broker.shardOf(fromWorker("worker", MDP.S_READY, service)));
+        Assert.assertEquals(shard, broker.shardOf(fromWorker("worker", MDP.S_HEARTBEAT)));
+        Assert.assertEquals(shard, broker.shardOf(fromWorker("worker", MDP.S_REPLY, "client", "", "reply")));
+    }
+
+    @Test
+    public void testDisconnectForgetsTheWorker() {
+        broker.shardOf(fromWorker("worker", MDP.S_READY, service));
+        // the disconnection itself goes to the shard of the worker
+        Assert.assertEquals(shard, broker.shardOf(fromWorker("worker", MDP.S_DISCONNECT)));
+        Assert.assertEquals(0, broker.shardOf(fromWorker("worker", MDP.S_HEARTBEAT)));
+    }
+
+    @Test
+    public void testDeleteNoticeForgetsTheWorker() {
+        broker.shardOf(fromWorker("worker", MDP.S_READY, service));
+        // a notice from another shard is stale (e.g., the worker has moved), it is ignored
+        broker.forget(new ZFrame("worker"), shard == 1? 2 : 1);
+        Assert.assertEquals(shard, broker.shardOf(fromWorker("worker", MDP.S_HEARTBEAT)));
+        broker.forget(new ZFrame("worker"), shard);
+        Assert.assertEquals(0, broker.shardOf(fromWorker("worker", MDP.S_HEARTBEAT)));
+    }
+
+    @Test
+    public void testServiceLookupGoesToTheShardOfTheService() {
+        Assert.assertEquals(shard, broker.shardOf(request("client", "mmi.service", service)));
+    }
+
+    private static ZMsg request(String client, String service, String body){
+        ZMsg msg = new ZMsg();
+        msg.add(client);
+        msg.add(new byte[0]);
+        msg.add(MDP.C_CLIENT.newFrame());
+        msg.add(service);
+        msg.add(body);
+        return msg;
+    }
+
+    private static ZMsg fromWorker(String worker, MDP command, String... frames){
+        ZMsg msg = new ZMsg();
+        msg.add(worker);
+        msg.add(new byte[0]);
+        msg.add(MDP.S_ORCHESTRATOR.newFrame());
+        msg.add(command.newFrame());
+        for( String frame : frames ){
+            msg.add(frame);
+        }
+        return msg;
+    }
+}
@@ -0,0 +1,106 @@
+package edu.cmu.inmind.multiuser.test;
+
+import edu.cmu.inmind.multiuser.controller.common.CommonUtils;
+import edu.cmu.inmind.multiuser.controller.communication.Broker;
+import edu.cmu.inmind.multiuser.controller.communication.MDP;
+import edu.cmu.inmind.multiuser.controller.resources.CommonsResourceLocator;
+import org.zeromq.ZContext;
+import org.zeromq.ZFrame;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMsg;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the cost of a request/reply through the Broker when it has many registered workers (one per session).
+ * The broker runs as a shard (see ShardedBroker) so this main can play thousands of workers and a client through a
+ * single inproc pipe, without opening a socket per worker. It is a plain main because the build does not include JMH.
+ */
+public class BrokerBenchmark {
+    private static int numOfWorkers = 10 * 1000;
+    private static final int rounds = 5;
+
+    public static void main(String args[]) throws Throwable{
+        if( args.length > 0 ) numOfWorkers = Integer.parseInt(args[0]);
+        CommonUtils.initThreadExecutor();
+        ZContext ctx = CommonsResourceLocator.getContext(null);
+        ZMQ.Socket pipe = CommonsResourceLocator.createSocket(ctx, ZMQ.PAIR);
+        pipe.setSndHWM(0);
+        pipe.setRcvHWM(0);
+        pipe.bind("inproc://broker-benchmark");
+        Broker broker = new Broker(0, 0, "inproc://broker-benchmark");
+        CommonUtils.execute(broker);
+
+        ZFrame client = new ZFrame("client");
+        List<Integer> order = new ArrayList<>();
+        for(int i = 0; i < numOfWorkers; i++){
+            ZMsg ready = new ZMsg();
+            ready.add(MDP.S_READY.newFrame());
+            ready.add("session-" + i);
+            send(pipe, worker(i), MDP.S_ORCHESTRATOR, ready);
+            order.add(i);
+        }
+        Random random = new Random(7);
+        for(int round = 0; round < rounds; round++){
+            Collections.shuffle(order, random);
+            long time = System.nanoTime();
+            for( int i : order ){
+                ZMsg request = new ZMsg();
+                request.add("session-" + i);
+                request.add("request");
+                send(pipe, client.duplicate(), MDP.C_CLIENT, request);
+                // the broker hands the request to worker i (the return address of the client comes first)
+                ZMsg toWorker = receive(pipe, MDP.S_REQUEST);
+                ZMsg reply = new ZMsg();
+                reply.add(MDP.S_REPLY.newFrame());
+                reply.add(toWorker.pollFirst());
+                reply.add(toWorker.pollFirst());
+                reply.add("reply");
+                send(pipe, worker(i), MDP.S_ORCHESTRATOR, reply);
+                receive(pipe, null).destroy();
+                toWorker.destroy();
+            }
+            time = System.nanoTime() - time;
+            System.out.println(String.format("Round %s: %s workers, %8.2f us/request", round, numOfWorkers,
+                    (double) time / numOfWorkers / 1000));
+        }
+        System.exit(0);
+    }
+
+    private static ZFrame worker(int i){
+        return new ZFrame( ByteBuffer.allocate(5).put((byte) 0).putInt(i).array() );
+    }
+
+    /**
+     * Sends msg as if it came from sender through the broker's ROUTER socket
+     */
+    private static void send(ZMQ.Socket pipe, ZFrame sender, MDP header, ZMsg msg){
+        msg.addFirst(header.newFrame());
+        msg.addFirst(new ZFrame(new byte[0]));
+        msg.addFirst(sender);
+        msg.send(pipe);
+    }
+
+    /**
+     * @param command if not null, skips the messages to the workers that are not this command (e.g., heartbeats)
+     * @return the received message without the routing envelope and the protocol frames
+     */
+    private static ZMsg receive(ZMQ.Socket pipe, MDP command) throws Throwable{
+        while(true){
+            ZMsg msg = ZMsg.recvMsg(pipe);
+            msg.unwrap().destroy();
+            msg.pop().destroy(); // header
+            ZFrame frame = msg.pop();
+            if( command == null || command.frameEquals(frame) ){
+                frame.destroy();
+                return msg;
+            }
+            frame.destroy();
+            msg.destroy();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package edu.cmu.inmind.multiuser.test;
+
+import com.rits.cloning.Cloner;
+import edu.cmu.inmind.multiuser.controller.common.CopyStrategy;
+import edu.cmu.inmind.multiuser.controller.common.Utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the copiers used by Utils.clone against the reflective Cloner.shallowClone that the blackboard used
+ * before. It is a plain main (warm-up iterations + measured iterations) because the build does not include JMH.
+ */
+public class CopierBenchmark {
+    private static final int warmupIterations = 2 * 1000 * 1000;
+    private static final int iterations = 5 * 1000 * 1000;
+    private static final int rounds = 5;
+
+    public static void main(String args[]){
+        final Cloner cloner = new Cloner();
+        final Input input = new Input("hello, how are you?", true, false, true);
+        final Output output = new Output();
+        output.getActions().add("greet");
+        output.getEntities().add(input);
+        output.setConfidence(0.87);
+
+        Utils.setCopyStrategy(ImmutableInput.class, CopyStrategy.IMMUTABLE);
+        final ImmutableInput immutableInput = new ImmutableInput("hello, how are you?");
+
+        for(int round = 0; round < rounds; round++) {
+            System.out.println("Round " + round);
+            run("Cloner.shallowClone(Input)", new Task() {
+                public Object run() { return cloner.shallowClone(input); }
+            });
+            run("Utils.clone(Input)", new Task() {
+                public Object run() { return Utils.clone(input); }
+            });
+            run("Cloner.shallowClone(Output)", new Task() {
+                public Object run() { return cloner.shallowClone(output); }
+            });
+            run("Utils.clone(Output)", new Task() {
+                public Object run() { return Utils.clone(output); }
+            });
+            run("Cloner.shallowClone(ImmutableInput)", new Task() {
+                public Object run() { return cloner.shallowClone(immutableInput); }
+            });
+            run("Utils.clone(ImmutableInput)", new Task() {
+                public Object run() { return Utils.clone(immutableInput); }
+            });
+        }
+    }
+
+    private static void run(String name, Task task){
+        Object blackhole = null;
+        for(int i = 0; i < warmupIterations; i++){
+            blackhole = task.run();
+        }
+        long time = System.nanoTime();
+        for(int i = 0; i < iterations; i++){
+            blackhole = task.run();
+        }
+        time = System.nanoTime() - time;
+        System.out.println(String.format("    %-38s %8.2f ns/op   (%s)", name, (double) time / iterations,
+                blackhole.getClass().getSimpleName()));
+    }
+
+    interface Task{
+        Object run();
+    }
+
+    /** similar to SaraInput **/
+    static class Input {
+        private String asrInput;
+        private boolean isSmiling;
+        private boolean isGazeAtPartner;
+        private boolean isHeadNod;
+
+        Input() {}
+
+        Input(String asrInput, boolean isSmiling, boolean isGazeAtPartner, boolean isHeadNod) {
+            this.asrInput = asrInput;
+            this.isSmiling = isSmiling;
+            this.isGazeAtPartner = isGazeAtPartner;
+            this.isHeadNod = isHeadNod;
+        }
+    }
+
+    /** similar to SaraOutput **/
+    static class Output {
+        private List<String> actions = new ArrayList<>();
+        private List<Input> entities = new ArrayList<>();
+        private double confidence;
+        private long timestamp = System.currentTimeMillis();
+
+        public List<String> getActions() {
+            return actions;
+        }
+
+        public List<Input> getEntities() {
+            return entities;
+        }
+
+        public void setConfidence(double confidence) {
+            this.confidence = confidence;
+        }
+    }
+
+    static class ImmutableInput {
+        private final String asrInput;
+
+        ImmutableInput(String asrInput) {
+            this.asrInput = asrInput;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package edu.cmu.inmind.multiuser.test;
+
+import edu.cmu.inmind.multiuser.controller.common.CommonUtils;
+import edu.cmu.inmind.multiuser.controller.communication.Broker;
+import edu.cmu.inmind.multiuser.controller.communication.MDP;
+import edu.cmu.inmind.multiuser.controller.communication.ServerCommController;
+import edu.cmu.inmind.multiuser.controller.communication.ZMsgWrapper;
+import edu.cmu.inmind.multiuser.controller.resources.CommonsResourceLocator;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMsg;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * Measures how many bytes are allocated per request/reply round trip between a client, the Broker and a
+ * ServerCommController (the worker of a session), so the copies made along the way can be compared against the
+ * payload size. Everything runs in this process over inproc sockets, and the allocations of all the threads are
+ * added up (it needs a JVM that supports com.sun.management.ThreadMXBean).
+ */
+public class MessageAllocationBenchmark {
+    private static final String endpoint = "inproc://allocation-benchmark";
+    private static final String service = "allocation-benchmark";
+    private static final int payloadSize = 64 * 1024;
+    private static final int warmupIterations = 2 * 1000;
+    private static final int iterations = 10 * 1000;
+
+    public static void main(String args[]) throws Throwable{
+        CommonUtils.initThreadExecutor();
+        Broker broker = new Broker("127.0.0.1", 5799);
+        broker.bind(endpoint);
+        CommonUtils.execute(broker);
+
+        final ServerCommController worker = new ServerCommController(endpoint, service, null);
+        CommonUtils.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ZMsgWrapper request = worker.receive(null);
+                    while (request != null) {
+                        // echo
+                        worker.send(request, request.getMsg().peekLast().getString(ZMQ.CHARSET));
+                        request = worker.receive(null);
+                    }
+                }catch (Throwable e){
+                    e.printStackTrace();
+                }
+            }
+        });
+
+        ZContext ctx = CommonsResourceLocator.getContext(null);
+        ZMQ.Socket client = CommonsResourceLocator.createSocket(ctx, ZMQ.DEALER);
+        client.connect(endpoint);
+        byte[] payload = new byte[payloadSize];
+        Arrays.fill(payload, (byte) 'a');
+
+        roundTrips(client, payload, warmupIterations);
+        long allocated = allocatedBytes();
+        long time = System.nanoTime();
+        roundTrips(client, payload, iterations);
+        time = System.nanoTime() - time;
+        allocated = allocatedBytes() - allocated;
+        System.out.println(String.format("payload: %s bytes, allocated: %.0f bytes/round trip (%.2f payloads), "
+                + "%.2f us/round trip", payloadSize, (double) allocated / iterations,
+                (double) allocated / iterations / payloadSize, (double) time / iterations / 1000));
+        System.exit(0);
+    }
+
+    private static void roundTrips(ZMQ.Socket client, byte[] payload, int iterations) throws Throwable{
+        for(int i = 0; i < iterations; i++){
+            ZMsg request = new ZMsg();
+            request.add(new byte[0]);
+            request.add(MDP.C_CLIENT.newFrame());
+            request.add(service);
+            request.add(payload);
+            request.send(client);
+            ZMsg reply = ZMsg.recvMsg(client);
+            reply.destroy();
+        }
+    }
+
+    private static long allocatedBytes(){
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)
+                ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for( long allocated : threads.getThreadAllocatedBytes( threads.getAllThreadIds() ) ){
+            if( allocated > 0 ) total += allocated;
+        }
+        return total;
+    }
+}